@@ -0,0 +1,87 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.utils.DBsPath;
+import com.github.jayield.rapper.utils.DeleteDetection;
+import com.github.jayield.rapper.utils.IdentityMap;
+import com.github.jayield.rapper.utils.ReferenceType;
+import com.github.jayield.rapper.utils.Revalidation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * How the objects of an entity are cached by the DataRepository that {@link com.github.jayield.rapper.utils.MapperRegistry}
+ * creates for it. Entities without it get an IdentityMap of {@link DataRepository#DEFAULT_IDENTITY_MAP_SIZE} objects and
+ * no other caches
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CachePolicy {
+    /**
+     * The maximum number of objects in the IdentityMap, 0 keeps none, so every read goes to the DB,
+     * and {@link IdentityMap#UNBOUNDED} keeps them all
+     */
+    long maximumSize() default DataRepository.DEFAULT_IDENTITY_MAP_SIZE;
+
+    ReferenceType references() default ReferenceType.STRONG;
+
+    long expireAfterWriteMillis() default 0;
+
+    long expireAfterAccessMillis() default 0;
+
+    long refreshAfterWriteMillis() default 0;
+
+    /**
+     * For small tables read often and rarely written, the whole table is loaded on first access and findAll, findWhere and
+     * findById are served from memory until it's changed, see {@link DataRepository#setReferenceData(boolean)}.
+     * The IdentityMap is then unbounded and never expires, ignoring maximumSize, references and the expiry times
+     */
+    boolean preload() default false;
+
+    /**
+     * The bytes of a {@link SecondLevelCache} below the IdentityMap, 0 for none
+     */
+    int offHeapBytes() default 0;
+
+    boolean compressOffHeap() default false;
+
+    /**
+     * How many identity keys the {@link com.github.jayield.rapper.utils.QueryCache} of findWhere and findAll holds, 0 for none
+     */
+    long queryCacheKeys() default 0;
+
+    /**
+     * findWhere reads the ids and versions first and only reads whole the rows not up to date in the IdentityMap,
+     * see {@link DataRepository#setKeysFirst(boolean)}
+     */
+    boolean keysFirst() default false;
+
+    Revalidation revalidation() default Revalidation.NONE;
+
+    /**
+     * The time between revalidations or synchronization polls
+     */
+    long revalidationMillis() default 60_000;
+
+    /**
+     * With {@link Revalidation#HOTTEST}, how many objects are revalidated each time
+     */
+    int revalidatedObjects() default 1_000;
+
+    /**
+     * With {@link Revalidation#SYNCHRONIZE}, how the rows removed by other nodes are found
+     */
+    DeleteDetection deleteDetection() default DeleteDetection.REVALIDATE;
+
+    /**
+     * With {@link DeleteDetection#REVALIDATE}, how many synchronization polls go by between each search of removed rows
+     */
+    int deleteCheckPolls() default 10;
+
+    /**
+     * With {@link Revalidation#SYNCHRONIZE}, the DB whose changes are polled
+     */
+    DBsPath synchronizedDB() default DBsPath.DEFAULTDB;
+}
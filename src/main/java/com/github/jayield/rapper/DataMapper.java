@@ -1,5 +1,6 @@
 package com.github.jayield.rapper;
 
+import com.github.jayield.rapper.exceptions.ConcurrencyException;
 import com.github.jayield.rapper.exceptions.DataMapperException;
 import com.github.jayield.rapper.utils.*;
 import javafx.util.Pair;
@@ -14,23 +15,34 @@ import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
 
+    //Most DBs take at least 2000 parameters per statement
+    private static final int MAX_PARAMETERS = 2000;
+
     private final Logger log = LoggerFactory.getLogger(DataMapper.class);
     private final Class<T> type;
     private final MapperSettings mapperSettings;
     private final Constructor<T> constructor;
     private final ExternalsHandler<T, K> externalHandler;
+    private final List<SqlField> rowFields;
+    private final SqlField versionField;    //The version of T's own level, null if T has none
 
     private Class<?> primaryKey = null;
     private Constructor<?> primaryKeyConstructor = null;
     private Field primaryKeyField;
 
     public DataMapper(Class<T> type) {
+        this(type, MapperRegistry.getDialect());
+    }
+
+    public DataMapper(Class<T> type, Dialect dialect) {
         this.type = type;
         try {
             Class<?>[] declaredClasses = type.getDeclaredClasses();
@@ -43,17 +55,67 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
         } catch (NoSuchMethodException e) {
             throw new RuntimeException(e);
         }
-        mapperSettings = new MapperSettings(type);
-        externalHandler = new ExternalsHandler<>(mapperSettings.getIds(), mapperSettings.getExternals(), primaryKey, primaryKeyConstructor);
+        mapperSettings = new MapperSettings(type, dialect);
+        externalHandler = new ExternalsHandler<>(mapperSettings.getIds(), mapperSettings.getExternals(), primaryKeyConstructor);
+        rowFields = mapperSettings
+                .getAllFields()
+                .stream()
+                .filter(field -> mapperSettings.getFieldPredicate().test(field.field))
+                .collect(Collectors.toList());
+        versionField = mapperSettings.getVersions()
+                .stream()
+                .filter(version -> version.field.getDeclaringClass() == type)
+                .findFirst()
+                .orElse(null);
     }
 
     @Override
     public <R> CompletableFuture<List<T>> findWhere(Pair<String, R>... values) {
+        UnitOfWork unit = UnitOfWork.getCurrent();
+        return readWhere(values)
+                .exceptionally(throwable -> {
+                    log.info("Couldn't execute query on {}.", type.getSimpleName());
+                    unit.registerQueryFailure();
+                    return Collections.emptyList();
+                });
+    }
+
+    /**
+     * Same as {@link #findWhere(Pair[])} but completes exceptionally if the query fails, instead of giving an empty result
+     */
+    <R> CompletableFuture<List<T>> readWhere(Pair<String, R>... values) {
         String query = Arrays.stream(values)
                 .map(p -> p.getKey() + " = ? ")
                 .collect(Collectors.joining(" AND ", mapperSettings.getSelectQuery() + " WHERE ", ""));
 
-        return SQLUtils.execute(query, s -> {
+        return SQLUtils.query(query, s -> {
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    s.setObject(i + 1, values[i].getValue());
+                }
+            } catch (SQLException e) {
+                throw new DataMapperException(e);
+            }
+        }, ps -> getStream(ps).collect(Collectors.toList()));
+    }
+
+    /**
+     * Finds the objects with {@code values} reading only their ids and versions first. The ones {@code cached} holds with the
+     * same versions are given as they are, only the missing and outdated ones are read whole, with their externals.
+     * The objects are given in the order of the rows. Completes exceptionally if a query fails
+     *
+     * @param cached gives the object of a key held in memory, or null if there's none
+     * @param read called with each object read whole
+     */
+    <R> CompletableFuture<List<T>> findWhere(Function<K, T> cached, Consumer<T> read, Pair<String, R>... values) {
+        UnitOfWork unit = UnitOfWork.getCurrent();
+        String query = Arrays.stream(values)
+                .map(p -> p.getKey() + " = ? ")
+                .collect(Collectors.joining(" AND ", mapperSettings.getSelectVersionsQuery() + " WHERE ", ""));
+
+        List<T> found = new ArrayList<>();      //The objects cached or, for the ones to read, with only their ids
+        Set<T> missing = Collections.newSetFromMap(new IdentityHashMap<>());
+        return SQLUtils.query(query, s -> {
             try {
                 for (int i = 0; i < values.length; i++) {
                     s.setObject(i + 1, values[i].getValue());
@@ -61,53 +123,368 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
             } catch (SQLException e) {
                 throw new DataMapperException(e);
             }
+        }, ps -> {
+            try {
+                ResultSet rs = ps.getResultSet();
+                while (rs.next()) {
+                    T ids = mapper(rs::getObject, mapperSettings.getIds());
+                    T t = cached.apply(ids.getIdentityKey());
+                    if (t != null && hasVersions(t, rs)) found.add(t);
+                    else {
+                        found.add(ids);
+                        missing.add(ids);
+                    }
+                }
+                return found;
+            } catch (SQLException | IllegalAccessException e) {
+                throw new DataMapperException(e);
+            }
         })
-                .thenApply(this::getStream)
-                .thenApply(s -> s.collect(Collectors.toList()))
-                .exceptionally(throwable -> {
-                    log.info("Couldn't execute query on {}.", type.getSimpleName());
-                    //throwable.printStackTrace();
-                    return Collections.emptyList();
+                .thenCompose(ignored -> {
+                    UnitOfWork.setCurrent(unit);
+                    return findByIds(new ArrayList<>(missing));
+                })
+                .thenApply(fresh -> {
+                    Map<List<Object>, T> byId = new HashMap<>();
+                    fresh.forEach(t -> {
+                        byId.put(getIdValues(t), t);
+                        read.accept(t);
+                    });
+                    //A row removed after its id was read is left out
+                    return found.stream()
+                            .map(t -> missing.contains(t) ? byId.get(getIdValues(t)) : t)
+                            .filter(Objects::nonNull)
+                            .collect(Collectors.toList());
+                });
+    }
+
+    /**
+     * Reads whole, with their externals, the rows of the ids of {@code objects}, in batches of as many objects as
+     * a statement's parameters allow
+     */
+    private CompletableFuture<List<T>> findByIds(List<T> objects) {
+        if (objects.isEmpty()) return CompletableFuture.completedFuture(Collections.emptyList());
+        int batchSize = Math.max(1, MAX_PARAMETERS / Math.max(1, mapperSettings.getIds().size()));
+        String idCondition = mapperSettings.getIds().stream()
+                .map(id -> id.selectQueryValue + " = ?")
+                .collect(Collectors.joining(" and ", "(", ")"));
+
+        List<CompletableFuture<List<T>>> batches = new ArrayList<>();
+        for (int i = 0; i < objects.size(); i += batchSize) {
+            List<T> batch = objects.subList(i, Math.min(i + batchSize, objects.size()));
+            String query = batch.stream()
+                    .map(t -> idCondition)
+                    .collect(Collectors.joining(" or ", mapperSettings.getSelectQuery() + " where ", ""));
+            batches.add(SQLUtils.query(query, stmt -> {
+                int index = 1;
+                for (T t : batch) {
+                    for (SqlField.SqlFieldId id : mapperSettings.getIds()) id.setValueInStatement(stmt, index++, t);
+                }
+            }, ps -> getStream(ps).collect(Collectors.toList())));
+        }
+
+        return CompletableFuture
+                .allOf(batches.toArray(new CompletableFuture[0]))
+                .thenCompose(v -> {
+                    List<T> read = batches.stream().flatMap(batch -> batch.join().stream()).collect(Collectors.toList());
+                    CompletableFuture[] populated = read.stream().map(externalHandler::populateExternals).toArray(CompletableFuture[]::new);
+                    return CompletableFuture.allOf(populated).thenApply(ignored -> read);
                 });
     }
 
     @Override
     public CompletableFuture<Optional<T>> findById(K id) {
-        UnitOfWork unitOfWork = UnitOfWork.getCurrent();
-        return SQLUtils.execute(mapperSettings.getSelectByIdQuery(), stmt -> SQLUtils.setValuesInStatement(mapperSettings.getIds().stream(), stmt, id))
-                .thenApply(ps -> {
-                    UnitOfWork.setCurrent(unitOfWork);
-                    Optional<T> optionalT = getStream(ps).findFirst();
-                    optionalT.ifPresent(t -> externalHandler.populateExternals(t).join());
-                    return optionalT;
-                })
+        UnitOfWork unit = UnitOfWork.getCurrent();
+        return readById(id)
                 .exceptionally(throwable -> {
                     log.info("Couldn't execute query on {}.", type.getSimpleName());
-                    //throwable.printStackTrace();
+                    unit.registerQueryFailure();
                     return Optional.empty();
                 });
     }
 
+    /**
+     * Same as {@link #findById(Object)} but completes exceptionally if the query fails, instead of giving an empty result
+     */
+    CompletableFuture<Optional<T>> readById(K id) {
+        UnitOfWork unit = UnitOfWork.getCurrent();
+        return SQLUtils.query(mapperSettings.getSelectByIdQuery(), stmt -> SQLUtils.setValuesInStatement(mapperSettings.getIds().stream(), stmt, id), ps -> getStream(ps).findFirst())
+                .thenCompose(optionalT -> {
+                    UnitOfWork.setCurrent(unit);
+                    return optionalT
+                            .map(t -> externalHandler.populateExternals(t).thenApply(populated -> optionalT))
+                            .orElseGet(() -> CompletableFuture.completedFuture(optionalT));
+                });
+    }
+
     @Override
     public CompletableFuture<List<T>> findAll() {
-        UnitOfWork current = UnitOfWork.getCurrent();
-        return SQLUtils.execute(mapperSettings.getSelectQuery(), s -> {
-        })
-                .thenApply(this::getStream)
-                .thenApply(tStream -> {
-                    UnitOfWork.setCurrent(current);
-                    return tStream.peek(t -> externalHandler.populateExternals(t).join());
-                })
-                .thenApply(tStream1 -> tStream1.collect(Collectors.toList()))
+        UnitOfWork unit = UnitOfWork.getCurrent();
+        return readAll()
                 .exceptionally(throwable -> {
                     log.info("Couldn't execute query on {}.", type.getSimpleName());
-                    //throwable.printStackTrace();
+                    unit.registerQueryFailure();
                     return Collections.emptyList();
                 });
     }
 
+    /**
+     * Same as {@link #findAll()} but completes exceptionally if the query fails, instead of giving an empty result
+     */
+    CompletableFuture<List<T>> readAll() {
+        UnitOfWork unit = UnitOfWork.getCurrent();
+        return SQLUtils.query(mapperSettings.getSelectQuery(), s -> {
+        }, ps -> getStream(ps).collect(Collectors.toList()))
+                .thenCompose(read -> {
+                    UnitOfWork.setCurrent(unit);
+                    CompletableFuture[] populated = read.stream().map(externalHandler::populateExternals).toArray(CompletableFuture[]::new);
+                    return CompletableFuture.allOf(populated).thenApply(ignored -> read);
+                });
+    }
+
+    /**
+     * Reads only the ids and versions of the objects' rows, in batches of as many objects as a statement's parameters allow
+     */
+    @Override
+    public CompletableFuture<List<T>> findStale(List<T> objects) {
+        Map<List<Object>, T> byId = new HashMap<>();
+        Map<List<Object>, List<Long>> versions = new HashMap<>();
+        for (T t : objects) {
+            List<Object> idValues = getIdValues(t);
+            byId.put(idValues, t);
+            versions.put(idValues, getVersionValues(t));
+        }
+        return findStaleRows(versions).thenApply(stale -> stale.stream().map(byId::get).collect(Collectors.toList()));
+    }
+
+    /**
+     * Same as {@link #findStale(List)}, from the values of the rows' ids and versions, so the objects don't have to be built
+     * @param versions the versions of all levels of each row, in the order of {@link MapperSettings#getVersions()}, by
+     *                 the values of its ids, as given by {@link #getIdValues(Object)}
+     * @return the values of the ids of the rows that changed or were removed
+     */
+    CompletableFuture<List<List<Object>>> findStaleRows(Map<List<Object>, List<Long>> versions) {
+        List<List<Object>> idValues = new ArrayList<>(versions.keySet());
+        int batchSize = Math.max(1, MAX_PARAMETERS / Math.max(1, mapperSettings.getIds().size()));
+        List<CompletableFuture<List<List<Object>>>> batches = new ArrayList<>();
+        for (int i = 0; i < idValues.size(); i += batchSize)
+            batches.add(findStaleBatch(idValues.subList(i, Math.min(i + batchSize, idValues.size())), versions));
+
+        return CompletableFuture
+                .allOf(batches.toArray(new CompletableFuture[0]))
+                .thenApply(v -> batches.stream().flatMap(batch -> batch.join().stream()).collect(Collectors.toList()));
+    }
+
+    /**
+     * Reads the rows written, in any level of the hierarchy, with a version after {@code fromVersion} and up to {@code toVersion}.
+     * The externals aren't populated
+     */
+    public CompletableFuture<List<T>> findChanged(long fromVersion, long toVersion) {
+        int levels = mapperSettings.getVersions().size();
+        return SQLUtils.query(mapperSettings.getSelectChangedQuery(), stmt -> {
+            try {
+                for (int i = 0; i < levels; i++) {
+                    stmt.setLong(2 * i + 1, fromVersion);
+                    stmt.setLong(2 * i + 2, toVersion);
+                }
+            } catch (SQLException e) {
+                throw new DataMapperException(e);
+            }
+        }, ps -> getStream(ps).collect(Collectors.toList()));
+    }
+
+    /**
+     * Reads only the ids of every row, each as the values of its id columns, see {@link #getIdValues(Object)}
+     */
+    CompletableFuture<List<List<Object>>> findIdValues() {
+        return SQLUtils.query(mapperSettings.getSelectVersionsQuery(), stmt -> {}, ps -> {
+            try {
+                List<List<Object>> ids = new ArrayList<>();
+                ResultSet rs = ps.getResultSet();
+                while (rs.next()) {
+                    List<Object> idValues = new ArrayList<>();
+                    for (SqlField.SqlFieldId id : mapperSettings.getIds()) idValues.add(normalize(rs.getObject(id.name)));
+                    ids.add(idValues);
+                }
+                return ids;
+            } catch (SQLException e) {
+                throw new DataMapperException(e);
+            }
+        });
+    }
+
+    private CompletableFuture<List<List<Object>>> findStaleBatch(List<List<Object>> idValues, Map<List<Object>, List<Long>> versions) {
+        String idCondition = mapperSettings.getIds().stream()
+                .map(id -> id.selectQueryValue + " = ?")
+                .collect(Collectors.joining(" and ", "(", ")"));
+        String query = idValues.stream()
+                .map(values -> idCondition)
+                .collect(Collectors.joining(" or ", mapperSettings.getSelectVersionsQuery() + " where ", ""));
+
+        return SQLUtils.query(query, stmt -> {
+            try {
+                int i = 1;
+                for (List<Object> values : idValues) {
+                    for (Object value : values) stmt.setObject(i++, value);
+                }
+            } catch (SQLException e) {
+                throw new DataMapperException(e);
+            }
+        }, ps -> {
+            try {
+                List<List<Object>> stale = new ArrayList<>();
+                Set<List<Object>> notFound = new HashSet<>(idValues);
+                ResultSet rs = ps.getResultSet();
+                while (rs.next()) {
+                    List<Object> values = new ArrayList<>();
+                    for (SqlField.SqlFieldId id : mapperSettings.getIds()) values.add(normalize(rs.getObject(id.name)));
+                    if (notFound.remove(values) && !hasVersions(versions.get(values), rs)) stale.add(values);
+                }
+                //The ones left weren't found, so they were removed
+                stale.addAll(notFound);
+                return stale;
+            } catch (SQLException e) {
+                throw new DataMapperException(e);
+            }
+        });
+    }
+
+    private List<Object> getIdValues(T t) {
+        return getIdValues(t.getIdentityKey());
+    }
+
+    /**
+     * @return the versions of all levels of {@code t}, in the order of {@link MapperSettings#getVersions()}
+     */
+    List<Long> getVersionValues(T t) {
+        try {
+            List<Long> versions = new ArrayList<>();
+            for (SqlField version : mapperSettings.getVersions()) {
+                version.field.setAccessible(true);
+                versions.add(version.field.getLong(t));
+            }
+            return versions;
+        } catch (IllegalAccessException e) {
+            throw new DataMapperException(e);
+        }
+    }
+
+    /**
+     * @return the values of the id columns of {@code key}, as read by {@link #findIdValues()}
+     */
+    List<Object> getIdValues(K key) {
+        return mapperSettings.getIds().stream()
+                .map(id -> {
+                    if (!id.embeddedId) return normalize(key);
+                    try {
+                        id.field.setAccessible(true);
+                        return normalize(id.field.get(key));
+                    } catch (IllegalAccessException e) {
+                        throw new DataMapperException(e);
+                    }
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Gives a predicate that tells if an object has the values of {@code values} in its columns, as {@link #findWhere(Pair[])}
+     * would find it. The values are compared with equals, after widening integral numbers, and a null value matches nothing
+     * @return the predicate, or null if one of the columns isn't a column of T
+     */
+    <R> Predicate<T> matcher(Pair<String, R>[] values) {
+        int[] indexes = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            String column = values[i].getKey();
+            indexes[i] = IntStream.range(0, rowFields.size())
+                    .filter(j -> rowFields.get(j).name.equalsIgnoreCase(column))
+                    .findFirst()
+                    .orElse(-1);
+            if (indexes[i] < 0) return null;
+        }
+        return t -> {
+            Object[] row = toRow(t);
+            for (int i = 0; i < values.length; i++) {
+                Object expected = values[i].getValue();
+                if (expected == null || !Objects.equals(normalize(row[indexes[i]]), normalize(expected))) return false;
+            }
+            return true;
+        };
+    }
+
+    /**
+     * The DB may give the values of a numeric column in a type other than the field's, e.g. a Short for an int field
+     */
+    static Object normalize(Object value) {
+        if (value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long)
+            return ((Number) value).longValue();
+        return value;
+    }
+
+    /**
+     * rs.next() should be called before calling this method
+     *
+     * @return whether the versions of all levels of t are the ones in the current row
+     */
+    private boolean hasVersions(T t, ResultSet rs) throws SQLException, IllegalAccessException {
+        for (SqlField version : mapperSettings.getVersions()) {
+            version.field.setAccessible(true);
+            if (version.field.getLong(t) != rs.getLong(version.name)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * rs.next() should be called before calling this method
+     *
+     * @return whether {@code versions}, of all levels in the order of {@link MapperSettings#getVersions()}, are the ones in the current row
+     */
+    private boolean hasVersions(List<Long> versions, ResultSet rs) throws SQLException {
+        List<SqlField> fields = mapperSettings.getVersions();
+        for (int i = 0; i < fields.size(); i++) {
+            if (versions.get(i) != rs.getLong(fields.get(i).name)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * {@code t} may be an object of a subclass, read by its repository, whose {@link DomainObject#getVersion()} is the
+     * version of the subclass' level
+     * @return the version of T's level of {@code t}
+     */
+    long getVersion(T t) {
+        if (versionField == null) return t.getVersion();
+        try {
+            versionField.field.setAccessible(true);
+            return versionField.field.getLong(t);
+        } catch (IllegalAccessException e) {
+            throw new DataMapperException(e);
+        }
+    }
+
+    /**
+     * Compares the versions of all levels, since a change to a parent's row alone doesn't change the version of t's own
+     *
+     * @return whether no level of {@code t} is older than the same level of {@code than} and at least one is newer
+     */
+    boolean isNewer(T t, T than) {
+        boolean newer = false;
+        try {
+            for (SqlField version : mapperSettings.getVersions()) {
+                version.field.setAccessible(true);
+                long tVersion = version.field.getLong(t);
+                long thanVersion = version.field.getLong(than);
+                if (tVersion < thanVersion) return false;
+                if (tVersion > thanVersion) newer = true;
+            }
+        } catch (IllegalAccessException e) {
+            throw new DataMapperException(e);
+        }
+        return newer;
+    }
+
     @Override
     public CompletableFuture<Boolean> create(T obj) {
+        UnitOfWork unit = UnitOfWork.getCurrent();
         //This is only done once because it will be recursive (The parentClass will check if its parentClass is a DomainObject and therefore call its insert)
         boolean[] parentSuccess = {true};
         getParentMapper().ifPresent(objectDataMapper -> parentSuccess[0] = objectDataMapper.create(obj).join());
@@ -123,6 +500,7 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
                 .thenApply(ps -> {
                     try {
                         ResultSet rs = ps.getResultSet();
+                        if (!rs.next()) throw new DataMapperException("Couldn't get version.");
                         setVersion(obj, rs);
                         setGeneratedKeys(obj, rs);
                         return true;
@@ -132,6 +510,7 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
                 })
                 .exceptionally(throwable -> {
                     log.info("Couldn't create {}. \nReason: {}", type.getSimpleName(), throwable.getMessage());
+                    unit.registerFailure(obj, throwable);
                     return false;
                 });
     }
@@ -143,6 +522,7 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
 
     @Override
     public CompletableFuture<Boolean> update(T obj) {
+        UnitOfWork unit = UnitOfWork.getCurrent();
         //Updates parents first
         boolean[] parentSuccess = {true};
         getParentMapper().ifPresent(objectDataMapper -> parentSuccess[0] = objectDataMapper.update(obj).join());
@@ -170,7 +550,10 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
         })
                 .thenApply(ps -> {
                     try {
-                        setVersion(obj, ps.getResultSet());
+                        ResultSet rs = ps.getResultSet();
+                        //No row matched the version, so it was changed by someone else since it was read
+                        if (!rs.next()) throw new ConcurrencyException("Version conflict updating " + type.getSimpleName());
+                        setVersion(obj, rs);
                         return true;
                     } catch (SQLException e) {
                         throw new DataMapperException(e);
@@ -178,6 +561,7 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
                 })
                 .exceptionally(throwable -> {
                     log.info("Couldn't update {}. \nReason: {}", type.getSimpleName(), throwable.getMessage());
+                    unit.registerFailure(obj, throwable);
                     return false;
                 });
     }
@@ -221,6 +605,7 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
                 })
                 .exceptionally(throwable -> {
                     log.info("Couldn't delete {}. \nReason: {}", type.getSimpleName(), throwable.getMessage());
+                    unit.registerFailure(obj, throwable);
                     return false;
                 });
     }
@@ -245,7 +630,7 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
             public boolean tryAdvance(Consumer<? super T> action) {
                 try {
                     if (!rs.next()) return false;
-                    action.accept(mapper(rs));
+                    action.accept(mapper(rs::getObject));
                     return true;
                 } catch (SQLException e) {
                     throw new DataMapperException(e);
@@ -261,7 +646,19 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
         });
     }
 
-    private T mapper(ResultSet rs) {
+    /**
+     * Builds a T with the values given by {@code column} for each of the row's columns
+     *
+     * @param column gives the value of the column with the given name
+     */
+    private T mapper(SqlFunction<String, Object> column) {
+        return mapper(column, rowFields);
+    }
+
+    /**
+     * Builds a T with only {@code fields} set, with the values given by {@code column}
+     */
+    private T mapper(SqlFunction<String, Object> column, List<? extends SqlField> fields) {
         try {
             T t = constructor.newInstance();
             Object primaryKey = primaryKeyConstructor != null ? primaryKeyConstructor.newInstance() : null;
@@ -282,18 +679,14 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
             SqlConsumer<SqlField> fieldSetter = f -> {
                 f.field.setAccessible(true);
                 try {
-                    f.field.set(t, rs.getObject(f.name));
+                    f.field.set(t, column.apply(f.name));
                 } catch (IllegalArgumentException e) { //If IllegalArgumentException is caught, is because field is from primaryKeyClass
                     if (primaryKey != null)
-                        f.field.set(primaryKey, rs.getObject(f.name));
+                        f.field.set(primaryKey, column.apply(f.name));
                     else throw new DataMapperException(e);
                 }
             };
-            mapperSettings
-                    .getAllFields()
-                    .stream()
-                    .filter(field -> mapperSettings.getFieldPredicate().test(field.field))
-                    .forEach(fieldSetter.wrap());
+            fields.forEach(fieldSetter.wrap());
 
             return t;
         } catch (IllegalAccessException | InstantiationException | InvocationTargetException e) {
@@ -301,6 +694,55 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
         }
     }
 
+    /**
+     * @return the fields read from each row of T's table and its parents' tables, the externals aren't included
+     */
+    List<SqlField> getRowFields() {
+        return rowFields;
+    }
+
+    /**
+     * Gets the values of T's row, in the order of {@link #getRowFields()}
+     */
+    Object[] toRow(T t) {
+        Object primaryKey = primaryKeyConstructor != null ? t.getIdentityKey() : null;
+        return rowFields
+                .stream()
+                .map(f -> {
+                    f.field.setAccessible(true);
+                    try {
+                        return f.field.get(f.field.getDeclaringClass().isInstance(t) ? t : primaryKey);
+                    } catch (IllegalAccessException e) {
+                        throw new DataMapperException(e);
+                    }
+                })
+                .toArray();
+    }
+
+    /**
+     * Builds a T from the values of a row, in the order of {@link #getRowFields()}, as if it was read from the DB.
+     * The externals aren't populated, see {@link #populateExternals(DomainObject)}
+     */
+    T fromRow(Object[] row) {
+        Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < row.length; i++) values.put(rowFields.get(i).name, row[i]);
+        return mapper(values::get);
+    }
+
+    /**
+     * Builds the key of the row whose id columns have {@code idValues}, in the order of the ids
+     */
+    K getKey(List<Object> idValues) {
+        Map<String, Object> values = new HashMap<>();
+        List<SqlField.SqlFieldId> ids = mapperSettings.getIds();
+        for (int i = 0; i < ids.size(); i++) values.put(ids.get(i).name, idValues.get(i));
+        return mapper(values::get, ids).getIdentityKey();
+    }
+
+    CompletableFuture<Boolean> populateExternals(T t) {
+        return externalHandler.populateExternals(t);
+    }
+
     /**
      * Gets the mapper of the parent of T.
      * If the parent implements DomainObject (meaning it has a mapper), gets its mapper, else returns an empty Optional.
@@ -335,16 +777,19 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
                 .forEach(fieldSqlConsumer.wrap());
     }
 
+    /**
+     * rs.next() should be called before calling this method
+     *
+     * @param obj
+     * @param rs
+     */
     private void setVersion(T obj, ResultSet rs) {
         try {
-            if (rs.next()) {
-                Field version;
-
-                version = type.getDeclaredField("version");
-                version.setAccessible(true);
-                version.set(obj, rs.getLong("version"));
+            Field version;
 
-            } else throw new DataMapperException("Couldn't get version.");
+            version = type.getDeclaredField("version");
+            version.setAccessible(true);
+            version.set(obj, rs.getLong("version"));
         } catch (NoSuchFieldException | IllegalAccessException ignored) {
             log.info("Version field not found on " + type.getSimpleName());
         } catch (SQLException e) {
@@ -360,6 +805,14 @@ public class DataMapper<T extends DomainObject<K>, K> implements Mapper<T, K> {
         }
     }
 
+    public Class<T> getType() {
+        return type;
+    }
+
+    public MapperSettings getMapperSettings() {
+        return mapperSettings;
+    }
+
     public String getSelectQuery() {
         return mapperSettings.getSelectQuery();
     }
@@ -1,53 +1,350 @@
 package com.github.jayield.rapper;
 
+import com.github.jayield.rapper.exceptions.DataMapperException;
 import javafx.util.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import com.github.jayield.rapper.utils.ConnectionManager;
 import com.github.jayield.rapper.utils.DBsPath;
-import com.github.jayield.rapper.utils.SqlSupplier;
+import com.github.jayield.rapper.utils.IdentityMap;
+import com.github.jayield.rapper.utils.MapperRegistry;
+import com.github.jayield.rapper.utils.QueryCache;
+import com.github.jayield.rapper.utils.ReferenceType;
 import com.github.jayield.rapper.utils.UnitOfWork;
 
-import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+import java.util.Set;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 public class DataRepository<T extends DomainObject<K>, K> implements Mapper<T, K> {
 
-    private final ConcurrentMap<K, T> identityMap = new ConcurrentHashMap<>();
+    public static final long DEFAULT_IDENTITY_MAP_SIZE = 10_000;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rapper-revalidation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Logger logger = LoggerFactory.getLogger(DataRepository.class);
+    private final IdentityMap<K, T> identityMap;
     private final Mapper<T, K> mapper;    //Used to communicate with the DB
+    private final Class<T> type;          //Null if the mapper isn't a DataMapper, then the UnitOfWork doesn't keep the objects read
+    private final SecondLevelCache<T, K> secondLevelCache;
+    private volatile QueryCache<K> queryCache = null;
+    private volatile IdentityMapSnapshot<T, K> snapshot = null;
+    private volatile NegativeCache<T, K> negativeCache = null;
+    private ScheduledFuture<?> revalidation = null;
+    private IdentityMapSynchronizer<T, K> synchronizer = null;
+    private volatile List<DataRepository> subclassRepositories = Collections.emptyList();
+    private volatile boolean referenceData = false;
+    private volatile boolean keysFirst = false;
+    private volatile long completeStamp = -1;   //The stamp of the tables when the whole table was loaded, -1 if it isn't
+    private CompletableFuture<Integer> preloading = null;
+    private final AtomicLong contentionCount = new AtomicLong();
+    private final AtomicLong skippedStaleCount = new AtomicLong();
 
     public DataRepository(Mapper<T, K> mapper){
+        this(mapper, new IdentityMap<>(DEFAULT_IDENTITY_MAP_SIZE));
+    }
+
+    /**
+     * Uses an unbounded IdentityMap whose objects are held as given by {@code referenceType}, so the GC can reclaim them
+     * under memory pressure, for entities whose working set is hard to bound by size
+     */
+    public DataRepository(Mapper<T, K> mapper, ReferenceType referenceType){
+        this(mapper, new IdentityMap<>(referenceType));
+    }
+
+    /**
+     * @param identityMap the IdentityMap to use, e.g. bounded by the weight of the objects
+     */
+    public DataRepository(Mapper<T, K> mapper, IdentityMap<K, T> identityMap){
+        this(mapper, identityMap, null);
+    }
+
+    /**
+     * @param secondLevelCache consulted when an object isn't in the IdentityMap, before going to the DB. May be null
+     */
+    public DataRepository(Mapper<T, K> mapper, IdentityMap<K, T> identityMap, SecondLevelCache<T, K> secondLevelCache){
         this.mapper = mapper;
+        this.type = mapper instanceof DataMapper ? ((DataMapper<T, K>) mapper).getType() : null;
+        this.identityMap = identityMap;
+        this.secondLevelCache = secondLevelCache;
     }
 
     public Mapper<T, K> getMapper() {
         return mapper;
     }
 
+    public IdentityMap<K, T> getIdentityMap() {
+        return identityMap;
+    }
+
+    public Optional<SecondLevelCache<T, K>> getSecondLevelCache() {
+        return Optional.ofNullable(secondLevelCache);
+    }
+
+    public Optional<QueryCache<K>> getQueryCache() {
+        return Optional.ofNullable(queryCache);
+    }
+
+    /**
+     * Caches the results of findWhere and findAll, the objects read are then kept in the IdentityMap
+     *
+     * @param queryCache the cache to use, or null to stop caching
+     */
+    public void setQueryCache(QueryCache<K> queryCache) {
+        this.queryCache = queryCache;
+    }
+
+    public Optional<NegativeCache<T, K>> getNegativeCache() {
+        return Optional.ofNullable(negativeCache);
+    }
+
+    /**
+     * Lets findById answer from memory that an object doesn't exist
+     *
+     * @param negativeCache the cache to use, or null to always look up absent objects in the DB
+     */
+    public void setNegativeCache(NegativeCache<T, K> negativeCache) {
+        this.negativeCache = negativeCache;
+    }
+
+    /**
+     * Marks the entity as reference data: a small table, read often and rarely written. The whole table is loaded in a single
+     * query on first access, or by {@link #preload()}, and from then on findAll, findWhere and findById are answered from the
+     * IdentityMap, without going to the DB, until a change to the table is committed, here or by another node whose changes
+     * are received. Then it's loaded again.
+     * Needs a DataMapper and an IdentityMap that keeps all its entries
+     */
+    public void setReferenceData(boolean referenceData) {
+        if (referenceData && !(mapper instanceof DataMapper))
+            throw new DataMapperException("Reference data needs a DataMapper");
+        if (referenceData && !identityMap.keepsAllEntries())
+            throw new DataMapperException("Reference data needs an unbounded IdentityMap of strong references that doesn't expire");
+        this.referenceData = referenceData;
+        completeStamp = -1;
+    }
+
+    public boolean isReferenceData() {
+        return referenceData;
+    }
+
+    /**
+     * Makes findWhere read only the ids and versions of the rows first, giving the objects of the IdentityMap that are up to date
+     * and reading whole only the missing and outdated ones, which are then put in the IdentityMap.
+     * For queries whose results are mostly in the IdentityMap, of entities with wide rows. Needs a DataMapper
+     */
+    public void setKeysFirst(boolean keysFirst) {
+        if (keysFirst && !(mapper instanceof DataMapper))
+            throw new DataMapperException("Reading the keys first needs a DataMapper");
+        this.keysFirst = keysFirst;
+    }
+
+    public boolean isKeysFirst() {
+        return keysFirst;
+    }
+
+    /**
+     * @return true if the IdentityMap holds the whole table, loaded by {@link #preload()}, and the table wasn't changed since
+     */
+    public boolean isComplete() {
+        long stamp = completeStamp;
+        return referenceData && stamp >= 0 && stamp == QueryCache.getTablesStamp(((DataMapper<T, K>) mapper).getType());
+    }
+
+    /**
+     * Loads the whole table into the IdentityMap with a single query, dropping the objects no longer in it.
+     * Only one load runs at a time, a call while one is running gives the one running
+     * @return how many objects were loaded
+     */
+    public synchronized CompletableFuture<Integer> preload() {
+        if (preloading != null && !preloading.isDone()) return preloading;
+        long stamp = QueryCache.getTablesStamp(((DataMapper<T, K>) mapper).getType());
+        preloading = query(this::readAll).thenApply(list -> {
+            Set<K> keys = new HashSet<>();
+            list.forEach(t -> {
+                putOrReplace(t);
+                keys.add(t.getIdentityKey());
+            });
+            identityMap.keys().stream().filter(k -> !keys.contains(k)).forEach(identityMap::remove);
+            completeStamp = stamp;
+            return list.size();
+        });
+        return preloading;
+    }
+
+    /**
+     * With reference data, answers with {@code inMemory} when the IdentityMap holds the whole table, loading it first if
+     * needed, otherwise with {@code fromDB}, in the caller's UnitOfWork
+     */
+    private <R> CompletableFuture<R> withReferenceData(Supplier<R> inMemory, Supplier<CompletableFuture<R>> fromDB) {
+        if (!referenceData) return fromDB.get();
+        if (isComplete()) return CompletableFuture.completedFuture(inMemory.get());
+
+        UnitOfWork unit = UnitOfWork.getCurrent();
+        return preload()
+                .handle((count, throwable) -> throwable == null && isComplete())
+                .thenCompose(complete -> {
+                    if (complete) return CompletableFuture.completedFuture(inMemory.get());
+                    UnitOfWork.setCurrent(unit);
+                    return fromDB.get();
+                });
+    }
+
+    /**
+     * Makes sure there is a UnitOfWork able to register changes.
+     * If there's none, the same one the queries use is created, see {@link #checkReadOnlyUnitOfWork()}. Any other read-only
+     * UnitOfWork can't hold changes, so it is replaced by a new one
+     */
     private void checkUnitOfWork(){
+        UnitOfWork current = UnitOfWork.getCurrent();
+        if(current == null) checkReadOnlyUnitOfWork();
+        else if(current.isReadOnly() && !current.isImplicit()) {
+            ConnectionManager connectionManager = ConnectionManager.getConnectionManager(DBsPath.DEFAULTDB);
+            UnitOfWork.newCurrentAsync(connectionManager::getConnectionAsync);
+        }
+    }
+
+    /**
+     * Used by the queries, if there's no UnitOfWork a read-only one is created, whose connection is released
+     * as soon as the query completes. It becomes a writable one if a change is registered in it afterwards, and once that
+     * change is committed its reads go to a replica only if it already has the version committed, so they see their own writes
+     */
+    private void checkReadOnlyUnitOfWork(){
         if(UnitOfWork.getCurrent() == null) {
             ConnectionManager connectionManager = ConnectionManager.getConnectionManager(DBsPath.DEFAULTDB);
-            SqlSupplier<Connection> connectionSupplier = connectionManager::getConnection;
-            UnitOfWork.newCurrent(connectionSupplier.wrap());
+            UnitOfWork.newCurrentReadOnlyAsync(
+                    committedVersion -> connectionManager.getReadOnlyConnectionAsync(connectionManager.getReadOnlyIsolationLevel(), committedVersion),
+                    connectionManager::getConnectionAsync
+            );
         }
     }
 
     @Override
     public <R> CompletableFuture<List<T>> findWhere(Pair<String, R>... values) {
-        checkUnitOfWork();
-        return mapper.findWhere(values);
+        Supplier<CompletableFuture<List<T>>> fromDB = () -> cachedQuery(getQueryKey(values), () -> query(() -> keysFirst
+                ? ((DataMapper<T, K>) mapper).findWhere(identityMap::get, this::putOrReplace, values)
+                : readWhere(values)), false);
+        Predicate<T> matcher = matcher(values);
+        if (!referenceData || matcher == null) return track(fromDB, matcher);
+        return track(() -> withReferenceData(() -> identityMap.values().stream().filter(matcher).collect(Collectors.toList()), fromDB), matcher);
+    }
+
+    /**
+     * Gives the objects of {@code query} as seen by the current UnitOfWork, with the ones it changed and didn't commit yet,
+     * see {@link UnitOfWork#track(Class, List, Predicate)}
+     * @param matches tells if an object has the values the query looks for, null if that can't be told
+     */
+    protected CompletableFuture<List<T>> track(Supplier<CompletableFuture<List<T>>> query, Predicate<T> matches) {
+        //Without a UnitOfWork nothing was changed, the one the query opens is read-only
+        UnitOfWork unit = UnitOfWork.getCurrent();
+        CompletableFuture<List<T>> result = query.get();
+        return type == null || unit == null ? result : result.thenApply(list -> unit.track(type, list, matches));
+    }
+
+    /**
+     * @return the predicate that tells if an object has {@code values}, as {@link DataMapper#matcher(Pair[])} gives it,
+     * or null if the mapper isn't a DataMapper
+     */
+    protected <R> Predicate<T> matcher(Pair<String, R>... values) {
+        return type != null ? ((DataMapper<T, K>) mapper).matcher(values) : null;
+    }
+
+    /**
+     * @return the columns and values of the query, identifying it in the QueryCache
+     */
+    protected static <R> List<Object> getQueryKey(Pair<String, R>[] values) {
+        List<Object> query = new ArrayList<>(values.length * 2);
+        for (Pair<String, R> value : values) {
+            query.add(value.getKey());
+            query.add(value.getValue());
+        }
+        return query;
+    }
+
+    /**
+     * Runs a query of the mapper, which must complete exceptionally if it fails, see {@link #readAll()}, so the failure
+     * isn't cached as an empty result
+     */
+    protected CompletableFuture<List<T>> query(Supplier<CompletableFuture<List<T>>> query) {
+        checkReadOnlyUnitOfWork();
+        return query.get();
+    }
+
+    /**
+     * Reads all the objects with the mapper. A DataMapper completes exceptionally if the query fails, any other Mapper
+     * must do the same for its failures to be told apart from no results
+     */
+    protected CompletableFuture<List<T>> readAll() {
+        return mapper instanceof DataMapper ? ((DataMapper<T, K>) mapper).readAll() : mapper.findAll();
+    }
+
+    /**
+     * Same as {@link #readAll()} for the objects with {@code values}
+     */
+    protected <R> CompletableFuture<List<T>> readWhere(Pair<String, R>... values) {
+        return mapper instanceof DataMapper ? ((DataMapper<T, K>) mapper).readWhere(values) : mapper.findWhere(values);
+    }
+
+    /**
+     * Serves the result of {@code query} from the QueryCache if it's there and all its objects are in the IdentityMap,
+     * otherwise runs the query and caches its result
+     *
+     * @param key the key of the query, see {@link #getQueryKey(Pair[])}
+     * @param keepObjects whether the objects read are put in the IdentityMap even if there's no QueryCache
+     */
+    protected CompletableFuture<List<T>> cachedQuery(List<Object> key, Supplier<CompletableFuture<List<T>>> query, boolean keepObjects) {
+        QueryCache<K> cache = queryCache;
+        if (cache != null) {
+            List<K> keys = cache.get(key);
+            if (keys != null) {
+                List<T> cached = keys.stream().map(identityMap::get).collect(Collectors.toList());
+                if (!cached.contains(null)) return CompletableFuture.completedFuture(cached);
+                cache.remove(key);
+            }
+        }
+
+        long stamp = cache != null ? cache.getStamp() : 0;
+        return query.get()
+                .thenApply(list -> {
+                    if (cache != null || keepObjects) list.forEach(this::putOrReplace);
+                    if (cache != null) cache.put(key, stamp, list.stream().map(DomainObject::getIdentityKey).collect(Collectors.toList()));
+                    return list;
+                })
+                .exceptionally(throwable -> Collections.emptyList());
     }
 
     @Override
     public CompletableFuture<Optional<T>> findById(K k) {
-        checkUnitOfWork();
+        checkReadOnlyUnitOfWork();
 
-        if(identityMap.containsKey(k)){
-            return CompletableFuture.completedFuture(Optional.of(identityMap.get(k)));
-        }
-        return mapper.findById(k).thenApply(t -> { t.ifPresent(this::putOrReplace); return t; });
+        UnitOfWork unit = UnitOfWork.getCurrent();
+        //The UnitOfWork gives the object it already has, the one it changed, before the IdentityMap and the DB are looked up
+        Function<K, CompletableFuture<Optional<T>>> find = key -> withReferenceData(() -> Optional.ofNullable(identityMap.get(key)), () -> {
+            UnitOfWork.setCurrent(unit);
+            return identityMap.get(key, this::load);
+        });
+        //As the mapper does, a failed read gives an empty result, unless the IdentityMap served a stale object
+        return (type == null ? find.apply(k) : unit.find(type, k, find)).exceptionally(throwable -> Optional.empty());
 
         /*return CompletableFuture.completedFuture(
                 Optional.ofNullable(
@@ -63,12 +360,86 @@ public class DataRepository<T extends DomainObject<K>, K> implements Mapper<T, K
                 });*/
     }
 
+    /**
+     * Called by {@link IdentityMapSnapshot#restore()}, the rows restored are then read before going to the DB
+     */
+    void setSnapshot(IdentityMapSnapshot<T, K> snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Set by the {@link MapperRegistry} when a repository is registered, so a miss doesn't look through every repository
+     * @param repositories the repositories of the subclasses of T, whose objects are also objects of T
+     */
+    public void setSubclassRepositories(List<DataRepository> repositories) {
+        this.subclassRepositories = repositories;
+    }
+
+    /**
+     * Gives the object of a subclass' repository, if it has one. Otherwise reads it from the rows restored from a snapshot
+     * or the SecondLevelCache, if they have it, or else from the DB, unless the NegativeCache knows it doesn't exist.
+     * A failed read completes exceptionally, see {@link #readAll()}, so the IdentityMap doesn't take it as a deleted object
+     */
+    private CompletableFuture<Optional<T>> load(K k) {
+        T inherited = findInSubclasses(k);
+        if (inherited != null) return CompletableFuture.completedFuture(Optional.of(inherited));
+
+        IdentityMapSnapshot<T, K> snapshot = this.snapshot;
+        if (snapshot != null) {
+            CompletableFuture<Optional<T>> restored = snapshot.get(k);
+            if (restored != null) return restored;
+        }
+        if (secondLevelCache != null) {
+            CompletableFuture<Optional<T>> cached = secondLevelCache.get(k);
+            if (cached != null) return cached;
+        }
+
+        NegativeCache<T, K> negativeCache = this.negativeCache;
+        if (negativeCache != null && negativeCache.isAbsent(k)) return CompletableFuture.completedFuture(Optional.empty());
+        long stamp = negativeCache != null ? negativeCache.getStamp() : 0;
+
+        CompletableFuture<Optional<T>> read = mapper instanceof DataMapper ? ((DataMapper<T, K>) mapper).readById(k) : mapper.findById(k);
+        return read.thenApply(t -> {
+            if (t.isPresent()) cacheRow(t.get());
+            else if (negativeCache != null) negativeCache.recordMiss(k, stamp);
+            return t;
+        });
+    }
+
+    /**
+     * An object of a subclass was read with the columns of this class too, so it's given instead of reading them again.
+     * Its versions are then compared by the ones of this class' level
+     * @return the object of {@code k} in the IdentityMap of a subclass' repository, null if there's none
+     */
+    private T findInSubclasses(K k) {
+        for (DataRepository repository : subclassRepositories) {
+            Object t = repository.getIdentityMap().get(k);
+            if (t != null) return (T) t;
+        }
+        return null;
+    }
+
+    /**
+     * Caches the row of {@code t}, read or written, whose restored row, if any, is then outdated
+     */
+    private void cacheRow(T t) {
+        if (secondLevelCache != null) secondLevelCache.put(t);
+        IdentityMapSnapshot<T, K> snapshot = this.snapshot;
+        if (snapshot != null) snapshot.invalidate(t.getIdentityKey());
+        recordPresent(t.getIdentityKey());
+    }
+
+    /**
+     * Called after a UnitOfWork commits the creation of the object of {@code identityKey}, so it's no longer taken as absent
+     */
+    public void recordPresent(K identityKey) {
+        NegativeCache<T, K> negativeCache = this.negativeCache;
+        if (negativeCache != null) negativeCache.recordPresent(identityKey);
+    }
+
     @Override
     public CompletableFuture<List<T>> findAll() {
-        checkUnitOfWork();
-        CompletableFuture<List<T>> completableFuture = mapper.findAll();
-        completableFuture.thenAccept(list -> list.forEach(this::putOrReplace));
-        return completableFuture;
+        return track(() -> withReferenceData(identityMap::values, () -> cachedQuery(Collections.emptyList(), () -> query(this::readAll), true)), t -> true);
     }
 
     @Override
@@ -167,34 +538,192 @@ public class DataRepository<T extends DomainObject<K>, K> implements Mapper<T, K
         return UnitOfWork.getCurrent().commit();
     }
 
+    /**
+     * Checks if the objects of {@code keys} in the IdentityMap are still up to date, reading only their ids and versions.
+     * The ones up to date are kept, and renewed as if they were just read, the ones changed in the DB are read again and
+     * the removed ones leave the IdentityMap. The keys not in the IdentityMap are ignored
+     * @return how many objects were found to be outdated
+     */
+    public CompletableFuture<Integer> revalidate(Collection<K> keys) {
+        checkReadOnlyUnitOfWork();
+        UnitOfWork unit = UnitOfWork.getCurrent();
+        List<T> cached = keys.stream().map(identityMap::get).filter(Objects::nonNull).collect(Collectors.toList());
+        if (cached.isEmpty()) return CompletableFuture.completedFuture(0);
+
+        return findStale(cached).thenCompose(stale -> {
+            Set<T> staleSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            staleSet.addAll(stale);
+            cached.stream()
+                    .filter(t -> !staleSet.contains(t))
+                    .forEach(t -> identityMap.renew(t.getIdentityKey(), t));
+
+            //Only discarded if it's still the object checked, a newer one may have been put meanwhile
+            stale.forEach(t -> {
+                identityMap.computeIfPresent(t.getIdentityKey(), (k, v) -> v == t ? null : v);
+                dropRow(t.getIdentityKey());
+            });
+
+            UnitOfWork.setCurrent(unit);
+            CompletableFuture[] reloads = stale.stream()
+                    .map(t -> findById(t.getIdentityKey()))
+                    .toArray(CompletableFuture[]::new);
+            return CompletableFuture.allOf(reloads).thenApply(v -> stale.size());
+        });
+    }
+
+    /**
+     * Revalidates every object in the IdentityMap, see {@link #revalidate(Collection)}
+     */
+    public CompletableFuture<Integer> revalidate() {
+        return revalidate(identityMap.keys());
+    }
+
+    @Override
+    public CompletableFuture<List<T>> findStale(List<T> objects) {
+        checkReadOnlyUnitOfWork();
+        return mapper.findStale(objects);
+    }
+
+    /**
+     * {@link DataMapper#findStaleRows(Map)}, for the rows an {@link IdentityMapSnapshot} restores without building their objects
+     */
+    CompletableFuture<List<List<Object>>> findStaleRows(Map<List<Object>, List<Long>> versions) {
+        checkReadOnlyUnitOfWork();
+        return ((DataMapper<T, K>) mapper).findStaleRows(versions);
+    }
+
+    /**
+     * Revalidates periodically the objects used most often, in background, with read-only UnitOfWorks of the default DB
+     * @param periodMillis the time between revalidations
+     * @param hotObjects how many of the objects used most often are revalidated each time
+     */
+    public synchronized void startRevalidation(long periodMillis, int hotObjects) {
+        stopRevalidation();
+        revalidation = scheduler.scheduleWithFixedDelay(() -> {
+            UnitOfWork.setCurrent(null);
+            try {
+                revalidate(identityMap.hottest(hotObjects)).join();
+            } catch (RuntimeException e) {
+                logger.info("Couldn't revalidate the IdentityMap\nReason: {}", e.getMessage());
+            } finally {
+                UnitOfWork.setCurrent(null);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keeps the IdentityMap up to date with {@code synchronizer} instead, polling every {@code periodMillis}
+     */
+    public synchronized void startSynchronization(IdentityMapSynchronizer<T, K> synchronizer, long periodMillis) {
+        stopRevalidation();
+        this.synchronizer = synchronizer;
+        synchronizer.start(periodMillis);
+    }
+
+    /**
+     * Stops the revalidation or synchronization started, if any
+     */
+    public synchronized void stopRevalidation() {
+        if (revalidation != null) revalidation.cancel(false);
+        revalidation = null;
+        if (synchronizer != null) synchronizer.stop();
+        synchronizer = null;
+    }
+
     private void putOrReplace(T item){
         K key = item.getIdentityKey();
         identityMap.compute(key, (k,v)-> item);
+        cacheRow(item);
     }
 
     public void invalidate(K identityKey) {
         identityMap.remove(identityKey);
+        dropRow(identityKey);
     }
 
+    /**
+     * Removes the object of {@code identityKey} if its version is older than {@code version}, used when another node
+     * committed that version
+     */
+    public void invalidate(K identityKey, long version) {
+        identityMap.computeIfPresent(identityKey, (k, t) -> getVersion(t) < version ? null : t);
+        dropRow(identityKey);
+    }
+
+    /**
+     * Puts back {@code t} after a rollback. The SecondLevelCache may hold the row that was rolled back, so it's dropped
+     */
     public void validate(K identityKey, T t) {
         identityMap.put(identityKey, t);
+        dropRow(identityKey);
+    }
+
+    /**
+     * Drops the row of {@code identityKey} from the SecondLevelCache and the rows restored from a snapshot
+     */
+    private void dropRow(K identityKey) {
+        //The object may have been dropped from the IdentityMap, which may then no longer hold the whole table
+        completeStamp = -1;
+        if (secondLevelCache != null) secondLevelCache.invalidate(identityKey);
+        IdentityMapSnapshot<T, K> snapshot = this.snapshot;
+        if (snapshot != null) snapshot.invalidate(identityKey);
+        //May have been created by another node
+        recordPresent(identityKey);
     }
 
+    /**
+     * Puts {@code obj} in the IdentityMap unless it already holds the same or a newer version, in a single atomic step,
+     * so the IdentityMap never goes back to an older version and concurrent writers never wait for each other to retry
+     * @return true if {@code obj} was put, false if a newer version was kept
+     */
     public boolean tryReplace(T obj){
-        long target = System.currentTimeMillis() + (long) 2000;
-        long remaining = target - System.currentTimeMillis();
-
-        while(remaining >= 0){
-            T observedObj = identityMap.putIfAbsent(obj.getIdentityKey(), obj);
-            if(observedObj == null) return true;
-            if(observedObj.getVersion() < obj.getVersion()) {
-                if(identityMap.replace(obj.getIdentityKey(), observedObj, obj))
-                    return true;
+        K key = obj.getIdentityKey();
+        boolean[] replaced = { false };
+        identityMap.compute(key, (k, current) -> {
+            if (current == null || isNewer(obj, current)) {
+                replaced[0] = true;
+                return obj;
             }
-            else return true; //TODO should we log a message saying a newer version is already present in the identityMap?
-            remaining = target - System.currentTimeMillis();
-            Thread.yield();
+            //Another write put a later version meanwhile, the same version is only the object being put again
+            if (isNewer(current, obj)) contentionCount.incrementAndGet();
+            return current;
+        });
+
+        if (replaced[0]) cacheRow(obj);
+        else {
+            skippedStaleCount.incrementAndGet();
+            //The newer version was cached when it was put, but the object is still known to exist
+            recordPresent(key);
         }
-        return false;
+        return replaced[0];
+    }
+
+    /**
+     * The IdentityMap may hold objects of subclasses, see {@link #findInSubclasses(Object)}, so their versions are the ones
+     * of T's level, when the mapper knows them
+     */
+    private long getVersion(T t) {
+        return mapper instanceof DataMapper ? ((DataMapper<T, K>) mapper).getVersion(t) : t.getVersion();
+    }
+
+    /**
+     * Compares the versions of every level when the mapper knows them, and only {@link DomainObject#getVersion()} otherwise
+     */
+    private boolean isNewer(T obj, T than) {
+        return mapper instanceof DataMapper ? ((DataMapper<T, K>) mapper).isNewer(obj, than) : obj.getVersion() > than.getVersion();
+    }
+
+    /**
+     * @return how many times {@link #tryReplace(DomainObject)} found a newer version of the object, put by another write
+     */
+    public long getContentionCount() {
+        return contentionCount.get();
+    }
+
+    /**
+     * @return how many objects {@link #tryReplace(DomainObject)} didn't put because the IdentityMap already held a newer version
+     */
+    public long getSkippedStaleCount() {
+        return skippedStaleCount.get();
     }
 }
@@ -1,9 +1,9 @@
 package com.github.jayield.rapper;
 
 import com.github.jayield.rapper.exceptions.DataMapperException;
+import com.github.jayield.rapper.utils.Lazy;
 import com.github.jayield.rapper.utils.MapperRegistry;
 import com.github.jayield.rapper.utils.SQLUtils;
-import com.github.jayield.rapper.utils.SqlConsumer;
 import com.github.jayield.rapper.utils.SqlField;
 import javafx.util.Pair;
 import org.slf4j.Logger;
@@ -15,7 +15,6 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -25,17 +24,17 @@ class ExternalsHandler<T extends DomainObject<K>, K> {
     private final List<SqlField.SqlFieldId> ids;
     private final List<SqlField.SqlFieldExternal> externals;
     private final Constructor<?> primaryKeyConstructor;
-    private final Field[] primaryKeyDeclaredFields;
 
-    ExternalsHandler(List<SqlField.SqlFieldId> ids, List<SqlField.SqlFieldExternal> externals, Class<?> primaryKey, Constructor<?> primaryKeyConstructor) {
+    ExternalsHandler(List<SqlField.SqlFieldId> ids, List<SqlField.SqlFieldExternal> externals, Constructor<?> primaryKeyConstructor) {
         this.ids = ids;
         this.externals = externals;
         this.primaryKeyConstructor = primaryKeyConstructor;
-        primaryKeyDeclaredFields = primaryKey != null ? primaryKey.getDeclaredFields() : null;
     }
 
     /**
-     * Will set the fields marked with @ColumnName by querying the database
+     * Will set the fields marked with @ColumnName.
+     * The collections are set by querying the database, the Suppliers are set with a {@link Lazy} that only queries it
+     * when the external objects are first asked for
      *
      * @param t
      */
@@ -49,16 +48,54 @@ class ExternalsHandler<T extends DomainObject<K>, K> {
     }
 
     private CompletableFuture<Boolean> populateExternal(T t, SqlField.SqlFieldExternal sqlFieldExternal) {
+        if (sqlFieldExternal.fType.isAssignableFrom(Collection.class))
+            return getExternals(t, sqlFieldExternal)
+                    .thenApply(domainObjects -> {
+                        setExternal(t, domainObjects, sqlFieldExternal.field);
+                        return true;
+                    })
+                    .exceptionally(throwable -> {
+                        logger.info("Couldn't populate externals of {}. \nReason: {}", t.getClass().getSimpleName(), throwable.getMessage());
+                        return false;
+                    });
+
+        if (sqlFieldExternal.fType.isAssignableFrom(Lazy.class)) {
+            //Runs with the UnitOfWork current when it's first asked for, the external repository opens a read-only one if there's none
+            Lazy<List<? extends DomainObject>> lazy = new Lazy<>(() -> {
+                DataRepository externalRepository = MapperRegistry.getRepository(sqlFieldExternal.type);
+                CompletableFuture<List<? extends DomainObject>> externals = externalRepository.query(() -> getExternals(t, sqlFieldExternal));
+                return externals.whenComplete((domainObjects, throwable) -> {
+                    if (throwable != null)
+                        logger.info("Couldn't populate externals of {}. \nReason: {}", t.getClass().getSimpleName(), throwable.getMessage());
+                });
+            });
+            setExternal(t, lazy, sqlFieldExternal.field);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        logger.info("Couldn't populate externals of {}. \nReason: unsupported type {}", t.getClass().getSimpleName(), sqlFieldExternal.fType.getSimpleName());
+        return CompletableFuture.completedFuture(false);
+    }
+
+    /**
+     * Queries the external objects referenced by T
+     *
+     * @param t
+     * @param sqlFieldExternal
+     * @return
+     */
+    private CompletableFuture<List<? extends DomainObject>> getExternals(T t, SqlField.SqlFieldExternal sqlFieldExternal) {
         try {
-            Mapper<? extends DomainObject, ?> externalMapper = MapperRegistry.getRepository(sqlFieldExternal.type).getMapper();
+            DataRepository<? extends DomainObject, ?> externalRepository = MapperRegistry.getRepository(sqlFieldExternal.type);
 
             Stream<Object> idValues = ids
                     .stream()
                     .map(sqlFieldId -> getPrimaryKeyValue(t, sqlFieldId.field));
 
+            //The repository's findWhere is used so its results may come from its QueryCache
             return sqlFieldExternal.table.equals(ColumnName.class.getDeclaredMethod("table").getDefaultValue())
-                    ? populateWithDataMapper(t, sqlFieldExternal, externalMapper, idValues.iterator())
-                    : populateWithExternalTable(t, sqlFieldExternal, externalMapper, idValues.iterator());
+                    ? getWithDataMapper(sqlFieldExternal, externalRepository, idValues.iterator())
+                    : getWithExternalTable(sqlFieldExternal, externalRepository.getMapper(), idValues.iterator());
         } catch (NoSuchMethodException e) {
             throw new DataMapperException(e);
         }
@@ -67,66 +104,75 @@ class ExternalsHandler<T extends DomainObject<K>, K> {
     /**
      * Will call the external object's mapper's findWhere with T's ids to find the external objects who are referenced by T
      *
-     * @param t
      * @param sqlFieldExternal
      * @param mapper
      * @param idValues
      */
-    private CompletableFuture<Boolean> populateWithDataMapper(T t, SqlField.SqlFieldExternal sqlFieldExternal, Mapper<? extends DomainObject, ?> mapper, Iterator<Object> idValues) {
+    private CompletableFuture<List<? extends DomainObject>> getWithDataMapper(SqlField.SqlFieldExternal sqlFieldExternal, Mapper<? extends DomainObject, ?> mapper, Iterator<Object> idValues) {
         Pair<String, Object>[] pairs = Arrays.stream(sqlFieldExternal.columnsNames)
                 .map(str -> new Pair<>(str, idValues.next()))
                 .toArray(Pair[]::new);
 
-        return mapper.findWhere(pairs)
-                .thenApply(domainObjects -> {
-                    setExternal(t, domainObjects, sqlFieldExternal.field, sqlFieldExternal.fType);
-                    return true;
-                })
-                .exceptionally(throwable -> {
-                    logger.info("Couldn't populate externals of {}. \nReason: {}", t.getClass().getSimpleName(), throwable.getMessage());
-                    return false;
-                });
+        return mapper.findWhere(pairs).thenApply(domainObjects -> domainObjects);
     }
 
     /**
      * Used when it's a N-N relation.
-     * This method will get the generated selectQuery in SqlFieldExternal, to get from the relation table the ids of the external objects.
+     * This method will get from the relation table the ids of the external objects, with the generated selectQuery in
+     * SqlFieldExternal, or from the table's RelationCache if it has one.
      * With this, it will call external object's mapper's getById with those ids and create a list with the results.
-     * That List will be setted in the SqlFieldExternal
      *
      * @param <V>
-     * @param t
      * @param sqlFieldExternal
      * @param mapper
      * @param idValues
      */
-    private <V> CompletableFuture<Boolean> populateWithExternalTable(T t, SqlField.SqlFieldExternal sqlFieldExternal, Mapper<? extends DomainObject, V> mapper, Iterator<Object> idValues) {
-        return SQLUtils.execute(sqlFieldExternal.selectTableQuery, stmt -> {
+    private <V> CompletableFuture<List<? extends DomainObject>> getWithExternalTable(SqlField.SqlFieldExternal sqlFieldExternal, Mapper<? extends DomainObject, V> mapper, Iterator<Object> idValues) {
+        List<Object> values = new ArrayList<>();
+        idValues.forEachRemaining(values::add);
+
+        return getRelatedRows(sqlFieldExternal, values)
+                .thenCompose(rows -> {
+                    List<CompletableFuture<? extends DomainObject>> domainObjects = getExternalObjects(mapper, getIds(mapper, rows))
+                            .collect(Collectors.toList());
+                    return CompletableFuture
+                            .allOf(domainObjects.toArray(new CompletableFuture[0]))
+                            .thenApply(v -> domainObjects.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+                });
+    }
+
+    /**
+     * Gets the values of the foreign columns in the rows of the relation table with {@code values}, from the table's
+     * RelationCache if it has them
+     *
+     * @param sqlFieldExternal
+     * @param values
+     * @return
+     */
+    private CompletableFuture<List<List<Object>>> getRelatedRows(SqlField.SqlFieldExternal sqlFieldExternal, List<Object> values) {
+        RelationCache relationCache = MapperRegistry.getRelationCache(sqlFieldExternal.table);
+        List<List<Object>> cached = relationCache != null
+                ? relationCache.get(sqlFieldExternal.columnsNames, sqlFieldExternal.foreignNames, values)
+                : null;
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        long stamp = relationCache != null ? relationCache.getStamp() : 0;
+
+        return SQLUtils.query(sqlFieldExternal.selectTableQuery, stmt -> {
             try {
-                for (int i = 1; idValues.hasNext(); i++) stmt.setObject(i, idValues.next());
+                for (int i = 0; i < values.size(); i++) stmt.setObject(i + 1, values.get(i));
             } catch (SQLException e) {
                 throw new DataMapperException(e);
             }
-        })
-                .thenApply(preparedStatement -> {
-                    try {
-                        return getExternalObjects(mapper, sqlFieldExternal.foreignNames, preparedStatement.getResultSet());
-                    } catch (SQLException e) {
-                        throw new DataMapperException(e);
-                    }
-                })
-                .thenApply(domainObjects -> {
-                            List<? extends DomainObject> objects = domainObjects
-                                    .map(CompletableFuture::join)
-                                    .collect(Collectors.toList());
-                            setExternal(t, objects, sqlFieldExternal.field, sqlFieldExternal.fType);
-                            return true;
-                        }
-                )
-                .exceptionally(throwable -> {
-                    logger.info("Couldn't populate externals of {}. \nReason: {}", t.getClass().getSimpleName(), throwable.getMessage());
-                    return false;
-                });
+        }, preparedStatement -> {
+            try {
+                List<List<Object>> rows = getRows(preparedStatement.getResultSet(), sqlFieldExternal.foreignNames);
+                if (relationCache != null)
+                    relationCache.put(sqlFieldExternal.columnsNames, sqlFieldExternal.foreignNames, values, stamp, rows);
+                return rows;
+            } catch (SQLException e) {
+                throw new DataMapperException(e);
+            }
+        });
     }
 
     /**
@@ -157,17 +203,14 @@ class ExternalsHandler<T extends DomainObject<K>, K> {
     }
 
     /**
-     * It will get the external object's Ids and call its mapper to obtain all external objects
+     * It will call the external object's mapper to obtain all external objects
      *
      * @param <V>
      * @param mapper
-     * @param foreignNames
-     * @param resultSet
+     * @param ids
      * @return
      */
-    private <N extends DomainObject<V>, V> Stream<CompletableFuture<N>> getExternalObjects(Mapper<N, V> mapper, String[] foreignNames, ResultSet resultSet) {
-        List<V> ids = getIds(resultSet, foreignNames);
-
+    private <N extends DomainObject<V>, V> Stream<CompletableFuture<N>> getExternalObjects(Mapper<N, V> mapper, List<V> ids) {
         return ids
                 .stream()
                 .map(mapper::findById)
@@ -179,58 +222,51 @@ class ExternalsHandler<T extends DomainObject<K>, K> {
     }
 
     /**
-     * Get external's object ids from external table
+     * Get the values of the foreign columns from the rows of the external table
      *
      * @param rs
      * @param foreignNames
      * @return
      * @throws SQLException
      */
-    private <V> List<V> getIds(ResultSet rs, String[] foreignNames) {
-        try {
-            List<V> results = new ArrayList<>();
-
-            SqlConsumer<List<V>> consumer;
-            if(primaryKeyConstructor == null)
-                consumer = list1 -> {
-                    for (String foreignName : foreignNames) list1.add((V) rs.getObject(foreignName));
-                };
-            else consumer = list -> {
-                Object newInstance = primaryKeyConstructor.newInstance();
-                for (int i = 0; i < foreignNames.length; i++)
-                    primaryKeyDeclaredFields[i].set(newInstance, rs.getObject(foreignNames[i]));
-                list.add((V) newInstance);
-            };
-
-            while (rs.next()) {
-                consumer.wrap().accept(results);
-            }
-            return results;
-        } catch (SQLException e) {
-            throw new DataMapperException(e);
+    private List<List<Object>> getRows(ResultSet rs, String[] foreignNames) throws SQLException {
+        List<List<Object>> rows = new ArrayList<>();
+        while (rs.next()) {
+            List<Object> row = new ArrayList<>(foreignNames.length);
+            for (String foreignName : foreignNames) row.add(rs.getObject(foreignName));
+            rows.add(row);
         }
+        return rows;
     }
 
     /**
-     * Sets the field of T with the List passed in the parameters
-     * The field must be a collection or a Supplier
+     * Get external's object ids from the values of the foreign columns, built by the external object's mapper
+     *
+     * @param mapper
+     * @param rows
+     * @return
+     */
+    private <V> List<V> getIds(Mapper<? extends DomainObject, V> mapper, List<List<Object>> rows) {
+        if (mapper instanceof DataMapper) {
+            DataMapper<?, V> dataMapper = (DataMapper<?, V>) mapper;
+            return rows.stream().map(dataMapper::getKey).collect(Collectors.toList());
+        }
+        //Without its DataMapper, only the ids of a single column can be built
+        return rows.stream().map(row -> (V) row.get(0)).collect(Collectors.toList());
+    }
+
+    /**
+     * Sets the field of T with the List passed in the parameters, or with the Lazy that loads it
      *
      * @param t
-     * @param domainObjects
+     * @param value
      * @param field
-     * @param fieldType
      * @throws DataMapperException
      */
-    private void setExternal(T t, List<? extends DomainObject> domainObjects, Field field, Class<?> fieldType) {
+    private void setExternal(T t, Object value, Field field) {
         try {
-            if (fieldType.isAssignableFrom(Collection.class)) {
-                field.setAccessible(true);
-                field.set(t, domainObjects);
-            } else if (fieldType.isAssignableFrom(Supplier.class)) {
-                Supplier<List<? extends DomainObject>> supplier = () -> domainObjects;
-                field.setAccessible(true);
-                field.set(t, supplier);
-            } else throw new DataMapperException("Couldn't set external, unsupported type");
+            field.setAccessible(true);
+            field.set(t, value);
         } catch (IllegalAccessException e) {
             throw new DataMapperException(e);
         }
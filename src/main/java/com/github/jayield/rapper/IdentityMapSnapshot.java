@@ -0,0 +1,350 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.exceptions.DataMapperException;
+import com.github.jayield.rapper.utils.RowCodec;
+import com.github.jayield.rapper.utils.SqlField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Snapshot of the IdentityMap of a DataRepository in a memory-mapped file, so a node that restarts doesn't have to read
+ * its objects again from the DB.
+ * The file holds the rows of the objects, in the form of {@link RowCodec}, each after a key with the values of its ids
+ * and the versions of all its levels. Its header has a fingerprint of the columns of the entity's MapperSettings, a snapshot
+ * written for other columns is ignored.
+ * When restored, only the keys are read, and the versions are checked against the DB in bulk, as {@link DataRepository#revalidate()}
+ * does, and the outdated rows are dropped. The others stay in the mapped file and are only turned into objects, with their
+ * externals, when first read through the DataRepository, so restoring doesn't wait for the objects to be built.
+ */
+public class IdentityMapSnapshot<T extends DomainObject<K>, K> {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdentityMapSnapshot.class);
+    private static final int MAGIC = 0x52505332;    //"RPS2"
+    private static final int HEADER_SIZE = 4 + 8 + 4;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rapper-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Entry {
+        private final int position;     //Of the key, where the entry starts
+        private final int rowPosition;
+        private final int end;
+
+        private Entry(int position, int rowPosition, int end) {
+            this.position = position;
+            this.rowPosition = rowPosition;
+            this.end = end;
+        }
+    }
+
+    private final DataRepository<T, K> repository;
+    private final DataMapper<T, K> mapper;
+    private final Path file;
+    private final RowCodec codec;
+    private final RowCodec keyCodec;
+    private final int[] keyIndexes;     //Of the ids and then the versions, in the row
+    private final int idCount;
+    private final long fingerprint;
+    private final Map<List<Object>, Entry> entries = new ConcurrentHashMap<>();    //The rows restored that weren't read yet, by their id values
+    private ByteBuffer restored = null;
+    private ScheduledFuture<?> saving = null;
+
+    /**
+     * @param repository the DataRepository whose IdentityMap is saved and restored
+     * @param mapper the DataMapper of {@code repository}, that gives the entity's columns
+     * @param file where the snapshot is kept
+     */
+    public IdentityMapSnapshot(DataRepository<T, K> repository, DataMapper<T, K> mapper, Path file) {
+        this.repository = repository;
+        this.mapper = mapper;
+        this.file = file;
+        List<SqlField> rowFields = mapper.getRowFields();
+        this.codec = new RowCodec(rowFields.stream().map(f -> f.field.getType()).collect(Collectors.toList()), false);
+
+        List<SqlField> keyFields = new ArrayList<>(mapper.getMapperSettings().getIds());
+        this.idCount = keyFields.size();
+        keyFields.addAll(mapper.getMapperSettings().getVersions());
+        this.keyIndexes = keyFields.stream().mapToInt(rowFields::indexOf).toArray();
+        if (Arrays.stream(keyIndexes).anyMatch(i -> i < 0))
+            throw new DataMapperException("The ids and versions of " + mapper.getType().getSimpleName() + " aren't all columns of its rows");
+        this.keyCodec = new RowCodec(keyFields.stream().map(f -> f.field.getType()).collect(Collectors.toList()), false);
+
+        this.fingerprint = rowFields.stream()
+                .map(f -> f.name + ':' + f.field.getType().getName())
+                .collect(Collectors.joining(",", mapper.getType().getName() + '(', ")"))
+                .hashCode();
+    }
+
+    /**
+     * Writes the objects in the IdentityMap, and the rows restored that weren't read yet, to the snapshot file.
+     * It's written to a temporary file first, that then replaces the snapshot, so a snapshot is never left half written.
+     * The snapshot restored is unmapped before, since a file still mapped can't be replaced on some platforms, e.g. Windows,
+     * and the rows not read yet are then read from the new one
+     * @return how many rows were written
+     */
+    public synchronized int save() {
+        List<byte[]> records = new ArrayList<>();
+        List<List<Object>> unread = new ArrayList<>();
+        Set<List<Object>> saved = new HashSet<>();
+        for (T t : repository.getIdentityMap().values()) {
+            Object[] row = mapper.toRow(t);
+            Object[] key = new Object[keyIndexes.length];
+            for (int i = 0; i < key.length; i++) key[i] = row[keyIndexes[i]];
+            records.add(record(keyCodec.encode(key), codec.encode(row)));
+            saved.add(mapper.getIdValues(t.getIdentityKey()));
+        }
+        int identityMapRows = records.size();
+        entries.forEach((idValues, entry) -> {
+            if (saved.contains(idValues)) return;
+            byte[] record = new byte[entry.end - entry.position];
+            ByteBuffer view = restored.duplicate();
+            view.position(entry.position);
+            view.get(record);
+            records.add(record);
+            unread.add(idValues);
+        });
+
+        long size = HEADER_SIZE + records.stream().mapToLong(record -> record.length).sum();
+        if (size > Integer.MAX_VALUE) throw new DataMapperException("The snapshot of " + mapper.getType().getSimpleName() + " is too big");
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putInt(MAGIC);
+                buffer.putLong(fingerprint);
+                buffer.putInt(records.size());
+                records.forEach(buffer::put);
+                buffer.force();
+                unmap(buffer);
+            }
+
+            if (restored != null) {
+                unmap(restored);
+                restored = null;
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            //The rows not read yet are gone with the snapshot unmapped
+            if (restored == null) entries.clear();
+            throw new DataMapperException(e);
+        }
+        remap(unread, identityMapRows);
+        return records.size();
+    }
+
+    private static byte[] record(byte[] key, byte[] row) {
+        return ByteBuffer.allocate(4 + key.length + 4 + row.length)
+                .putInt(key.length)
+                .put(key)
+                .putInt(row.length)
+                .put(row)
+                .array();
+    }
+
+    /**
+     * Maps the snapshot again after it was replaced by {@link #save()}, for the rows restored not read yet, which are kept
+     * @param unread the id values of those rows, in the order they were written
+     * @param skipped how many rows were written before them
+     */
+    private void remap(List<List<Object>> unread, int skipped) {
+        if (unread.isEmpty()) {
+            entries.clear();
+            return;
+        }
+        try {
+            ByteBuffer buffer = map();
+            buffer.position(HEADER_SIZE);
+            for (int i = 0; i < skipped; i++) next(buffer);
+            for (List<Object> idValues : unread) {
+                Entry entry = next(buffer);
+                entries.computeIfPresent(idValues, (k, old) -> entry);
+            }
+            restored = buffer;
+        } catch (IOException | RuntimeException e) {
+            logger.info("Couldn't map the snapshot {} again, the rows restored not read yet are dropped\nReason: {}", file, e.getMessage());
+            entries.clear();
+        }
+    }
+
+    /**
+     * Skips the record at the position of {@code buffer}
+     * @return the entry of that record
+     */
+    private static Entry next(ByteBuffer buffer) {
+        int position = buffer.position();
+        int keyLength = buffer.getInt();
+        buffer.position(buffer.position() + keyLength);
+        int rowLength = buffer.getInt();
+        int rowPosition = buffer.position();
+        buffer.position(rowPosition + rowLength);
+        return new Entry(position, rowPosition, buffer.position());
+    }
+
+    private ByteBuffer map() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Unmaps {@code buffer} now, instead of when it's garbage collected. It mustn't be used afterwards
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            //Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            //Java 8
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (ReflectiveOperationException | RuntimeException e1) {
+                logger.info("Couldn't unmap a snapshot\nReason: {}", e1.getMessage());
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.info("Couldn't unmap a snapshot\nReason: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Maps the snapshot file and checks the versions of its rows against the DB, keeping the ones up to date to be read
+     * through the DataRepository. Should be called before the DataRepository starts being used
+     * @return how many rows were kept, 0 if there's no snapshot, it's of other columns or the versions couldn't be read
+     */
+    public CompletableFuture<Integer> restore() {
+        if (!Files.exists(file)) return CompletableFuture.completedFuture(0);
+
+        ByteBuffer buffer;
+        try {
+            buffer = map();
+        } catch (IOException e) {
+            throw new DataMapperException(e);
+        }
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getLong() != fingerprint) {
+            logger.info("Ignoring the snapshot {}, it isn't of the columns of {}", file, mapper.getType().getSimpleName());
+            unmap(buffer);
+            return CompletableFuture.completedFuture(0);
+        }
+
+        //Only the keys are decoded, a row is only decoded when its object is first read
+        Map<List<Object>, Entry> read = new HashMap<>();
+        Map<List<Object>, List<Long>> versions = new HashMap<>();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            Entry entry = next(buffer);
+            byte[] key = new byte[entry.rowPosition - 4 - (entry.position + 4)];
+            ByteBuffer view = buffer.duplicate();
+            view.position(entry.position + 4);
+            view.get(key);
+            Object[] keyValues = keyCodec.decode(key);
+
+            List<Object> idValues = new ArrayList<>();
+            for (int j = 0; j < idCount; j++) idValues.add(DataMapper.normalize(keyValues[j]));
+            List<Long> rowVersions = new ArrayList<>();
+            for (int j = idCount; j < keyValues.length; j++) rowVersions.add((Long) keyValues[j]);
+            read.put(idValues, entry);
+            versions.put(idValues, rowVersions);
+        }
+
+        return repository.findStaleRows(versions)
+                .thenApply(stale -> {
+                    stale.forEach(read::remove);
+                    synchronized (this) {
+                        restored = buffer;
+                        entries.putAll(read);
+                    }
+                    repository.setSnapshot(this);
+                    return read.size();
+                })
+                .exceptionally(throwable -> {
+                    logger.info("Couldn't check the versions of the snapshot {}\nReason: {}", file, throwable.getMessage());
+                    return 0;
+                });
+    }
+
+    /**
+     * Builds the object of a restored row, which is then no longer kept by the snapshot
+     * @return the object, or null if there isn't a restored row of {@code key}
+     */
+    CompletableFuture<Optional<T>> get(K key) {
+        byte[] row;
+        //Read while holding the lock, so the snapshot isn't unmapped meanwhile by save()
+        synchronized (this) {
+            Entry entry = entries.remove(mapper.getIdValues(key));
+            if (entry == null) return null;
+            row = new byte[entry.end - entry.rowPosition];
+            ByteBuffer view = restored.duplicate();
+            view.position(entry.rowPosition);
+            view.get(row);
+        }
+        T t = mapper.fromRow(codec.decode(row));
+        return mapper.populateExternals(t).thenApply(populated -> Optional.of(t));
+    }
+
+    void invalidate(K key) {
+        entries.remove(mapper.getIdValues(key));
+    }
+
+    /**
+     * @return how many restored rows weren't read yet
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Saves the snapshot periodically, in background
+     */
+    public synchronized void start(long periodMillis) {
+        stop();
+        saving = scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                save();
+            } catch (RuntimeException e) {
+                logger.info("Couldn't save the snapshot {}\nReason: {}", file, e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (saving != null) saving.cancel(false);
+        saving = null;
+    }
+}
@@ -0,0 +1,165 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.exceptions.DataMapperException;
+import com.github.jayield.rapper.utils.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the IdentityMap of a DataRepository up to date with the changes committed by other nodes to the same DB.
+ * It tracks the highest version already seen, the watermark, and periodically reads only the rows written since then,
+ * up to the highest stable version, given by {@link Dialect#getStableVersionQuery()}. The objects read replace the ones in
+ * the IdentityMap through {@link DataRepository#tryReplace(DomainObject)}, so an object is never replaced by an older version.
+ * The rows of objects not in the IdentityMap aren't kept, they're read when needed. Removed rows are found as set by
+ * {@link #setDeleteDetection(DeleteDetection, int)}.
+ * The first poll only sets the watermark and revalidates the objects already in the IdentityMap.
+ */
+public class IdentityMapSynchronizer<T extends DomainObject<K>, K> {
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rapper-synchronizer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Logger logger = LoggerFactory.getLogger(IdentityMapSynchronizer.class);
+    private final DataRepository<T, K> repository;
+    private final DataMapper<T, K> mapper;
+    private final Class<?> type;
+    private final ConnectionManager connectionManager;
+
+    private volatile long watermark = -1;
+    private volatile DeleteDetection deleteDetection = DeleteDetection.NONE;
+    private volatile int deleteCheckPolls = 1;
+    private int polls = 0;
+    private ScheduledFuture<?> task = null;
+
+    /**
+     * @param mapper the mapper that reads the changed rows, of the same entity as the repository
+     * @param connectionManager the DB where the changes are committed
+     */
+    public IdentityMapSynchronizer(DataRepository<T, K> repository, DataMapper<T, K> mapper, Class<T> type, ConnectionManager connectionManager) {
+        this.repository = repository;
+        this.mapper = mapper;
+        this.type = type;
+        this.connectionManager = connectionManager;
+    }
+
+    /**
+     * @param everyPolls with {@link DeleteDetection#REVALIDATE}, how many polls go by between each search of removed rows
+     */
+    public void setDeleteDetection(DeleteDetection deleteDetection, int everyPolls) {
+        if (everyPolls <= 0) throw new IllegalArgumentException("everyPolls must be positive");
+        this.deleteDetection = deleteDetection;
+        this.deleteCheckPolls = everyPolls;
+    }
+
+    /**
+     * @return the highest version already applied, -1 before the first poll
+     */
+    public long getWatermark() {
+        return watermark;
+    }
+
+    public synchronized void start(long periodMillis) {
+        stop();
+        task = scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                poll().join();
+            } catch (RuntimeException e) {
+                logger.info("Couldn't synchronize {}\nReason: {}", type.getSimpleName(), e.getMessage());
+            }
+        }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task != null) task.cancel(false);
+        task = null;
+    }
+
+    /**
+     * Reads the rows changed since the last poll and applies them to the IdentityMap
+     * @return how many objects of the IdentityMap were replaced or removed
+     */
+    public synchronized CompletableFuture<Integer> poll() {
+        UnitOfWork previous = UnitOfWork.getCurrent();
+        try {
+            long from = watermark;
+            long to = onReadOnlyUnit(connectionManager::getReadOnlyConnection, () -> readStableVersion()).join();
+            if (from < 0) {
+                watermark = to;
+                return onReadOnlyUnit(connectionManager::getReadOnlyConnection, repository::revalidate);
+            }
+
+            int applied = 0;
+            if (to > from) {
+                //Read from a replica only if it already has every version up to the stable one
+                List<T> changed = onReadOnlyUnit(
+                        () -> connectionManager.getReadOnlyConnection(connectionManager.getReadOnlyIsolationLevel(), to),
+                        () -> mapper.findChanged(from, to)
+                ).join();
+                applied = apply(changed);
+                watermark = to;
+            }
+
+            if (deleteDetection == DeleteDetection.REVALIDATE && ++polls % deleteCheckPolls == 0) {
+                int removed = onReadOnlyUnit(connectionManager::getReadOnlyConnection, repository::revalidate).join();
+                applied += removed;
+            }
+            return CompletableFuture.completedFuture(applied);
+        } finally {
+            UnitOfWork.setCurrent(previous);
+        }
+    }
+
+    private int apply(List<T> changed) {
+        if (changed.isEmpty()) return 0;
+        QueryCache.invalidateTables(type);
+
+        int applied = 0;
+        for (T t : changed) {
+            K key = t.getIdentityKey();
+            T current = repository.getIdentityMap().get(key);
+            if (current != null) {
+                //Includes the changes committed by this node, which are already there. Every level is compared, since a
+                //change to a parent's row alone doesn't change the version of the type's own
+                if (!mapper.isNewer(t, current)) continue;
+                mapper.populateExternals(t).join();
+                if (repository.tryReplace(t)) applied++;
+            } else {
+                repository.getSecondLevelCache().ifPresent(cache -> cache.invalidate(key));
+            }
+        }
+        return applied;
+    }
+
+    private CompletableFuture<Long> readStableVersion() {
+        return SQLUtils.query(connectionManager.getDialect().getStableVersionQuery(), stmt -> { }, ps -> {
+            try {
+                ResultSet rs = ps.getResultSet();
+                return rs.next() ? rs.getLong(1) : 0L;
+            } catch (SQLException e) {
+                throw new DataMapperException(e);
+            }
+        });
+    }
+
+    /**
+     * Runs {@code operation} with a new read-only UnitOfWork whose connections are given by {@code connectionSupplier}
+     */
+    private <R> CompletableFuture<R> onReadOnlyUnit(SqlSupplier<Connection> connectionSupplier, Supplier<CompletableFuture<R>> operation) {
+        UnitOfWork.newCurrentReadOnly(connectionSupplier.wrap());
+        try {
+            return operation.get();
+        } finally {
+            UnitOfWork.setCurrent(null);
+        }
+    }
+}
@@ -77,4 +77,14 @@ public interface Mapper<T extends DomainObject<K>, K> {
      * @return
      */
     CompletableFuture<Boolean> deleteAll(Iterable<K> keys);
-}
\ No newline at end of file
+
+    /**
+     * Checks which of the objects were changed or removed in the DB since they were read.
+     * By default all of them are taken as changed, so they're all read again
+     * @param objects objects read before
+     * @return the objects whose version in the DB isn't theirs anymore, including the ones that were removed
+     */
+    default CompletableFuture<List<T>> findStale(List<T> objects) {
+        return CompletableFuture.completedFuture(objects);
+    }
+}
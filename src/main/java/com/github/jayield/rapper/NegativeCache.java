@@ -0,0 +1,173 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.utils.BloomFilter;
+import com.github.jayield.rapper.utils.IdentityMap;
+import com.github.jayield.rapper.utils.UnitOfWork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets a DataRepository answer that an object doesn't exist without going to the DB, for ids that are looked up but don't exist.
+ * The keys recently found absent are kept for a short time, bounded by their number. Optionally, a {@link BloomFilter} of every
+ * key in the table, built by reading only the ids, answers for the keys never looked up.
+ * The keys of the objects read, written or invalidated through the DataRepository are taken as present, so the objects
+ * created through a UnitOfWork, or by other nodes when an {@link com.github.jayield.rapper.utils.InvalidationBus} is set, are
+ * never answered as absent. Without a bus, the objects created by other nodes are only seen after the filter is rebuilt.
+ */
+public class NegativeCache<T extends DomainObject<K>, K> {
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rapper-negative-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Logger logger = LoggerFactory.getLogger(NegativeCache.class);
+    private final DataMapper<T, K> mapper;
+    private final IdentityMap<K, Boolean> misses;
+    private final long expectedKeys;
+    private final double falsePositiveRate;
+    private final AtomicLong presentCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private volatile BloomFilter filter = null;
+    private volatile BloomFilter building = null;     //The filter being rebuilt, that also takes the keys found present meanwhile
+    private volatile long keyCount = 0;
+    private CompletableFuture<Integer> rebuild = null;
+    private ScheduledFuture<?> rebuilding = null;
+
+    /**
+     * Keeps only the keys recently found absent
+     * @param maximumMisses how many keys found absent are kept
+     * @param missMillis for how long a key found absent is kept
+     */
+    public NegativeCache(DataMapper<T, K> mapper, long maximumMisses, long missMillis) {
+        this(mapper, maximumMisses, missMillis, 0, 0);
+    }
+
+    /**
+     * Also answers from a BloomFilter of every key, once it's built by {@link #rebuild()}
+     * @param expectedKeys how many keys the table is expected to have, the filter grows when it has more
+     * @param falsePositiveRate the rate at which absent keys are still looked up in the DB
+     */
+    public NegativeCache(DataMapper<T, K> mapper, long maximumMisses, long missMillis, long expectedKeys, double falsePositiveRate) {
+        this.mapper = mapper;
+        this.misses = new IdentityMap<>(maximumMisses);
+        this.misses.setExpireAfterWrite(missMillis);
+        this.expectedKeys = expectedKeys;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * @return true if the object of {@code key} is known not to exist
+     */
+    public boolean isAbsent(K key) {
+        BloomFilter filter = this.filter;
+        if (misses.get(key) != null || (filter != null && !filter.mightContain(mapper.getIdValues(key)))) {
+            hitCount.incrementAndGet();
+            return true;
+        }
+        missCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Must be taken before reading the object whose absence is passed to {@link #recordMiss(Object, long)}
+     */
+    public long getStamp() {
+        return presentCount.get();
+    }
+
+    /**
+     * Keeps {@code key} as absent, unless a key was found present since {@code stamp} was taken, as the object may have been
+     * created after it was read
+     */
+    public void recordMiss(K key, long stamp) {
+        if (stamp != presentCount.get()) return;
+        misses.put(key, true);
+        if (stamp != presentCount.get()) misses.remove(key);
+    }
+
+    public void recordPresent(K key) {
+        presentCount.incrementAndGet();
+        misses.remove(key);
+        //The filter being built is read first, so a key added while it's being swapped is in the one that stays
+        BloomFilter building = this.building;
+        BloomFilter filter = this.filter;
+        if (building == null && filter == null) return;
+        List<Object> idValues = mapper.getIdValues(key);
+        if (filter != null) filter.add(idValues);
+        if (building != null) building.add(idValues);
+    }
+
+    /**
+     * Builds a new BloomFilter from the ids in the table, that replaces the one in use when it's complete.
+     * Does nothing if there's no BloomFilter, and gives the rebuild running if there's one
+     * @return how many keys were read
+     */
+    public synchronized CompletableFuture<Integer> rebuild() {
+        if (expectedKeys <= 0) return CompletableFuture.completedFuture(0);
+        if (rebuild != null && !rebuild.isDone()) return rebuild;
+
+        BloomFilter next = new BloomFilter(Math.max(expectedKeys, keyCount + keyCount / 2), falsePositiveRate);
+        building = next;
+        rebuild = mapper.findIdValues()
+                .thenApply(idValues -> {
+                    idValues.forEach(next::add);
+                    keyCount = idValues.size();
+                    filter = next;
+                    return idValues.size();
+                })
+                .whenComplete((count, throwable) -> building = null);
+        return rebuild;
+    }
+
+    /**
+     * Rebuilds the BloomFilter periodically, in background, with read-only UnitOfWorks of the default DB
+     */
+    public synchronized void start(long periodMillis) {
+        stop();
+        rebuilding = scheduler.scheduleWithFixedDelay(() -> {
+            UnitOfWork.setCurrent(null);
+            try {
+                rebuild().join();
+            } catch (RuntimeException e) {
+                logger.info("Couldn't rebuild the BloomFilter of {}\nReason: {}", mapper.getType().getSimpleName(), e.getMessage());
+            } finally {
+                UnitOfWork.setCurrent(null);
+            }
+        }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (rebuilding != null) rebuilding.cancel(false);
+        rebuilding = null;
+    }
+
+    public boolean hasBloomFilter() {
+        return filter != null;
+    }
+
+    /**
+     * @return how many keys were answered as absent
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return how many keys had to be looked up in the DB
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
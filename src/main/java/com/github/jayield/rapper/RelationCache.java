@@ -0,0 +1,167 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.utils.QueryCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the relation table of N-N relations, such as CompanyEmployee, so the externals of those relations are populated
+ * without querying it. It's used for the table once registered with
+ * {@link com.github.jayield.rapper.utils.MapperRegistry#setRelationCache(RelationCache)}.
+ * For each group of columns the table is looked up by, the ids of one side are kept with the ids related to them on the other
+ * side, so both directions of the relation are served. It's filled as ids are looked up.
+ * The related ids of a single int column are kept in an int[], any others as arrays of interned keys, so each distinct
+ * key is held once for the whole table.
+ * The relation table isn't written by a UnitOfWork, so the cache is cleared whenever a UnitOfWork commits changes to the
+ * entities on either side of the relation, or {@link #invalidate()} is called after writing the table directly.
+ */
+public class RelationCache {
+
+    private static final int[] NO_IDS = new int[0];
+
+    private final String table;
+    private final List<Class<? extends DomainObject>> types;
+    private final AtomicLong version = new AtomicLong();
+    //By the columns looked up followed by the related columns, the related ids of each id
+    private final Map<List<String>, Map<Object, Object>> adjacencies = new ConcurrentHashMap<>();
+    private final Map<List<Object>, List<Object>> interned = new ConcurrentHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private volatile long contentStamp = 0;
+
+    /**
+     * @param table the relation table
+     * @param first the entity on one side of the relation
+     * @param second the entity on the other side of the relation
+     */
+    public RelationCache(String table, Class<? extends DomainObject> first, Class<? extends DomainObject> second) {
+        this.table = table;
+        this.types = Arrays.asList(first, second);
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * Must be taken before querying the rows passed to {@link #put(String[], String[], List, long, List)}
+     */
+    public long getStamp() {
+        long stamp = version.get();
+        for (Class<? extends DomainObject> type : types) stamp += QueryCache.getTablesStamp(type);
+        return stamp;
+    }
+
+    /**
+     * @param columns the columns looked up
+     * @param relatedColumns the columns whose values are wanted
+     * @param ids the values of {@code columns}
+     * @return the values of {@code relatedColumns} in each row with {@code ids}, or null if they aren't cached
+     */
+    public List<List<Object>> get(String[] columns, String[] relatedColumns, List<Object> ids) {
+        validate();
+        Object related = getAdjacency(columns, relatedColumns).get(key(ids));
+        if (related == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+
+        if (related instanceof int[]) {
+            int[] relatedIds = (int[]) related;
+            List<List<Object>> rows = new ArrayList<>(relatedIds.length);
+            for (int relatedId : relatedIds) rows.add(Collections.singletonList(relatedId));
+            return rows;
+        }
+        List<List<Object>> rows = new ArrayList<>();
+        for (Object row : (Object[]) related) rows.add((List<Object>) row);
+        return rows;
+    }
+
+    /**
+     * @param stamp the value of {@link #getStamp()} before querying {@code rows}
+     * @param rows the values of {@code relatedColumns} in each row with {@code ids}
+     */
+    public void put(String[] columns, String[] relatedColumns, List<Object> ids, long stamp, List<List<Object>> rows) {
+        if (stamp != validate()) return;
+        Map<Object, Object> adjacency = getAdjacency(columns, relatedColumns);
+        Object key = key(ids);
+        adjacency.put(key, compact(rows));
+        //The relation may have changed, and the cache been cleared, meanwhile
+        if (stamp != getStamp()) adjacency.remove(key);
+    }
+
+    /**
+     * Clears the cache, to be called after writing the relation table outside of the entities' UnitOfWorks
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+        validate();
+    }
+
+    /**
+     * Clears the cache if the entities on either side of the relation were changed since it was filled
+     * @return the current stamp
+     */
+    private long validate() {
+        long stamp = getStamp();
+        if (stamp != contentStamp) {
+            synchronized (this) {
+                if (stamp != contentStamp) {
+                    adjacencies.clear();
+                    interned.clear();
+                    contentStamp = stamp;
+                }
+            }
+        }
+        return stamp;
+    }
+
+    private Map<Object, Object> getAdjacency(String[] columns, String[] relatedColumns) {
+        List<String> direction = new ArrayList<>();
+        for (String column : columns) direction.add(column.toLowerCase());
+        direction.add("");      //Separates the columns looked up from the related ones
+        for (String column : relatedColumns) direction.add(column.toLowerCase());
+        return adjacencies.computeIfAbsent(direction, d -> new ConcurrentHashMap<>());
+    }
+
+    private Object key(List<Object> ids) {
+        return ids.size() == 1 ? ids.get(0) : intern(ids);
+    }
+
+    private List<Object> intern(List<Object> ids) {
+        return interned.computeIfAbsent(ids, k -> Collections.unmodifiableList(new ArrayList<>(k)));
+    }
+
+    /**
+     * @return the ids in an int[] if they're all of a single int column, otherwise in an array of interned keys
+     */
+    private Object compact(List<List<Object>> rows) {
+        if (rows.isEmpty()) return NO_IDS;
+        if (rows.stream().allMatch(row -> row.size() == 1 && row.get(0) instanceof Integer))
+            return rows.stream().mapToInt(row -> (Integer) row.get(0)).toArray();
+        return rows.stream().map(this::intern).toArray();
+    }
+
+    /**
+     * @return how many ids have their related ids cached, in all directions
+     */
+    public int size() {
+        validate();
+        return adjacencies.values().stream().mapToInt(Map::size).sum();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.utils.OffHeapStore;
+import com.github.jayield.rapper.utils.RowCodec;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * Cache of the rows of one entity, shared by every UnitOfWork, that sits below the IdentityMap of its DataRepository.
+ * The rows are kept outside of the heap in the compact form of {@link RowCodec}, built from the columns of the entity's
+ * MapperSettings, so holding many of them doesn't weigh on the GC. On a hit the row is turned back into an object by
+ * the DataMapper and its externals are populated, as if it was read from the DB.
+ * The memory taken is bounded by the capacity given, when it's full the oldest rows are dropped.
+ */
+public class SecondLevelCache<T extends DomainObject<K>, K> {
+
+    private final DataMapper<T, K> mapper;
+    private final RowCodec codec;
+    private final OffHeapStore<K> store;
+
+    /**
+     * @param capacity the number of bytes to allocate for the rows
+     * @param compress if the rows are compressed, trading CPU for memory
+     */
+    public SecondLevelCache(DataMapper<T, K> mapper, int capacity, boolean compress) {
+        this.mapper = mapper;
+        this.codec = new RowCodec(mapper.getRowFields().stream().map(f -> f.field.getType()).collect(Collectors.toList()), compress);
+        this.store = new OffHeapStore<>(capacity);
+    }
+
+    /**
+     * @return the object read from the cached row, or null if the row isn't cached
+     */
+    public CompletableFuture<Optional<T>> get(K key) {
+        byte[] row = store.get(key);
+        if (row == null) return null;
+        T t = mapper.fromRow(codec.decode(row));
+        return mapper.populateExternals(t).thenApply(populated -> Optional.of(t));
+    }
+
+    /**
+     * Caches the row of {@code t}, unless a newer version of it is already cached
+     */
+    public void put(T t) {
+        store.put(t.getIdentityKey(), codec.encode(mapper.toRow(t)), mapper.getVersion(t));
+    }
+
+    public void invalidate(K key) {
+        store.remove(key);
+    }
+
+    public void clear() {
+        store.clear();
+    }
+
+    public boolean contains(K key) {
+        return store.containsKey(key);
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    public int getCapacity() {
+        return store.getCapacity();
+    }
+
+    public long getUsedBytes() {
+        return store.getUsedBytes();
+    }
+
+    public long getHitCount() {
+        return store.getHitCount();
+    }
+
+    public long getMissCount() {
+        return store.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return store.getEvictionCount();
+    }
+}
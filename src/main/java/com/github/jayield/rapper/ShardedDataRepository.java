@@ -0,0 +1,204 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.exceptions.DataMapperException;
+import com.github.jayield.rapper.utils.*;
+import javafx.util.Pair;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * A DataRepository whose objects are spread over several DBs, the shards.
+ * The shard of each object is given by a {@link ShardFunction} over its identity key, so the keys must be known before
+ * the objects are created (not generated by the DB).
+ * Each operation runs on a UnitOfWork of its shard, so commits are local to each shard. Operations on objects of
+ * different shards are committed independently. The objects referenced by an entity (its parents and externals) must be in the same shard.
+ * findAll and findWhere query every shard in parallel and gather the results, the QueryCache holds the gathered results.
+ * Must be registered with {@link MapperRegistry#register(Class, DataRepository)} so the UnitOfWorks publish to its IdentityMap.
+ */
+public class ShardedDataRepository<T extends DomainObject<K>, K> extends DataRepository<T, K> {
+
+    private final List<ConnectionManager> shards;
+    private final ShardFunction<K> shardFunction;
+
+    public ShardedDataRepository(Mapper<T, K> mapper, List<ConnectionManager> shards, ShardFunction<K> shardFunction) {
+        super(mapper);
+        if (shards.isEmpty()) throw new IllegalArgumentException("At least one shard is needed");
+        this.shards = new ArrayList<>(shards);
+        this.shardFunction = shardFunction;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    public int getShard(K key) {
+        if (key == null) throw new DataMapperException("The identity key is needed to know the shard of the object");
+        int shard = shardFunction.getShard(key, shards.size());
+        if (shard < 0 || shard >= shards.size()) throw new DataMapperException("Invalid shard " + shard + " for key " + key);
+        return shard;
+    }
+
+    /**
+     * Runs {@code operation} with a new UnitOfWork of {@code shard} as the current one, then restores the caller's UnitOfWork.
+     * The connections are acquired without blocking, so scattering over the shards doesn't hold a thread per shard
+     */
+    private <R> CompletableFuture<R> onShard(int shard, boolean readOnly, Supplier<CompletableFuture<R>> operation) {
+        UnitOfWork previous = UnitOfWork.getCurrent();
+        ConnectionManager connectionManager = shards.get(shard);
+        if (readOnly) {
+            UnitOfWork.newCurrentReadOnlyAsync(
+                    committedVersion -> connectionManager.getReadOnlyConnectionAsync(connectionManager.getReadOnlyIsolationLevel(), committedVersion),
+                    connectionManager::getConnectionAsync
+            );
+        } else UnitOfWork.newCurrentAsync(connectionManager::getConnectionAsync);
+        try {
+            return operation.get();
+        } finally {
+            UnitOfWork.setCurrent(previous);
+        }
+    }
+
+    /**
+     * Runs {@code operation} on every shard in parallel
+     * @return the results of each shard, in the order of the shards
+     */
+    private <R> CompletableFuture<List<R>> scatter(Supplier<CompletableFuture<R>> operation) {
+        List<CompletableFuture<R>> futures = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) futures.add(onShard(i, true, operation));
+        return CompletableFuture
+                .allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(v -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
+
+    /**
+     * Splits {@code items} by shard and runs {@code operation} on each group, in the group's shard
+     */
+    private <E> CompletableFuture<Boolean> onShards(Iterable<E> items, Function<E, K> keyGetter, Function<List<E>, CompletableFuture<Boolean>> operation) {
+        Map<Integer, List<E>> byShard = new TreeMap<>();
+        items.forEach(item -> byShard.computeIfAbsent(getShard(keyGetter.apply(item)), shard -> new ArrayList<>()).add(item));
+        return byShard
+                .entrySet()
+                .stream()
+                .map(entry -> onShard(entry.getKey(), false, () -> operation.apply(entry.getValue())))
+                .reduce(CompletableFuture.completedFuture(true), (a, b) -> a.thenCombine(b, (a2, b2) -> a2 && b2));
+    }
+
+    @Override
+    public <R> CompletableFuture<List<T>> findWhere(Pair<String, R>... values) {
+        return track(() -> cachedQuery(getQueryKey(values), () -> scatter(() -> query(() -> readWhere(values))).thenApply(this::flatten), false), matcher(values));
+    }
+
+    /**
+     * Same as {@link #findWhere(Pair[])} but the results are sorted by {@code comparator}, see {@link #findSorted(Supplier, Comparator, Predicate)}
+     */
+    public <R> CompletableFuture<List<T>> findWhere(Comparator<? super T> comparator, Pair<String, R>... values) {
+        return findSorted(() -> readWhere(values), comparator, matcher(values));
+    }
+
+    @Override
+    public CompletableFuture<Optional<T>> findById(K k) {
+        return onShard(getShard(k), true, () -> super.findById(k));
+    }
+
+    @Override
+    public CompletableFuture<List<T>> findAll() {
+        return track(() -> cachedQuery(Collections.emptyList(), () -> scatter(() -> query(this::readAll)).thenApply(this::flatten), true), t -> true);
+    }
+
+    /**
+     * Same as {@link #findAll()} but the results are sorted by {@code comparator}, see {@link #findSorted(Supplier, Comparator, Predicate)}
+     */
+    public CompletableFuture<List<T>> findAll(Comparator<? super T> comparator) {
+        return findSorted(this::readAll, comparator, t -> true);
+    }
+
+    /**
+     * Runs {@code read} on every shard and merges the results, comparing only the head of each shard's results at a time.
+     * The mappers have no ORDER BY, so each shard's results are sorted in memory first.
+     * The objects the current UnitOfWork gives instead of the ones read, or adds because it changed them, are the only ones
+     * sorted again, and merged into the rest. A shard whose query fails fails the whole read
+     */
+    private CompletableFuture<List<T>> findSorted(Supplier<CompletableFuture<List<T>>> read, Comparator<? super T> comparator, Predicate<T> matches) {
+        CompletableFuture<List<T>> merged = scatter(() -> query(read)).thenApply(lists -> merge(lists, comparator));
+        return track(() -> merged, matches).thenCombine(merged, (tracked, fromShards) -> mergeTracked(fromShards, tracked, comparator));
+    }
+
+    private List<T> flatten(List<List<T>> lists) {
+        return lists.stream().flatMap(List::stream).collect(Collectors.toList());
+    }
+
+    private List<T> merge(List<List<T>> lists, Comparator<? super T> comparator) {
+        lists.forEach(list -> list.sort(comparator));
+        return CollectionUtils.mergeSorted(lists, comparator).collect(Collectors.toList());
+    }
+
+    /**
+     * @param merged the sorted objects read from the shards
+     * @param tracked {@code merged} as seen by the current UnitOfWork, keeping the order of the objects read
+     */
+    private List<T> mergeTracked(List<T> merged, List<T> tracked, Comparator<? super T> comparator) {
+        Set<T> read = Collections.newSetFromMap(new IdentityHashMap<>());
+        read.addAll(merged);
+        List<T> unchanged = new ArrayList<>(tracked.size());
+        List<T> changed = new ArrayList<>();
+        tracked.forEach(t -> (read.contains(t) ? unchanged : changed).add(t));
+        if (changed.isEmpty()) return unchanged;
+
+        changed.sort(comparator);
+        return CollectionUtils.mergeSorted(Arrays.asList(unchanged, changed), comparator).collect(Collectors.toList());
+    }
+
+    @Override
+    public CompletableFuture<List<T>> findStale(List<T> objects) {
+        Map<Integer, List<T>> byShard = new TreeMap<>();
+        objects.forEach(t -> byShard.computeIfAbsent(getShard(t.getIdentityKey()), shard -> new ArrayList<>()).add(t));
+        List<CompletableFuture<List<T>>> futures = byShard
+                .entrySet()
+                .stream()
+                .map(entry -> onShard(entry.getKey(), true, () -> super.findStale(entry.getValue())))
+                .collect(Collectors.toList());
+        return CompletableFuture
+                .allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(v -> futures.stream().flatMap(future -> future.join().stream()).collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> create(T t) {
+        return onShard(getShard(t.getIdentityKey()), false, () -> super.create(t));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> createAll(Iterable<T> t) {
+        return onShards(t, DomainObject::getIdentityKey, super::createAll);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> update(T t) {
+        return onShard(getShard(t.getIdentityKey()), false, () -> super.update(t));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> updateAll(Iterable<T> t) {
+        return onShards(t, DomainObject::getIdentityKey, super::updateAll);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteById(K k) {
+        return findById(k).thenCompose(t -> t.map(this::delete).orElse(CompletableFuture.completedFuture(false)));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(T t) {
+        return onShard(getShard(t.getIdentityKey()), false, () -> super.delete(t));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteAll(Iterable<K> keys) {
+        return onShards(keys, Function.identity(), super::deleteAll);
+    }
+}
@@ -30,6 +30,40 @@ public class CollectionUtils {
         return zipWithIndex(stream).map(entry -> mapper.apply(entry.index, entry.item));
     }
 
+    /**
+     * Merges lists already sorted by {@code comparator} into one sorted stream.
+     * The elements are taken lazily from the head of each list, so only one element per list is compared at a time
+     */
+    public static <T> Stream<T> mergeSorted(List<? extends List<? extends T>> lists, Comparator<? super T> comparator) {
+        List<T> current = new ArrayList<>(Collections.nCopies(lists.size(), null));
+        PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, lists.size()), (a, b) -> comparator.compare(current.get(a), current.get(b)));
+        List<Iterator<? extends T>> iterators = new ArrayList<>();
+        for (int i = 0; i < lists.size(); i++) {
+            Iterator<? extends T> iterator = lists.get(i).iterator();
+            iterators.add(iterator);
+            if (iterator.hasNext()) {
+                current.set(i, iterator.next());
+                queue.add(i);
+            }
+        }
+
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                Integer index = queue.poll();
+                if (index == null) return false;
+                T item = current.get(index);
+                Iterator<? extends T> iterator = iterators.get(index);
+                if (iterator.hasNext()) {
+                    current.set(index, iterator.next());
+                    queue.add(index);
+                }
+                action.accept(item);
+                return true;
+            }
+        }, false);
+    }
+
     public static class Indexer<T>{
         public final T item;
         public final int index;
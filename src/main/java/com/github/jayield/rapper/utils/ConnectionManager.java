@@ -1,52 +1,408 @@
 package com.github.jayield.rapper.utils;
 
-import com.microsoft.sqlserver.jdbc.SQLServerConnectionPoolDataSource;
+import com.github.jayield.rapper.exceptions.DataMapperException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.ConnectionPoolDataSource;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class ConnectionManager {
     private static final Logger staticLogger = LoggerFactory.getLogger(ConnectionManager.class);
-    private static ConnectionManager connectionManager = null;
+    private static final ConcurrentMap<String, ConnectionManager> connectionManagers = new ConcurrentHashMap<>();
 
-    private final ConnectionPoolDataSource poolDataSource;
+    private static final String REPLICAS_SUFFIX = "_REPLICAS";
+    private static final String DIALECT_SUFFIX = "_DIALECT";
+    private static final long HEALTH_CHECK_PERIOD_MILLIS = 5_000;
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rapper-replica-health");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private ConnectionManager(DBsPath envVarName){
-        poolDataSource = getDataSource(envVarName);
+    private final ConnectionPool pool;
+    private final Dialect dialect;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private ScheduledFuture<?> healthCheck = null;
+    private volatile long primaryHighWaterMark = 0;
+    private volatile ReplicaRouting replicaRouting = ReplicaRouting.ROUND_ROBIN;
+    private volatile long maxReplicaLag = Long.MAX_VALUE;
+    private volatile IsolationLevel isolationLevel = IsolationLevel.READ_COMMITTED;
+    private volatile IsolationLevel readOnlyIsolationLevel = IsolationLevel.READ_COMMITTED;
+
+    /**
+     * A read-only copy of the DB, used by read-only UnitOfWorks while it is healthy
+     */
+    private static class Replica {
+        final ConnectionPool pool;
+        volatile boolean healthy = true;
+        //The last rowversion used in the replica's DB, when it was checked
+        volatile long highWaterMark = 0;
+
+        Replica(ConnectionPool pool) {
+            this.pool = pool;
+        }
+
+        int getOutstanding() {
+            return pool.getBorrowedConnections() + pool.getWaitingRequests();
+        }
     }
 
-    public static ConnectionManager getConnectionManager(DBsPath envVar){
-        if(connectionManager == null) {
-            staticLogger.info("Creating new ConnectionManager for " +  envVar.name());
-            connectionManager = new ConnectionManager(envVar);
+    private ConnectionManager(String name, ConnectionPoolDataSource dataSource, List<ConnectionPoolDataSource> replicaDataSources, Dialect dialect, PoolSettings poolSettings){
+        this.dialect = dialect;
+        pool = new ConnectionPool(name, dataSource, poolSettings);
+
+        for (int i = 0; i < replicaDataSources.size(); i++)
+            replicas.add(new Replica(new ConnectionPool(name + "_REPLICA" + i, replicaDataSources.get(i), poolSettings)));
+        if (!replicas.isEmpty()) {
+            staticLogger.info("Using " + replicas.size() + " replicas for " + name);
+            healthCheck = scheduler.scheduleWithFixedDelay(this::checkReplicas, 0, HEALTH_CHECK_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
         }
-        return connectionManager;
     }
 
-    private static ConnectionPoolDataSource getDataSource(DBsPath envVar){
-        //CONNECTION STRING FORMAT: SERVERNAME;DATABASE;USER;PASSWORD
-        String connectionString = System.getenv(envVar.toString());
-        String[] connectionStringParts = connectionString.split(";");
+    /**
+     * Creates the ConnectionManager of the DB whose connection string is in the environment variable {@code envVarName}.
+     * The replicas of the DB are read from the environment variable with the same name plus "_REPLICAS",
+     * with their connection strings separated by "|".
+     * The connection strings are in the format of the DB's dialect, see {@link #getDialect(DBsPath)}
+     */
+    private static ConnectionManager fromEnvironment(String envVarName, PoolSettings poolSettings){
+        Dialect dialect = getDialectFromEnvironment(envVarName);
+        List<ConnectionPoolDataSource> replicaDataSources = new ArrayList<>();
+        String replicasConnectionStrings = System.getenv(envVarName + REPLICAS_SUFFIX);
+        if (replicasConnectionStrings != null && !replicasConnectionStrings.isEmpty()) {
+            for (String connectionString : replicasConnectionStrings.split("\\|"))
+                replicaDataSources.add(dialect.getDataSource(connectionString));
+        }
+        return new ConnectionManager(envVarName, dialect.getDataSource(getConnectionString(envVarName)), replicaDataSources, dialect, poolSettings);
+    }
 
-        staticLogger.info("The connection string retrieved was " + connectionString + "\nTaken from " + envVar + " environment variable");
+    /**
+     * The dialect is the class, with a constructor without arguments, in the environment variable with the same name
+     * plus "_DIALECT", by default {@link SqlServerDialect}
+     */
+    private static Dialect getDialectFromEnvironment(String envVarName){
+        String dialectClass = System.getenv(envVarName + DIALECT_SUFFIX);
+        if (dialectClass == null || dialectClass.isEmpty()) return new SqlServerDialect();
+        try {
+            return (Dialect) Class.forName(dialectClass).getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new DataMapperException(e);
+        }
+    }
+
+    /**
+     * Gets the dialect of the DB of {@code envVar} without connecting to it: the one of its ConnectionManager if it was
+     * already created, otherwise the one set in the environment
+     */
+    public static Dialect getDialect(DBsPath envVar){
+        ConnectionManager connectionManager = connectionManagers.get(envVar.toString());
+        return connectionManager != null ? connectionManager.getDialect() : getDialectFromEnvironment(envVar.toString());
+    }
+
+    /**
+     * Gets the ConnectionManager of the DB whose connection string is in the environment variable {@code envVar}.
+     * There is one ConnectionManager, with its own connection pool, for each DB
+     */
+    public static ConnectionManager getConnectionManager(DBsPath envVar){
+        return getConnectionManager(envVar, PoolSettings.DEFAULT);
+    }
+
+    /**
+     * @param poolSettings the settings of the connection pool, only used the first time the ConnectionManager of {@code envVar} is requested
+     */
+    public static ConnectionManager getConnectionManager(DBsPath envVar, PoolSettings poolSettings){
+        return getConnectionManager(envVar.toString(), poolSettings);
+    }
+
+    public static ConnectionManager getConnectionManager(String envVarName, PoolSettings poolSettings){
+        return connectionManagers.computeIfAbsent(envVarName, name -> {
+            staticLogger.info("Creating new ConnectionManager for " + name);
+            return fromEnvironment(name, poolSettings);
+        });
+    }
 
-        SQLServerConnectionPoolDataSource dataSource = new SQLServerConnectionPoolDataSource();
+    /**
+     * Sets the ConnectionManager of {@code envVar} to use {@code dataSource}, e.g. one of an embedded DB, instead of the environment variable.
+     * Must be called before the ConnectionManager of {@code envVar} is first requested. The mappers created afterwards
+     * use {@code dialect} if {@code envVar} is {@link DBsPath#DEFAULTDB}
+     */
+    public static ConnectionManager getConnectionManager(DBsPath envVar, ConnectionPoolDataSource dataSource, Dialect dialect, PoolSettings poolSettings){
+        return getConnectionManager(envVar.toString(), dataSource, dialect, poolSettings);
+    }
+
+    /**
+     * Gets the ConnectionManager called {@code name}, created with {@code dataSource} if it doesn't exist yet
+     */
+    public static ConnectionManager getConnectionManager(String name, ConnectionPoolDataSource dataSource, Dialect dialect, PoolSettings poolSettings){
+        return getConnectionManager(name, dataSource, new ArrayList<>(), dialect, poolSettings);
+    }
 
-        dataSource.setServerName(connectionStringParts[0]);
-        dataSource.setDatabaseName(connectionStringParts[1]);
-        dataSource.setUser(connectionStringParts[2]);
-        dataSource.setPassword(connectionStringParts[3]);
+    /**
+     * Gets the ConnectionManager called {@code name}, created with {@code dataSource} and the read replicas of
+     * {@code replicaDataSources} if it doesn't exist yet
+     */
+    public static ConnectionManager getConnectionManager(String name, ConnectionPoolDataSource dataSource, List<ConnectionPoolDataSource> replicaDataSources, Dialect dialect, PoolSettings poolSettings){
+        return connectionManagers.computeIfAbsent(name, n -> {
+            staticLogger.info("Creating new ConnectionManager for " + n);
+            return new ConnectionManager(n, dataSource, replicaDataSources, dialect, poolSettings);
+        });
+    }
+
+    /**
+     * Closes the ConnectionManager called {@code name}, if it exists, so the next request for it creates it again
+     */
+    public static void removeConnectionManager(String name){
+        ConnectionManager connectionManager = connectionManagers.remove(name);
+        if (connectionManager != null) connectionManager.close();
+    }
 
-        return dataSource;
+    private void close(){
+        if (healthCheck != null) healthCheck.cancel(false);
+        pool.close();
+        replicas.forEach(replica -> replica.pool.close());
     }
 
+    private static String getConnectionString(String envVar){
+        String connectionString = System.getenv(envVar);
+        staticLogger.info("The connection string retrieved was " + connectionString + "\nTaken from " + envVar + " environment variable");
+        return connectionString;
+    }
+
+    /**
+     * Gets a connection from the pool to be used in a transaction.
+     * Closing it returns it to the pool.
+     * @return a connection not in auto-commit mode
+     * @throws SQLException
+     */
     public Connection getConnection() throws SQLException {
-        Connection connection = poolDataSource.getPooledConnection().getConnection();
-        connection.setAutoCommit(false);
+        return prepare(pool.getConnection());
+    }
+
+    /**
+     * Same as {@link #getConnection()} but without blocking while there's no connection available
+     */
+    public CompletableFuture<Connection> getConnectionAsync() {
+        return pool.acquire().thenApply(connection -> {
+            try {
+                return prepare(connection);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private Connection prepare(Connection connection) throws SQLException {
+        return configure(connection, false, false, isolationLevel);
+    }
+
+    /**
+     * Gets a connection to be used by a read-only UnitOfWork, it is in auto-commit mode so no transaction is kept open
+     * between queries, and uses the isolation level set in {@link #setReadOnlyIsolationLevel(IsolationLevel)}
+     * @return a read-only connection
+     * @throws SQLException
+     */
+    public Connection getReadOnlyConnection() throws SQLException {
+        return getReadOnlyConnection(readOnlyIsolationLevel);
+    }
+
+    public Connection getReadOnlyConnection(IsolationLevel isolationLevel) throws SQLException {
+        return getReadOnlyConnection(isolationLevel, 0);
+    }
+
+    /**
+     * Gets a read-only connection to a healthy replica, chosen according to {@link #setReplicaRouting(ReplicaRouting)}.
+     * Replicas lagging the primary more than {@link #setMaxReplicaLag(long)} aren't used.
+     * If there's no such replica, the connection is to the primary.
+     * @param minVersion the replica must have reached this rowversion, e.g. the one given by {@link UnitOfWork#getCommittedVersion()}
+     *                   so a client reads its own writes
+     */
+    public Connection getReadOnlyConnection(IsolationLevel isolationLevel, long minVersion) throws SQLException {
+        Replica replica = chooseReplica(minVersion);
+        if (replica != null) {
+            try {
+                return configure(replica.pool.getConnection(), true, true, isolationLevel);
+            } catch (SQLException e) {
+                replicaFailed(replica, e);
+            }
+        }
+        return configure(pool.getConnection(), true, true, isolationLevel);
+    }
+
+    /**
+     * Same as {@link #getReadOnlyConnection()} but without blocking while there's no connection available
+     */
+    public CompletableFuture<Connection> getReadOnlyConnectionAsync() {
+        return getReadOnlyConnectionAsync(readOnlyIsolationLevel, 0);
+    }
+
+    /**
+     * Same as {@link #getReadOnlyConnection(IsolationLevel, long)} but without blocking while there's no connection available
+     */
+    public CompletableFuture<Connection> getReadOnlyConnectionAsync(IsolationLevel isolationLevel, long minVersion) {
+        Replica replica = chooseReplica(minVersion);
+        CompletableFuture<Connection> connection = replica == null
+                ? pool.acquire()
+                : replica.pool.acquire().handle((c, throwable) -> {
+                    if (throwable == null) return CompletableFuture.completedFuture(c);
+                    replicaFailed(replica, throwable);
+                    return pool.acquire();
+                }).thenCompose(Function.identity());
+        return connection.thenApply(c -> {
+            try {
+                return configure(c, true, true, isolationLevel);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * A replica whose pool only timed out is busy, not down, so this call uses the primary but the next ones still use the replica.
+     * It's marked unhealthy when a connection couldn't be opened or validated, until {@link #checkReplicas()} finds it answers again
+     */
+    private static void replicaFailed(Replica replica, Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTimeoutException) {
+                staticLogger.info("Replica busy, using the primary.\nReason: " + cause.getMessage());
+                return;
+            }
+            if (cause.getCause() == cause) break;
+        }
+        staticLogger.info("Replica unavailable, using the primary.\nReason: " + throwable.getMessage());
+        replica.healthy = false;
+    }
+
+    private Replica chooseReplica(long minVersion) {
+        if (replicas.isEmpty()) return null;
+        long primaryMark = primaryHighWaterMark;
+        List<Replica> candidates = replicas
+                .stream()
+                .filter(replica -> replica.healthy && replica.highWaterMark >= minVersion && primaryMark - replica.highWaterMark <= maxReplicaLag)
+                .collect(Collectors.toList());
+        if (candidates.isEmpty()) return null;
+
+        if (replicaRouting == ReplicaRouting.LEAST_OUTSTANDING)
+            return candidates.stream().min(Comparator.comparingInt(Replica::getOutstanding)).orElse(null);
+        return candidates.get(Math.floorMod(nextReplica.getAndIncrement(), candidates.size()));
+    }
+
+    /**
+     * Reads the rowversion high-water mark of the primary and of each replica, a replica that doesn't answer is marked unhealthy,
+     * one whose pool is only busy keeps its health.
+     * It's done periodically while there are replicas, calling it checks them right away
+     */
+    public void checkReplicas() {
+        try {
+            primaryHighWaterMark = readHighWaterMark(pool);
+        } catch (SQLException e) {
+            staticLogger.info("Couldn't read the primary's high-water mark.\nReason: " + e.getMessage());
+        }
+        for (Replica replica : replicas) {
+            try {
+                replica.highWaterMark = readHighWaterMark(replica.pool);
+                replica.healthy = true;
+            } catch (SQLTimeoutException e) {
+                staticLogger.info("Replica busy, its health is checked again later.\nReason: " + e.getMessage());
+            } catch (SQLException e) {
+                if (replica.healthy) staticLogger.info("Replica marked as unhealthy.\nReason: " + e.getMessage());
+                replica.healthy = false;
+            }
+        }
+    }
+
+    private long readHighWaterMark(ConnectionPool connectionPool) throws SQLException {
+        try (Connection connection = connectionPool.getConnection();
+             PreparedStatement statement = connection.prepareStatement(dialect.getHighWaterMarkQuery());
+             ResultSet rs = statement.executeQuery()) {
+            if (!connection.getAutoCommit()) connection.commit();
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * The physical connections are reused, so their state is only changed when it differs from what is needed
+     */
+    private static Connection configure(Connection connection, boolean autoCommit, boolean readOnly, IsolationLevel isolationLevel) throws SQLException {
+        try {
+            if (connection.getAutoCommit() != autoCommit) connection.setAutoCommit(autoCommit);
+            if (connection.isReadOnly() != readOnly) connection.setReadOnly(readOnly);
+            if (connection.getTransactionIsolation() != isolationLevel.getValue()) connection.setTransactionIsolation(isolationLevel.getValue());
+            return connection;
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    public Dialect getDialect() {
+        return dialect;
+    }
+
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    public long getHealthyReplicaCount() {
+        return replicas.stream().filter(replica -> replica.healthy).count();
+    }
+
+    public ReplicaRouting getReplicaRouting() {
+        return replicaRouting;
+    }
+
+    public void setReplicaRouting(ReplicaRouting replicaRouting) {
+        this.replicaRouting = replicaRouting;
+    }
+
+    public long getMaxReplicaLag() {
+        return maxReplicaLag;
+    }
+
+    /**
+     * Sets how far behind the primary a replica's rowversion high-water mark may be for it to be used
+     */
+    public void setMaxReplicaLag(long maxReplicaLag) {
+        this.maxReplicaLag = maxReplicaLag;
+    }
+
+    public IsolationLevel getIsolationLevel() {
+        return isolationLevel;
+    }
+
+    /**
+     * Sets the isolation level of the connections used in transactions, by default {@link IsolationLevel#READ_COMMITTED}
+     */
+    public void setIsolationLevel(IsolationLevel isolationLevel) {
+        this.isolationLevel = isolationLevel;
+    }
+
+    public IsolationLevel getReadOnlyIsolationLevel() {
+        return readOnlyIsolationLevel;
+    }
 
-        return connection;
+    /**
+     * Sets the isolation level used by the connections of read-only UnitOfWorks.
+     * {@link IsolationLevel#SNAPSHOT} requires ALLOW_SNAPSHOT_ISOLATION to be on in the database
+     * @param readOnlyIsolationLevel
+     */
+    public void setReadOnlyIsolationLevel(IsolationLevel readOnlyIsolationLevel) {
+        this.readOnlyIsolationLevel = readOnlyIsolationLevel;
     }
 }
@@ -0,0 +1,417 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.exceptions.DataMapperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.PooledConnection;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded pool of physical connections taken from a {@link ConnectionPoolDataSource}.
+ * Requests for connections are served in order of arrival, when there's no idle connection the request waits in a queue
+ * without blocking the caller. Closing a connection given by the pool returns it to the pool.
+ */
+public class ConnectionPool {
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+    //Connections returned to the pool less than this time ago aren't validated when borrowed
+    private static final long VALIDATION_BYPASS_MILLIS = 500;
+    private static final int OPENER_THREADS = 2;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rapper-connection-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //Opening a connection blocks on the DB, so it's done on threads of its own rather than on the common pool
+    private static final ExecutorService opener = Executors.newFixedThreadPool(OPENER_THREADS, r -> {
+        Thread thread = new Thread(r, "rapper-connection-opener");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+    private final String name;
+    private final ConnectionPoolDataSource dataSource;
+    private final PoolSettings settings;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Deque<Entry> idle = new ArrayDeque<>();
+    private final Set<Entry> borrowed = new HashSet<>();
+    private final Queue<CompletableFuture<Connection>> waiters = new ArrayDeque<>();
+    //The timeout of each waiting request, cancelled once the request is served
+    private final Map<CompletableFuture<Connection>, ScheduledFuture<?>> timeouts = new ConcurrentHashMap<>();
+    private int total = 0;          //Physical connections open or being opened
+    private int pendingOpens = 0;
+    private boolean closed = false;
+    private final ScheduledFuture<?> housekeeping;
+
+    private class Entry implements ConnectionEventListener {
+        final PooledConnection pooledConnection;
+        final long createdAt = System.currentTimeMillis();
+        long lastReturnedAt = createdAt;
+        long borrowedAt;
+        Throwable borrowedBy;
+        boolean leakReported;
+        boolean destroyed;
+        //Some drivers, as H2, close the handle given before when a new one is asked for, that close isn't a release
+        volatile boolean handingOut;
+
+        Entry(PooledConnection pooledConnection) {
+            this.pooledConnection = pooledConnection;
+        }
+
+        @Override
+        public void connectionClosed(ConnectionEvent event) {
+            if (!handingOut) release(this);
+        }
+
+        @Override
+        public void connectionErrorOccurred(ConnectionEvent event) {
+            logger.info("Connection of pool {} failed, it will be discarded.\nReason: {}", name, event.getSQLException() != null ? event.getSQLException().getMessage() : null);
+            destroy(this);
+        }
+    }
+
+    public ConnectionPool(String name, ConnectionPoolDataSource dataSource, PoolSettings settings) {
+        this.name = name;
+        this.dataSource = dataSource;
+        this.settings = settings;
+
+        long period = Math.max(1_000, Math.min(30_000, Math.min(settings.idleTimeoutMillis, settings.maxLifetimeMillis) / 2));
+        housekeeping = scheduler.scheduleWithFixedDelay(this::houseKeep, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets a connection from the pool, waiting at most {@link PoolSettings#connectionTimeoutMillis}
+     * @return a connection, to be closed when it's no longer needed
+     * @throws SQLException if no connection was available in time or it couldn't be opened
+     */
+    public Connection getConnection() throws SQLException {
+        try {
+            return acquire().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            throw new SQLException(cause);
+        }
+    }
+
+    /**
+     * Requests a connection from the pool. The requests are served in order of arrival.
+     * @return a CompletableFuture completed with the connection or with an SQLException if it couldn't be given in time
+     */
+    public CompletableFuture<Connection> acquire() {
+        CompletableFuture<Connection> waiter = new CompletableFuture<>();
+        List<Entry> expired = new ArrayList<>();
+        Entry entry = null;
+
+        lock.lock();
+        try {
+            if (closed) {
+                waiter.completeExceptionally(new SQLException("The pool " + name + " is closed"));
+                return waiter;
+            }
+            //Idle connections are only taken directly if no one is waiting before
+            if (waiters.isEmpty()) entry = pollIdle(expired);
+            if (entry != null) borrowed.add(entry);
+            else {
+                waiters.add(waiter);
+                grow();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        expired.forEach(this::destroy);
+        if (entry != null) handOut(entry, waiter, System.currentTimeMillis() - entry.lastReturnedAt > VALIDATION_BYPASS_MILLIS);
+        else {
+            timeouts.put(waiter, scheduler.schedule(() -> timeout(waiter), settings.connectionTimeoutMillis, TimeUnit.MILLISECONDS));
+            waiter.whenComplete((connection, throwable) -> {
+                ScheduledFuture<?> timeout = timeouts.remove(waiter);
+                if (timeout != null) timeout.cancel(false);
+            });
+        }
+        return waiter;
+    }
+
+    private Entry pollIdle(List<Entry> expired) {
+        Entry entry;
+        while ((entry = idle.pollFirst()) != null) {
+            if (isExpired(entry)) expired.add(entry);
+            else return entry;
+        }
+        return null;
+    }
+
+    private boolean isExpired(Entry entry) {
+        return System.currentTimeMillis() - entry.createdAt > settings.maxLifetimeMillis;
+    }
+
+    /**
+     * Opens new connections for the waiting requests not yet covered by the connections being opened, up to maxSize.
+     * Must be called holding the lock
+     */
+    private void grow() {
+        int needed = waiters.size() - pendingOpens;
+        while (needed-- > 0 && total < settings.maxSize) {
+            open();
+        }
+    }
+
+    /**
+     * Must be called holding the lock
+     */
+    private void open() {
+        total++;
+        pendingOpens++;
+        CompletableFuture
+                .supplyAsync(() -> {
+                    try {
+                        return dataSource.getPooledConnection();
+                    } catch (SQLException e) {
+                        throw new DataMapperException(e);
+                    }
+                }, opener)
+                .whenComplete((pooledConnection, throwable) -> {
+                    CompletableFuture<Connection> failedWaiter = null;
+                    lock.lock();
+                    try {
+                        pendingOpens--;
+                        if (throwable != null) {
+                            total--;
+                            failedWaiter = pollWaiter();
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+
+                    if (throwable != null) {
+                        logger.info("Couldn't open a connection for pool {}.\nReason: {}", name, throwable.getMessage());
+                        if (failedWaiter != null) failedWaiter.completeExceptionally(new SQLException("Couldn't open a connection", throwable));
+                        return;
+                    }
+
+                    Entry entry = new Entry(pooledConnection);
+                    pooledConnection.addConnectionEventListener(entry);
+                    offer(entry);
+                });
+    }
+
+    private CompletableFuture<Connection> pollWaiter() {
+        CompletableFuture<Connection> waiter;
+        while ((waiter = waiters.poll()) != null) {
+            if (!waiter.isDone()) return waiter;
+        }
+        return null;
+    }
+
+    /**
+     * Gives the connection to the first waiting request or, if there's none, puts it in the idle connections
+     */
+    private void offer(Entry entry) {
+        CompletableFuture<Connection> waiter = null;
+        boolean discard = false;
+
+        lock.lock();
+        try {
+            if (entry.destroyed) return;
+            borrowed.remove(entry);
+            if (closed || isExpired(entry)) discard = true;
+            else {
+                waiter = pollWaiter();
+                if (waiter != null) borrowed.add(entry);
+                else {
+                    entry.lastReturnedAt = System.currentTimeMillis();
+                    idle.addFirst(entry);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (discard) destroy(entry);
+        else if (waiter != null) handOut(entry, waiter, false);
+    }
+
+    private void handOut(Entry entry, CompletableFuture<Connection> waiter, boolean validate) {
+        Connection connection;
+        try {
+            entry.handingOut = true;
+            try {
+                connection = entry.pooledConnection.getConnection();
+            } finally {
+                entry.handingOut = false;
+            }
+            if (validate && !connection.isValid(VALIDATION_TIMEOUT_SECONDS))
+                throw new SQLException("Connection is no longer valid");
+        } catch (SQLException e) {
+            logger.info("Discarding connection of pool {}.\nReason: {}", name, e.getMessage());
+            destroy(entry);
+            //Tries again, this request goes to the end of the queue if there's no idle connection
+            acquire().whenComplete((c, throwable) -> {
+                if (throwable != null) waiter.completeExceptionally(throwable);
+                else if (!waiter.complete(c)) closeQuietly(c);
+            });
+            return;
+        }
+
+        entry.borrowedAt = System.currentTimeMillis();
+        entry.borrowedBy = settings.leakDetectionThresholdMillis > 0 ? new Throwable("Connection borrowed here") : null;
+        entry.leakReported = false;
+        //The request may have timed out meanwhile, closing the connection returns it to the pool
+        if (!waiter.complete(connection)) closeQuietly(connection);
+    }
+
+    private void release(Entry entry) {
+        offer(entry);
+    }
+
+    private void destroy(Entry entry) {
+        lock.lock();
+        try {
+            if (entry.destroyed) return;
+            entry.destroyed = true;
+            borrowed.remove(entry);
+            idle.remove(entry);
+            total--;
+            if (!closed) grow();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            entry.pooledConnection.removeConnectionEventListener(entry);
+            entry.pooledConnection.close();
+        } catch (SQLException e) {
+            logger.info("Couldn't close connection of pool {}.\nReason: {}", name, e.getMessage());
+        }
+    }
+
+    private void timeout(CompletableFuture<Connection> waiter) {
+        if (waiter.completeExceptionally(new SQLTimeoutException("Couldn't get a connection from pool " + name + " within " + settings.connectionTimeoutMillis + "ms"))) {
+            lock.lock();
+            try {
+                waiters.remove(waiter);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Closes the connections that are idle for too long or too old, keeps at least minSize connections open
+     * and reports the connections borrowed for longer than the leak detection threshold
+     */
+    private void houseKeep() {
+        long now = System.currentTimeMillis();
+        List<Entry> toClose = new ArrayList<>();
+        List<Entry> leaked = new ArrayList<>();
+
+        lock.lock();
+        try {
+            if (closed) return;
+            Iterator<Entry> iterator = idle.descendingIterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                boolean idleTooLong = now - entry.lastReturnedAt > settings.idleTimeoutMillis && total - toClose.size() > settings.minSize;
+                if (isExpired(entry) || idleTooLong) {
+                    iterator.remove();
+                    toClose.add(entry);
+                }
+            }
+
+            if (settings.leakDetectionThresholdMillis > 0) {
+                borrowed.stream()
+                        .filter(entry -> !entry.leakReported && now - entry.borrowedAt > settings.leakDetectionThresholdMillis)
+                        .forEach(entry -> {
+                            entry.leakReported = true;
+                            leaked.add(entry);
+                        });
+            }
+
+            while (total - toClose.size() < settings.minSize) open();
+        } finally {
+            lock.unlock();
+        }
+
+        toClose.forEach(this::destroy);
+        leaked.forEach(entry -> logger.warn("Possible connection leak in pool " + name + ", a connection was borrowed "
+                + (now - entry.borrowedAt) + "ms ago and wasn't returned", entry.borrowedBy));
+    }
+
+    private void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            logger.info("Couldn't return connection to pool {}.\nReason: {}", name, e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the idle connections and fails the waiting requests, borrowed connections are closed when returned
+     */
+    public void close() {
+        List<Entry> toClose;
+        List<CompletableFuture<Connection>> toFail;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayList<>(idle);
+            idle.clear();
+            toFail = new ArrayList<>(waiters);
+            waiters.clear();
+        } finally {
+            lock.unlock();
+        }
+        housekeeping.cancel(false);
+        toClose.forEach(this::destroy);
+        toFail.forEach(waiter -> waiter.completeExceptionally(new SQLException("The pool " + name + " is closed")));
+    }
+
+    public int getTotalConnections() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getIdleConnections() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBorrowedConnections() {
+        lock.lock();
+        try {
+            return borrowed.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaitingRequests() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
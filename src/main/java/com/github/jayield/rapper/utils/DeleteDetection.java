@@ -0,0 +1,17 @@
+package com.github.jayield.rapper.utils;
+
+/**
+ * How an {@link com.github.jayield.rapper.IdentityMapSynchronizer} finds the rows removed by other nodes, since removed rows
+ * aren't returned by the queries on their versions
+ */
+public enum DeleteDetection {
+    /**
+     * Removed rows aren't detected, the objects stay in the IdentityMap until evicted, expired or invalidated
+     */
+    NONE,
+    /**
+     * Every few polls, the ids and versions of all objects in the IdentityMap are read and the missing ones are removed,
+     * see {@link com.github.jayield.rapper.DataRepository#revalidate()}
+     */
+    REVALIDATE
+}
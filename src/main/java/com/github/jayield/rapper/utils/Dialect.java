@@ -0,0 +1,61 @@
+package com.github.jayield.rapper.utils;
+
+import javax.sql.ConnectionPoolDataSource;
+import java.util.List;
+
+/**
+ * Generates the SQL of a DB engine: the queries built by {@link MapperSettings}, how the version columns are read and written
+ * and how the generated keys and versions are retrieved.
+ * The insert and update statements must return a result set with the new version, in a column called version,
+ * and the insert statement must return the generated keys too, in columns with their names.
+ */
+public interface Dialect {
+
+    /**
+     * @param connectionString the connection string of a DB of this engine, in the format the dialect documents
+     * @return the DataSource of the DB, pooled by a {@link ConnectionManager}
+     */
+    ConnectionPoolDataSource getDataSource(String connectionString);
+
+    /**
+     * @param table the name of a table
+     * @return the name as it should be written in a query
+     */
+    String table(String table);
+
+    /**
+     * @param column the version column, with the table alias, e.g. C.version
+     * @param alias the name of the column in the result set
+     * @return the expression that selects the version as a bigint
+     */
+    String selectVersion(String column, String alias);
+
+    /**
+     * @param columns the columns whose values are given by the statement's parameters, in order
+     * @param generatedKeys the keys generated by the DB, to be returned with the version
+     */
+    String insert(String table, List<String> columns, List<String> generatedKeys);
+
+    /**
+     * The statement's parameters are the columns, then the ids and then the version read
+     * @param columns the columns to update
+     * @param ids the columns that identify the row
+     */
+    String update(String table, List<String> columns, List<String> ids);
+
+    String delete(String table, List<String> ids);
+
+    /**
+     * @return the query that selects the highest version used in the DB
+     */
+    String getHighWaterMarkQuery();
+
+    /**
+     * The versions up to the one selected are stable: no transaction still running can write a row with one of them.
+     * By default the high-water mark, for DBs that only give a version to a row when its transaction commits
+     * @return the query that selects the highest stable version
+     */
+    default String getStableVersionQuery() {
+        return getHighWaterMarkQuery();
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.jayield.rapper.utils;
+
+/**
+ * Count-Min sketch estimating how often each key was used, with 4-bit counters, used by {@link IdentityMap} to decide which
+ * entries are worth keeping. The counters are halved periodically so the estimates follow changes in popularity.
+ * Not thread safe.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = { 0x97cb3127L, 0xab0e6e5dL, 0xa7a7a7a7L, 0xc2b2ae35L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAXIMUM_COUNT = 15;
+
+    private final long[] table;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * @param expectedEntries how many entries are expected to be tracked, usually the maximum size of the map
+     */
+    FrequencySketch(long expectedEntries) {
+        int entries = (int) Math.min(Math.max(expectedEntries, 16), 1 << 26);
+        table = new long[Integer.highestOneBit(entries - 1) << 1];
+        sampleSize = 10 * entries;
+    }
+
+    /**
+     * @return the estimated number of times {@code hashCode} was added, up to 15
+     */
+    int frequency(int hashCode) {
+        int hash = spread(hashCode);
+        int frequency = MAXIMUM_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long slot = indexed(hash, i);
+            int index = (int) (slot & (table.length - 1));
+            int offset = counterOffset(slot);
+            frequency = Math.min(frequency, (int) ((table[index] >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    void increment(int hashCode) {
+        int hash = spread(hashCode);
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long slot = indexed(hash, i);
+            int index = (int) (slot & (table.length - 1));
+            int offset = counterOffset(slot);
+            if (((table[index] >>> offset) & 0xfL) != MAXIMUM_COUNT) {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) reset();
+    }
+
+    /**
+     * Halves every counter
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) table[i] = (table[i] >>> 1) & RESET_MASK;
+        additions /= 2;
+    }
+
+    private static long indexed(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        return h + (h >>> 32);
+    }
+
+    private static int counterOffset(long slot) {
+        return (int) ((slot >>> 40) & 15) << 2;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
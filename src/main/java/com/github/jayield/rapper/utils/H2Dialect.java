@@ -0,0 +1,75 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.exceptions.DataMapperException;
+
+import javax.sql.ConnectionPoolDataSource;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * SQL of the H2 embedded engine.
+ * H2 has no rowversion, so the version columns must be bigints and each write takes the next value of the sequence
+ * {@link #VERSION_SEQUENCE}, which has to be created in the DB. Like a rowversion, it is unique and increasing across the whole DB.
+ * The writes return the generated values with a single statement, selecting them from the FINAL TABLE of the insert or update.
+ * Identifiers that are keywords in H2, e.g. year, can be allowed with the NON_KEYWORDS setting in the connection's URL.
+ * H2 isn't a dependency of Rapper, its driver must be in the classpath to use the dialect's DataSource.
+ */
+public class H2Dialect implements Dialect {
+
+    public static final String VERSION_SEQUENCE = "rowversion";
+    public static final String CREATE_VERSION_SEQUENCE = "create sequence if not exists " + VERSION_SEQUENCE;
+
+    private static final String NEXT_VERSION = "next value for " + VERSION_SEQUENCE;
+
+    /**
+     * @param connectionString the JDBC URL of the DB, e.g. jdbc:h2:mem:name;DB_CLOSE_DELAY=-1
+     */
+    @Override
+    public ConnectionPoolDataSource getDataSource(String connectionString) {
+        try {
+            Object dataSource = Class.forName("org.h2.jdbcx.JdbcDataSource").getConstructor().newInstance();
+            dataSource.getClass().getMethod("setURL", String.class).invoke(dataSource, connectionString);
+            return (ConnectionPoolDataSource) dataSource;
+        } catch (ReflectiveOperationException e) {
+            throw new DataMapperException(e);
+        }
+    }
+
+    @Override
+    public String table(String table) {
+        return table;
+    }
+
+    @Override
+    public String selectVersion(String column, String alias) {
+        return column + " " + alias;
+    }
+
+    @Override
+    public String insert(String table, List<String> columns, List<String> generatedKeys) {
+        return Stream.concat(generatedKeys.stream(), Stream.of("version")).collect(Collectors.joining(", ", "select ", " from final table (")) +
+                Stream.concat(columns.stream(), Stream.of("version")).collect(Collectors.joining(", ", "insert into " + table + " ( ", " ) ")) +
+                Stream.concat(columns.stream().map(c -> "?"), Stream.of(NEXT_VERSION)).collect(Collectors.joining(", ", "values ( ", " ))"));
+    }
+
+    @Override
+    public String update(String table, List<String> columns, List<String> ids) {
+        return Stream.concat(columns.stream().map(c -> c + " = ?"), Stream.of("version = " + NEXT_VERSION))
+                .collect(Collectors.joining(", ", "select version from final table (update " + table + " set ", " where "))
+                + ids.stream().map(id -> id + " = ?").collect(Collectors.joining(" and "))
+                + " and version = ?)";
+    }
+
+    @Override
+    public String delete(String table, List<String> ids) {
+        return ids.stream()
+                .map(id -> id + " = ?")
+                .collect(Collectors.joining(" and ", "delete from " + table + " where ", ""));
+    }
+
+    @Override
+    public String getHighWaterMarkQuery() {
+        return "select base_value - 1 from information_schema.sequences where sequence_name = '" + VERSION_SEQUENCE.toUpperCase() + "'";
+    }
+}
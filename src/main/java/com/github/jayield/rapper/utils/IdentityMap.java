@@ -0,0 +1,854 @@
+package com.github.jayield.rapper.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+/**
+ * The map of a DataRepository holding the objects already read from or written to the DB.
+ * It can be bounded by a maximum number of entries or by a maximum weight, computed for each object by a weigher.
+ * When bounded, it uses W-TinyLFU: new entries go to a small LRU window and, when leaving it, only stay if they were used more
+ * often than the entry that would be evicted instead, as estimated by a {@link FrequencySketch}. The entries used again go to a
+ * protected segment, so a scan through many entries read only once, like a findAll, doesn't evict the ones used frequently.
+ *
+ * The entries are kept in a ConcurrentHashMap, every change of a key is atomic. The eviction policy is updated after each change,
+ * under a lock, and an entry is only evicted if it is still the one in the map, so evictions never undo a newer write.
+ * Accesses made while another thread holds the lock aren't recorded by the policy.
+ *
+ * The entries can expire some time after being written or last accessed. With refresh-ahead, an entry older than the refresh
+ * time is still served while a single background reload replaces it. When serving stale data is enabled, an expired entry is
+ * served if reloading it fails or takes longer than a timeout, up to a maximum staleness.
+ *
+ * The values can be held through soft or weak references, see {@link ReferenceType}, so the GC may reclaim them instead of
+ * running out of memory when the working set is hard to bound. The entries whose values were reclaimed are taken from a
+ * ReferenceQueue and removed by the next operations on the map.
+ */
+public class IdentityMap<K, V> {
+    public static final long UNBOUNDED = Long.MAX_VALUE;
+
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rapper-identity-map");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ConcurrentMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final long maximum;
+    private final ToLongFunction<? super V> weigher;
+    private final ReferenceType referenceType;
+    private final ReferenceQueue<V> referenceQueue = new ReferenceQueue<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    //Policy state, guarded by evictionLock
+    private final FrequencySketch sketch;
+    private final Queue<K, V> window = new Queue<>();
+    private final Queue<K, V> probation = new Queue<>();
+    private final Queue<K, V> protectedQueue = new Queue<>();
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private long windowWeight = 0;
+    private long protectedWeight = 0;
+    private long totalWeight = 0;
+
+    //Expiry settings, in nanoseconds, 0 disables them
+    private volatile long expireAfterWrite = 0;
+    private volatile long expireAfterAccess = 0;
+    private volatile long refreshAfterWrite = 0;
+    private volatile long staleLoadTimeout = 0;
+    private volatile long maxStale = 0;
+    private volatile LongSupplier ticker = System::nanoTime;
+    private final AtomicLong lastCleanUp = new AtomicLong(System.nanoTime());
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder staleServed = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictionWeight = new LongAdder();
+    private final LongAdder reclaimed = new LongAdder();
+
+    static final class Node<K, V> {
+        final K key;
+        //The value itself or, when it isn't held strongly, a ValueReference to it
+        private volatile Object value;
+        volatile long weight;
+        //Set when the node leaves the map, so the policy ignores it from then on
+        volatile boolean retired = false;
+        volatile long writeTime;
+        volatile long accessTime;
+        //The reload running in background, if any
+        final AtomicReference<CompletableFuture<Optional<V>>> refresh = new AtomicReference<>();
+
+        //Guarded by evictionLock
+        long policyWeight = 0;
+        int queue = -1;
+        boolean linked = false;
+        Node<K, V> previous, next;
+
+        Node(K key, long weight, long now) {
+            this.key = key;
+            this.weight = weight;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+
+        /**
+         * @return the value or null if it was reclaimed by the GC
+         */
+        V getValue() {
+            Object current = value;
+            return current instanceof ValueReference ? ((ValueReference<K, V>) current).get() : (V) current;
+        }
+
+        boolean isReclaimed() {
+            return getValue() == null;
+        }
+    }
+
+    private interface ValueReference<K, V> {
+        V get();
+
+        Node<K, V> getNode();
+    }
+
+    private static final class SoftValue<K, V> extends SoftReference<V> implements ValueReference<K, V> {
+        private final Node<K, V> node;
+
+        SoftValue(V value, Node<K, V> node, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.node = node;
+        }
+
+        @Override
+        public Node<K, V> getNode() {
+            return node;
+        }
+    }
+
+    private static final class WeakValue<K, V> extends WeakReference<V> implements ValueReference<K, V> {
+        private final Node<K, V> node;
+
+        WeakValue(V value, Node<K, V> node, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.node = node;
+        }
+
+        @Override
+        public Node<K, V> getNode() {
+            return node;
+        }
+    }
+
+    /**
+     * Doubly linked list of nodes, ordered from the least to the most recently used
+     */
+    private static final class Queue<K, V> {
+        Node<K, V> head, tail;
+
+        void addLast(Node<K, V> node) {
+            node.previous = tail;
+            node.next = null;
+            if (tail == null) head = node;
+            else tail.next = node;
+            tail = node;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.previous == null) head = node.next;
+            else node.previous.next = node.next;
+            if (node.next == null) tail = node.previous;
+            else node.next.previous = node.previous;
+            node.previous = node.next = null;
+        }
+
+        void moveToLast(Node<K, V> node) {
+            if (tail == node) return;
+            remove(node);
+            addLast(node);
+        }
+    }
+
+    /**
+     * Creates an unbounded IdentityMap
+     */
+    public IdentityMap() {
+        this(UNBOUNDED, value -> 1);
+    }
+
+    /**
+     * Creates an unbounded IdentityMap whose values are held as given by {@code referenceType}, so its size is only bounded
+     * by the memory available
+     */
+    public IdentityMap(ReferenceType referenceType) {
+        this(UNBOUNDED, value -> 1, referenceType);
+    }
+
+    /**
+     * @param maximumSize the maximum number of entries, 0 keeps none
+     */
+    public IdentityMap(long maximumSize) {
+        this(maximumSize, value -> 1);
+    }
+
+    /**
+     * @param maximumWeight the maximum sum of the weights of the entries
+     * @param weigher gives the weight of each value, must be positive
+     */
+    public IdentityMap(long maximumWeight, ToLongFunction<? super V> weigher) {
+        this(maximumWeight, weigher, ReferenceType.STRONG);
+    }
+
+    /**
+     * @param maximumWeight the maximum sum of the weights of the entries
+     * @param weigher gives the weight of each value, must be positive
+     * @param referenceType how the values are held
+     */
+    public IdentityMap(long maximumWeight, ToLongFunction<? super V> weigher, ReferenceType referenceType) {
+        if (maximumWeight < 0) throw new IllegalArgumentException("The maximum can't be negative");
+        this.maximum = maximumWeight;
+        this.weigher = weigher;
+        this.referenceType = referenceType;
+        if (isBounded()) {
+            sketch = new FrequencySketch(maximumWeight);
+            windowMaximum = Math.max(1, maximumWeight / 100);
+            protectedMaximum = (long) ((maximumWeight - windowMaximum) * 0.8);
+        } else {
+            sketch = null;
+            windowMaximum = protectedMaximum = UNBOUNDED;
+        }
+    }
+
+    public boolean isBounded() {
+        return maximum != UNBOUNDED;
+    }
+
+    public ReferenceType getReferenceType() {
+        return referenceType;
+    }
+
+    /**
+     * @return true if the entries only leave the map when removed: it's unbounded, holds strong references and doesn't expire
+     */
+    public boolean keepsAllEntries() {
+        return !isBounded() && referenceType == ReferenceType.STRONG && expireAfterWrite == 0 && expireAfterAccess == 0;
+    }
+
+    /**
+     * @return the value of {@code key} or null if it isn't in the map, has expired or was reclaimed
+     */
+    public V get(K key) {
+        drainReferences();
+        Node<K, V> node = data.get(key);
+        long now = ticker.getAsLong();
+        V value = node == null ? null : node.getValue();
+        if (value == null || isExpired(node, now)) {
+            if (node != null && value == null) reclaim(node);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        node.accessTime = now;
+        afterRead(node);
+        return value;
+    }
+
+    /**
+     * Gets the value of {@code key}, loading it with {@code loader} when it isn't in the map or has expired.
+     * A loaded value is put in the map unless another one was put meanwhile.
+     * An entry due to be refreshed is returned right away and reloaded in background, by a single load.
+     * An expired entry is returned instead of the loaded value if the load fails or doesn't complete before the stale load timeout,
+     * as long as it expired less than the maximum staleness ago.
+     * @param loader starts loading the value of a key, an empty result means the key doesn't exist
+     */
+    public CompletableFuture<Optional<V>> get(K key, Function<K, CompletableFuture<Optional<V>>> loader) {
+        drainReferences();
+        Node<K, V> node = data.get(key);
+        long now = ticker.getAsLong();
+        V value = node == null ? null : node.getValue();
+        if (node != null && value == null) reclaim(node);
+        else if (node != null) {
+            if (!isExpired(node, now)) {
+                hits.increment();
+                node.accessTime = now;
+                afterRead(node);
+                if (refreshAfterWrite > 0 && now - node.writeTime >= refreshAfterWrite) refresh(node, loader);
+                return CompletableFuture.completedFuture(Optional.of(value));
+            }
+            if (staleLoadTimeout > 0 && getExpiredTime(node, now) <= maxStale) {
+                misses.increment();
+                return serveStale(value, refresh(node, loader));
+            }
+            removeNode(node);
+        }
+        misses.increment();
+        return load(key, loader).thenApply(loaded -> {
+            loaded.ifPresent(loadedValue -> compute(key, (k, v) -> v == null ? loadedValue : v));
+            return loaded;
+        });
+    }
+
+    private static <K, V> CompletableFuture<Optional<V>> load(K key, Function<K, CompletableFuture<Optional<V>>> loader) {
+        try {
+            return loader.apply(key);
+        } catch (RuntimeException e) {
+            CompletableFuture<Optional<V>> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * Starts reloading the entry, unless it's already being reloaded.
+     * The result only replaces the entry if it wasn't changed meanwhile
+     * @return the reload
+     */
+    private CompletableFuture<Optional<V>> refresh(Node<K, V> node, Function<K, CompletableFuture<Optional<V>>> loader) {
+        CompletableFuture<Optional<V>> running = node.refresh.get();
+        if (running != null) return running;
+
+        CompletableFuture<Optional<V>> refresh = new CompletableFuture<>();
+        if (!node.refresh.compareAndSet(null, refresh)) return node.refresh.get();
+
+        refreshes.increment();
+        V oldValue = node.getValue();
+        load(node.key, loader).whenComplete((loaded, throwable) -> {
+            //A value changed or removed meanwhile is newer than the one reloaded. The entry may only have expired, then it's
+            //seen as absent but its node is still there
+            if (throwable == null) compute(node.key, (k, v) -> v == oldValue || (v == null && data.get(k) == node) ? loaded.orElse(null) : v);
+            node.refresh.set(null);
+            if (throwable != null) refresh.completeExceptionally(throwable);
+            else refresh.complete(loaded);
+        });
+        return refresh;
+    }
+
+    /**
+     * @return the result of {@code load} or the {@code stale} value if the load fails or times out
+     */
+    private CompletableFuture<Optional<V>> serveStale(V stale, CompletableFuture<Optional<V>> load) {
+        CompletableFuture<Optional<V>> result = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = scheduler.schedule(() -> {
+            if (result.complete(Optional.of(stale))) staleServed.increment();
+        }, staleLoadTimeout, TimeUnit.NANOSECONDS);
+        load.whenComplete((loaded, throwable) -> {
+            timeout.cancel(false);
+            if (throwable == null) result.complete(loaded);
+            else if (result.complete(Optional.of(stale))) staleServed.increment();
+        });
+        return result;
+    }
+
+    private boolean isExpired(Node<K, V> node, long now) {
+        return (expireAfterWrite > 0 && now - node.writeTime >= expireAfterWrite) ||
+                (expireAfterAccess > 0 && now - node.accessTime >= expireAfterAccess);
+    }
+
+    /**
+     * @return for how long the entry has been expired, negative if it didn't expire
+     */
+    private long getExpiredTime(Node<K, V> node, long now) {
+        long expired = Long.MIN_VALUE;
+        if (expireAfterWrite > 0) expired = now - node.writeTime - expireAfterWrite;
+        if (expireAfterAccess > 0) expired = Math.max(expired, now - node.accessTime - expireAfterAccess);
+        return expired;
+    }
+
+    /**
+     * Removes the entries that expired and can't be served as stale.
+     * Called periodically by the writes, may be called to release memory sooner
+     */
+    public void cleanUp() {
+        drainReferences();
+        long now = ticker.getAsLong();
+        lastCleanUp.set(now);
+        long stale = staleLoadTimeout > 0 ? maxStale : 0;
+        data.values().forEach(node -> {
+            if (isExpired(node, now) && getExpiredTime(node, now) > stale) removeNode(node);
+        });
+    }
+
+    private void cleanUpIfDue(long now) {
+        long interval = Math.max(TimeUnit.SECONDS.toNanos(1), Math.max(expireAfterWrite, expireAfterAccess));
+        long last = lastCleanUp.get();
+        if (now - last >= interval && lastCleanUp.compareAndSet(last, now)) cleanUp();
+    }
+
+    /**
+     * Removes {@code node} only if it is still the entry of its key
+     */
+    private void removeNode(Node<K, V> node) {
+        if (data.remove(node.key, node)) {
+            node.retired = true;
+            if (isBounded()) afterRemove(node);
+        }
+    }
+
+    /**
+     * Removes the entries whose values were reclaimed by the GC, taken from the ReferenceQueue.
+     * Called by the operations on the map, so it doesn't need a thread of its own
+     */
+    private void drainReferences() {
+        if (referenceType == ReferenceType.STRONG) return;
+        Reference<? extends V> reference;
+        while ((reference = referenceQueue.poll()) != null) {
+            Node<K, V> node = ((ValueReference<K, V>) reference).getNode();
+            //The node may have been given another value since
+            if (node.value == reference) reclaim(node);
+        }
+    }
+
+    /**
+     * Removes {@code node}, whose value was reclaimed, if it is still the entry of its key
+     */
+    private void reclaim(Node<K, V> node) {
+        if (data.remove(node.key, node)) {
+            node.retired = true;
+            reclaimed.increment();
+            if (isBounded()) afterRemove(node);
+        }
+    }
+
+    private Object wrap(Node<K, V> node, V value) {
+        switch (referenceType) {
+            case SOFT:
+                return new SoftValue<>(value, node, referenceQueue);
+            case WEAK:
+                return new WeakValue<>(value, node, referenceQueue);
+            default:
+                return value;
+        }
+    }
+
+    public boolean containsKey(K key) {
+        Node<K, V> node = data.get(key);
+        return node != null && !node.isReclaimed();
+    }
+
+    public boolean containsValue(V value) {
+        return data.values().stream().anyMatch(node -> Objects.equals(node.getValue(), value));
+    }
+
+    /**
+     * @return the number of entries, which may include entries whose values were reclaimed but weren't removed yet
+     */
+    public int size() {
+        drainReferences();
+        return data.size();
+    }
+
+    public void put(K key, V value) {
+        compute(key, (k, v) -> value);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        Object[] previous = new Object[1];
+        compute(key, (k, v) -> {
+            previous[0] = v;
+            return v == null ? value : v;
+        });
+        return (V) previous[0];
+    }
+
+    /**
+     * Replaces the value of {@code key} only if it is equal to {@code expected}
+     */
+    public boolean replace(K key, V expected, V value) {
+        boolean[] replaced = { false };
+        computeIfPresent(key, (k, v) -> {
+            if (!Objects.equals(v, expected)) return v;
+            replaced[0] = true;
+            return value;
+        });
+        return replaced[0];
+    }
+
+    public V remove(K key) {
+        Object[] previous = new Object[1];
+        compute(key, (k, v) -> {
+            previous[0] = v;
+            return null;
+        });
+        return (V) previous[0];
+    }
+
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+        return compute(key, (k, v) -> v == null ? null : function.apply(k, v));
+    }
+
+    /**
+     * Atomically computes the new value of {@code key}, returning null removes the entry
+     * @return the new value
+     */
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> function) {
+        Object[] result = new Object[1];
+        Node<K, V>[] removed = new Node[1];
+        Node<K, V>[] added = new Node[1];
+        boolean[] updated = { false };
+        boolean[] wasReclaimed = { false };
+
+        drainReferences();
+        long now = ticker.getAsLong();
+        Node<K, V> node = data.compute(key, (k, current) -> {
+            //An expired or reclaimed entry is seen as absent
+            if (current != null && !current.retired && (isExpired(current, now) || current.isReclaimed())) {
+                wasReclaimed[0] = current.isReclaimed();
+                current.retired = true;
+                removed[0] = current;
+                current = null;
+            }
+            V oldValue = current == null ? null : current.getValue();
+            V newValue = function.apply(k, oldValue);
+            result[0] = newValue;
+            if (newValue == null) {
+                if (current != null) {
+                    current.retired = true;
+                    removed[0] = current;
+                }
+                return null;
+            }
+            if (current == null) {
+                added[0] = new Node<>(k, weigh(newValue), now);
+                added[0].value = wrap(added[0], newValue);
+                return added[0];
+            }
+            current.accessTime = now;
+            if (newValue != oldValue) {
+                current.value = wrap(current, newValue);
+                current.weight = weigh(newValue);
+                current.writeTime = now;
+                updated[0] = true;
+            }
+            return current;
+        });
+
+        if (wasReclaimed[0]) reclaimed.increment();
+        if (isBounded()) {
+            if (removed[0] != null) afterRemove(removed[0]);
+            if (added[0] != null) afterAdd(added[0]);
+            if (updated[0]) afterUpdate(node);
+        }
+        if (expireAfterWrite > 0 || expireAfterAccess > 0) cleanUpIfDue(now);
+        return (V) result[0];
+    }
+
+    public void clear() {
+        data.keySet().forEach(this::remove);
+    }
+
+    /**
+     * Restarts the write time of the entry of {@code key}, as if it was just loaded, if its value is still {@code value}.
+     * Used when the value was found to be up to date, so it doesn't expire or get refreshed for being old
+     * @return false if the entry isn't in the map or has another value
+     */
+    public boolean renew(K key, V value) {
+        Node<K, V> node = data.get(key);
+        if (node == null || node.getValue() != value || node.retired) return false;
+        node.writeTime = ticker.getAsLong();
+        return true;
+    }
+
+    /**
+     * @return the keys of the entries, without the expired or reclaimed ones
+     */
+    public List<K> keys() {
+        long now = ticker.getAsLong();
+        return data.values().stream()
+                .filter(node -> !isExpired(node, now) && !node.isReclaimed())
+                .map(node -> node.key)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the values of the entries, without the expired or reclaimed ones. Their use isn't recorded by the policy
+     */
+    public List<V> values() {
+        long now = ticker.getAsLong();
+        return data.values().stream()
+                .filter(node -> !isExpired(node, now))
+                .map(Node::getValue)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Gives the keys of the entries used most often, by their frequency estimated by the policy. Entries as frequent are given
+     * from the protected segment first, then the window and then probation, each from the most to the least recently used.
+     * An unbounded map doesn't track its use, so any keys are given
+     * @param limit the maximum number of keys
+     */
+    public List<K> hottest(int limit) {
+        if (!isBounded()) return keys().stream().limit(limit).collect(Collectors.toList());
+        List<Node<K, V>> nodes = new ArrayList<>(data.size());
+        long now = ticker.getAsLong();
+        evictionLock.lock();
+        try {
+            for (Queue<K, V> queue : Arrays.asList(protectedQueue, window, probation)) {
+                for (Node<K, V> node = queue.tail; node != null; node = node.previous) {
+                    if (!node.retired && !isExpired(node, now) && !node.isReclaimed()) nodes.add(node);
+                }
+            }
+            nodes.sort(Comparator.comparingInt((Node<K, V> node) -> sketch.frequency(node.key.hashCode())).reversed());
+        } finally {
+            evictionLock.unlock();
+        }
+        return nodes.stream().limit(limit).map(node -> node.key).collect(Collectors.toList());
+    }
+
+    private long weigh(V value) {
+        return isBounded() ? Math.max(1, weigher.applyAsLong(value)) : 1;
+    }
+
+    private void afterRead(Node<K, V> node) {
+        if (!isBounded() || !evictionLock.tryLock()) return;
+        try {
+            onAccess(node);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void afterAdd(Node<K, V> node) {
+        evictionLock.lock();
+        try {
+            sketch.increment(node.key.hashCode());
+            if (node.retired || node.linked) return;
+            node.linked = true;
+            node.policyWeight = node.weight;
+            node.queue = WINDOW;
+            window.addLast(node);
+            windowWeight += node.policyWeight;
+            totalWeight += node.policyWeight;
+            evict();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void afterUpdate(Node<K, V> node) {
+        evictionLock.lock();
+        try {
+            if (!node.linked || node.retired) return;
+            long delta = node.weight - node.policyWeight;
+            node.policyWeight = node.weight;
+            totalWeight += delta;
+            if (node.queue == WINDOW) windowWeight += delta;
+            else if (node.queue == PROTECTED) protectedWeight += delta;
+            onAccess(node);
+            evict();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void afterRemove(Node<K, V> node) {
+        evictionLock.lock();
+        try {
+            unlink(node);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void onAccess(Node<K, V> node) {
+        sketch.increment(node.key.hashCode());
+        if (!node.linked || node.retired) return;
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToLast(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protectedQueue.addLast(node);
+                protectedWeight += node.policyWeight;
+                //The protected segment overflows to probation
+                while (protectedWeight > protectedMaximum && protectedQueue.head != null && protectedQueue.head != node) {
+                    Node<K, V> demoted = protectedQueue.head;
+                    protectedQueue.remove(demoted);
+                    protectedWeight -= demoted.policyWeight;
+                    demoted.queue = PROBATION;
+                    probation.addLast(demoted);
+                }
+                break;
+            case PROTECTED:
+                protectedQueue.moveToLast(node);
+                break;
+        }
+    }
+
+    /**
+     * Moves the entries leaving the window to probation and, while the map is over its maximum, evicts either the candidate
+     * that left the window or the least recently used entry in probation, keeping the one used more often
+     */
+    private void evict() {
+        Node<K, V> candidate = null;
+        while (windowWeight > windowMaximum && window.head != null) {
+            Node<K, V> node = window.head;
+            window.remove(node);
+            windowWeight -= node.policyWeight;
+            node.queue = PROBATION;
+            probation.addLast(node);
+            if (candidate == null) candidate = node;
+        }
+
+        while (totalWeight > maximum) {
+            Node<K, V> victim = probation.head;
+            if (victim == null) victim = protectedQueue.head != null ? protectedQueue.head : window.head;
+            if (victim == null) break;
+
+            if (candidate != null && candidate != victim && candidate.linked && candidate.queue == PROBATION) {
+                if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                    Node<K, V> next = candidate.next;
+                    evictNode(victim);
+                    candidate = next;
+                } else {
+                    Node<K, V> next = candidate.next;
+                    evictNode(candidate);
+                    candidate = next;
+                }
+            } else {
+                if (candidate == victim) candidate = victim.next;
+                evictNode(victim);
+            }
+        }
+    }
+
+    private void evictNode(Node<K, V> node) {
+        unlink(node);
+        if (data.remove(node.key, node)) {
+            node.retired = true;
+            evictions.increment();
+            evictionWeight.add(node.policyWeight);
+        }
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (!node.linked) return;
+        node.linked = false;
+        totalWeight -= node.policyWeight;
+        switch (node.queue) {
+            case WINDOW:
+                window.remove(node);
+                windowWeight -= node.policyWeight;
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            case PROTECTED:
+                protectedQueue.remove(node);
+                protectedWeight -= node.policyWeight;
+                break;
+        }
+    }
+
+    /**
+     * Entries expire this time after being written, 0 (the default) disables it
+     */
+    public void setExpireAfterWrite(long millis) {
+        expireAfterWrite = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Entries expire this time after being last read or written, 0 (the default) disables it
+     */
+    public void setExpireAfterAccess(long millis) {
+        expireAfterAccess = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Entries read this time after being written are reloaded in background while still being served.
+     * Should be less than the expire after write time, 0 (the default) disables it
+     */
+    public void setRefreshAfterWrite(long millis) {
+        refreshAfterWrite = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Enables serving an expired entry when reloading it fails or takes longer than {@code loadTimeoutMillis},
+     * as long as it expired less than {@code maxStaleMillis} ago. A {@code loadTimeoutMillis} of 0 disables it
+     */
+    public void setServeStale(long loadTimeoutMillis, long maxStaleMillis) {
+        staleLoadTimeout = TimeUnit.MILLISECONDS.toNanos(loadTimeoutMillis);
+        maxStale = TimeUnit.MILLISECONDS.toNanos(maxStaleMillis);
+    }
+
+    /**
+     * Replaces the source of time, in nanoseconds, used by the expiry
+     */
+    void setTicker(LongSupplier ticker) {
+        this.ticker = ticker;
+    }
+
+    public long getMaximum() {
+        return maximum;
+    }
+
+    /**
+     * @return the sum of the weights of the entries, as known by the eviction policy
+     */
+    public long getWeightedSize() {
+        if (!isBounded()) return data.size();
+        evictionLock.lock();
+        try {
+            return totalWeight;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return how many background reloads were started
+     */
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    /**
+     * @return how many times an expired entry was served because its reload failed or was too slow
+     */
+    public long getStaleServedCount() {
+        return staleServed.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getEvictionWeight() {
+        return evictionWeight.sum();
+    }
+
+    /**
+     * @return how many entries were removed because the GC reclaimed their values
+     */
+    public long getReclaimedCount() {
+        return reclaimed.sum();
+    }
+}
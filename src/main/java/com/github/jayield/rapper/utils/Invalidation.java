@@ -0,0 +1,46 @@
+package com.github.jayield.rapper.utils;
+
+import java.util.Objects;
+
+/**
+ * Tells the other nodes that an object was changed by a commit, so they stop serving older versions of it
+ */
+public final class Invalidation {
+    /**
+     * The version of the invalidations of removed objects, newer than any other
+     */
+    public static final long REMOVED = Long.MAX_VALUE;
+
+    public final String type;
+    public final Object key;
+    public final long version;
+
+    /**
+     * @param type the name of the object's class
+     * @param key the object's identity key, it must be equal to the one of the other nodes and, to be sent by a socket, Serializable
+     * @param version the version written, {@link #REMOVED} if the object was removed
+     */
+    public Invalidation(String type, Object key, long version) {
+        this.type = type;
+        this.key = key;
+        this.version = version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Invalidation that = (Invalidation) o;
+        return version == that.version && type.equals(that.type) && Objects.equals(key, that.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, key, version);
+    }
+
+    @Override
+    public String toString() {
+        return type + "(" + key + ")@" + (version == REMOVED ? "removed" : String.valueOf(version));
+    }
+}
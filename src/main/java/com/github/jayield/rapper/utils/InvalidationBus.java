@@ -0,0 +1,26 @@
+package com.github.jayield.rapper.utils;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Carries the {@link Invalidation}s of each commit to the other nodes.
+ * Set with {@link MapperRegistry#setInvalidationBus(InvalidationBus)}, the UnitOfWorks publish to it after committing and
+ * the invalidations received are applied to the DataRepositories.
+ * An implementation must not deliver a node's batches back to the node itself.
+ */
+public interface InvalidationBus extends AutoCloseable {
+
+    /**
+     * Sends the invalidations of one commit, shouldn't block waiting for the other nodes
+     */
+    void publish(List<Invalidation> invalidations);
+
+    /**
+     * @param listener called with each batch received from the other nodes
+     */
+    void subscribe(Consumer<List<Invalidation>> listener);
+
+    @Override
+    void close();
+}
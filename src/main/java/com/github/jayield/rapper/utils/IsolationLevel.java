@@ -0,0 +1,25 @@
+package com.github.jayield.rapper.utils;
+
+import com.microsoft.sqlserver.jdbc.SQLServerConnection;
+
+import java.sql.Connection;
+
+public enum IsolationLevel {
+    READ_UNCOMMITTED (Connection.TRANSACTION_READ_UNCOMMITTED),
+    READ_COMMITTED (Connection.TRANSACTION_READ_COMMITTED),
+    REPEATABLE_READ (Connection.TRANSACTION_REPEATABLE_READ),
+    SERIALIZABLE (Connection.TRANSACTION_SERIALIZABLE),
+    SNAPSHOT (SQLServerConnection.TRANSACTION_SNAPSHOT);
+
+    private final int value;
+    IsolationLevel(int value) {
+        this.value = value;
+    }
+
+    /**
+     * @return the value to be passed to {@link Connection#setTransactionIsolation(int)}
+     */
+    public int getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.jayield.rapper.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Value that is only loaded the first time it's asked for, and then kept.
+ * It's set by the DataMappers in the fields marked with @ColumnName whose type is Supplier, so the external objects are only
+ * queried if they're used. Concurrent calls share the same load, and a load that fails is done again on the next call.
+ * The load runs with whichever UnitOfWork is current on the thread that first asks for the value, or a read-only one of
+ * the default DB if there's none, not with the UnitOfWork that read the object holding it, which may have ended by then.
+ */
+public class Lazy<T> implements Supplier<T> {
+
+    private final Supplier<CompletableFuture<T>> loader;
+    private CompletableFuture<T> value = null;
+
+    public Lazy(Supplier<CompletableFuture<T>> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * @return the value, loading it if it wasn't yet
+     * @throws java.util.concurrent.CompletionException if it couldn't be loaded
+     */
+    @Override
+    public T get() {
+        return getAsync().join();
+    }
+
+    /**
+     * @return the value, loading it in background if it wasn't yet
+     */
+    public synchronized CompletableFuture<T> getAsync() {
+        if (value == null || value.isCompletedExceptionally()) {
+            try {
+                value = loader.get();
+            } catch (RuntimeException e) {
+                value = new CompletableFuture<>();
+                value.completeExceptionally(e);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the value was loaded, without loading it
+     */
+    public synchronized boolean isLoaded() {
+        return value != null && value.isDone() && !value.isCompletedExceptionally();
+    }
+}
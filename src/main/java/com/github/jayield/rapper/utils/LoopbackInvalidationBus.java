@@ -0,0 +1,46 @@
+package com.github.jayield.rapper.utils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * An InvalidationBus inside the JVM, where each instance is a node of a channel. The batches published by a node are
+ * delivered asynchronously to the other nodes of its channel. Meant for tests and for several contexts sharing a JVM
+ */
+public class LoopbackInvalidationBus implements InvalidationBus {
+
+    private static final Map<String, List<LoopbackInvalidationBus>> channels = new ConcurrentHashMap<>();
+
+    private final String channel;
+    private final List<Consumer<List<Invalidation>>> listeners = new CopyOnWriteArrayList<>();
+
+    public LoopbackInvalidationBus(String channel) {
+        this.channel = channel;
+        channels.computeIfAbsent(channel, c -> new CopyOnWriteArrayList<>()).add(this);
+    }
+
+    @Override
+    public void publish(List<Invalidation> invalidations) {
+        for (LoopbackInvalidationBus node : channels.getOrDefault(channel, new CopyOnWriteArrayList<>())) {
+            if (node != this) CompletableFuture.runAsync(() -> node.deliver(invalidations));
+        }
+    }
+
+    private void deliver(List<Invalidation> invalidations) {
+        listeners.forEach(listener -> listener.accept(invalidations));
+    }
+
+    @Override
+    public void subscribe(Consumer<List<Invalidation>> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void close() {
+        channels.getOrDefault(channel, new CopyOnWriteArrayList<>()).remove(this);
+    }
+}
@@ -1,16 +1,189 @@
 package com.github.jayield.rapper.utils;
 
-import com.github.jayield.rapper.DataRepository;
-import com.github.jayield.rapper.DomainObject;
-import com.github.jayield.rapper.DataMapper;
+import com.github.jayield.rapper.*;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class MapperRegistry {
-    private static Map<Class, DataRepository> repositoryMap = new HashMap<>();
+    private static Map<Class, DataRepository> repositoryMap = new ConcurrentHashMap<>();
+    private static volatile InvalidationBus invalidationBus = null;
+    private static final Map<String, RelationCache> relationCaches = new ConcurrentHashMap<>();
 
     public static<T extends DomainObject<K>, K> DataRepository<T, K> getRepository(Class<T> domainObject) {
-        return repositoryMap.computeIfAbsent(domainObject, c -> new DataRepository<>(new DataMapper<>(domainObject)));
+        DataRepository<T, K> repository = repositoryMap.get(domainObject);
+        if (repository != null) return repository;
+
+        //Not created in computeIfAbsent, which mustn't start threads, so a repository created by a thread that lost the race
+        //is dropped before its revalidation is started
+        DataRepository<T, K> created = createRepository(domainObject);
+        repository = repositoryMap.putIfAbsent(domainObject, created);
+        if (repository != null) return repository;
+        updateSubclassRepositories();
+        startRevalidation(domainObject, created);
+        return created;
+    }
+
+    /**
+     * Creates the DataRepository of {@code domainObject} with the caches declared by its {@link CachePolicy}, if it has one
+     */
+    private static<T extends DomainObject<K>, K> DataRepository<T, K> createRepository(Class<T> domainObject) {
+        DataMapper<T, K> mapper = new DataMapper<>(domainObject);
+        Optional<CachePolicy> cachePolicy = mapper.getMapperSettings().getCachePolicy();
+        if (!cachePolicy.isPresent()) return new DataRepository<>(mapper);
+        CachePolicy policy = cachePolicy.get();
+
+        IdentityMap<K, T> identityMap;
+        if (policy.preload()) identityMap = new IdentityMap<>(IdentityMap.UNBOUNDED, t -> 1, ReferenceType.STRONG);
+        else {
+            identityMap = new IdentityMap<>(policy.maximumSize(), t -> 1, policy.references());
+            identityMap.setExpireAfterWrite(policy.expireAfterWriteMillis());
+            identityMap.setExpireAfterAccess(policy.expireAfterAccessMillis());
+            identityMap.setRefreshAfterWrite(policy.refreshAfterWriteMillis());
+        }
+
+        SecondLevelCache<T, K> secondLevelCache = policy.offHeapBytes() > 0
+                ? new SecondLevelCache<>(mapper, policy.offHeapBytes(), policy.compressOffHeap())
+                : null;
+        DataRepository<T, K> repository = new DataRepository<>(mapper, identityMap, secondLevelCache);
+
+        if (policy.preload()) repository.setReferenceData(true);
+        repository.setKeysFirst(policy.keysFirst());
+        if (policy.queryCacheKeys() > 0) repository.setQueryCache(new QueryCache<>(domainObject, policy.queryCacheKeys()));
+
+        return repository;
+    }
+
+    /**
+     * Starts the revalidation declared by the {@link CachePolicy} of {@code domainObject}, if any
+     */
+    private static<T extends DomainObject<K>, K> void startRevalidation(Class<T> domainObject, DataRepository<T, K> repository) {
+        DataMapper<T, K> mapper = (DataMapper<T, K>) repository.getMapper();
+        Optional<CachePolicy> cachePolicy = mapper.getMapperSettings().getCachePolicy();
+        if (!cachePolicy.isPresent()) return;
+        CachePolicy policy = cachePolicy.get();
+
+        switch (policy.revalidation()) {
+            case HOTTEST:
+                repository.startRevalidation(policy.revalidationMillis(), policy.revalidatedObjects());
+                break;
+            case SYNCHRONIZE:
+                ConnectionManager connectionManager = ConnectionManager.getConnectionManager(policy.synchronizedDB());
+                IdentityMapSynchronizer<T, K> synchronizer = new IdentityMapSynchronizer<>(repository, mapper, domainObject, connectionManager);
+                synchronizer.setDeleteDetection(policy.deleteDetection(), policy.deleteCheckPolls());
+                repository.startSynchronization(synchronizer, policy.revalidationMillis());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Gives each repository the ones of its subclasses, found once per registration instead of on every miss
+     */
+    private static synchronized void updateSubclassRepositories() {
+        repositoryMap.forEach((type, repository) -> repository.setSubclassRepositories(getSubclassRepositories(type)));
+    }
+
+    /**
+     * @return the repositories already created for the subclasses of {@code type}, whose objects are also objects of {@code type}
+     */
+    private static List<DataRepository> getSubclassRepositories(Class<?> type) {
+        List<DataRepository> repositories = new ArrayList<>();
+        repositoryMap.forEach((clazz, repository) -> {
+            if (clazz != type && type.isAssignableFrom(clazz)) repositories.add(repository);
+        });
+        return repositories;
+    }
+
+    /**
+     * Drops the object of {@code key} from the repositories of the other classes of {@code type}'s inheritance chain, after it
+     * was changed through {@code type}. A change writes to the tables of the parents too, which are read by every class of the chain
+     */
+    public static void invalidateHierarchy(Class<?> type, Object key) {
+        Class<?> root = getRoot(type);
+        repositoryMap.forEach((clazz, repository) -> {
+            if (clazz != type && getRoot(clazz) == root) repository.invalidate(key);
+        });
+    }
+
+    /**
+     * @return the topmost DomainObject among {@code type} and its parents
+     */
+    private static Class<?> getRoot(Class<?> type) {
+        Class<?> root = type;
+        while (root.getSuperclass() != null && DomainObject.class.isAssignableFrom(root.getSuperclass())) root = root.getSuperclass();
+        return root;
+    }
+
+    /**
+     * @return the dialect of the queries built by the mappers created without one, the dialect of {@link DBsPath#DEFAULTDB}
+     */
+    public static Dialect getDialect() {
+        return ConnectionManager.getDialect(DBsPath.DEFAULTDB);
+    }
+
+    /**
+     * Makes {@code repository} the one used for {@code domainObject}, e.g. a {@link com.github.jayield.rapper.ShardedDataRepository}.
+     * Must be called before the repository of {@code domainObject} is first used
+     */
+    public static<T extends DomainObject<K>, K> void register(Class<T> domainObject, DataRepository<T, K> repository) {
+        repositoryMap.put(domainObject, repository);
+        updateSubclassRepositories();
+    }
+
+    /**
+     * Makes the N-N relations of {@code relationCache}'s table be read from it
+     */
+    public static void setRelationCache(RelationCache relationCache) {
+        relationCaches.put(relationCache.getTable().toLowerCase(), relationCache);
+    }
+
+    public static void removeRelationCache(String table) {
+        relationCaches.remove(table.toLowerCase());
+    }
+
+    /**
+     * @return the RelationCache of the relation table {@code table}, or null if it has none
+     */
+    public static RelationCache getRelationCache(String table) {
+        return relationCaches.get(table.toLowerCase());
+    }
+
+    public static InvalidationBus getInvalidationBus() {
+        return invalidationBus;
+    }
+
+    /**
+     * Makes the UnitOfWorks publish the changes they commit to {@code bus} and applies the invalidations received from the other nodes.
+     * Closes the bus set before, if any
+     * @param bus the bus shared with the other nodes, or null to stop publishing
+     */
+    public static synchronized void setInvalidationBus(InvalidationBus bus) {
+        if (invalidationBus != null) invalidationBus.close();
+        if (bus != null) bus.subscribe(MapperRegistry::applyInvalidations);
+        invalidationBus = bus;
+    }
+
+    /**
+     * Drops the objects older than the versions of the invalidations from the repositories already created,
+     * as well as the cached query results of their types
+     */
+    public static void applyInvalidations(List<Invalidation> invalidations) {
+        for (Invalidation invalidation : invalidations) {
+            Class<?> type;
+            try {
+                type = Class.forName(invalidation.type);
+            } catch (ClassNotFoundException e) {
+                continue;
+            }
+            QueryCache.invalidateTables(type);
+            DataRepository repository = repositoryMap.get(type);
+            if (repository != null) repository.invalidate(invalidation.key, invalidation.version);
+            invalidateHierarchy(type, invalidation.key);
+        }
     }
 }
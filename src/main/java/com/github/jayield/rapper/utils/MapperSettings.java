@@ -1,6 +1,7 @@
 package com.github.jayield.rapper.utils;
 
 
+import com.github.jayield.rapper.CachePolicy;
 import com.github.jayield.rapper.ColumnName;
 import com.github.jayield.rapper.DomainObject;
 import com.github.jayield.rapper.EmbeddedId;
@@ -18,6 +19,7 @@ import java.util.stream.Stream;
 public class MapperSettings {
 
     private final Class<?> type;
+    private final Dialect dialect;
 
     private List<SqlField> columns = new ArrayList<>();
     private List<SqlField.SqlFieldId> ids = new ArrayList<>();
@@ -29,6 +31,8 @@ public class MapperSettings {
     private String updateQuery;
     private String deleteQuery;
     private String selectByIdQuery;
+    private String selectVersionsQuery;
+    private String selectChangedQuery;
 
     private final Predicate<Field> fieldPredicate = field -> field.getType().isPrimitive() ||
             field.getType().isAssignableFrom(String.class) ||
@@ -36,7 +40,12 @@ public class MapperSettings {
             field.getType().isAssignableFrom(Date.class);
 
     public MapperSettings(Class<?> type){
+        this(type, MapperRegistry.getDialect());
+    }
+
+    public MapperSettings(Class<?> type, Dialect dialect){
         this.type = type;
+        this.dialect = dialect;
 
         Map<Class, List<SqlField>> fieldMap = Arrays.stream(type.getDeclaredFields())
                 .flatMap(field -> toSqlField(field, "C."))
@@ -101,11 +110,11 @@ public class MapperSettings {
                 .collect(Collectors.toList());
 
         StringBuilder suffix = new StringBuilder();
-        suffix.append(" from [").append(type.getSimpleName()).append("] C ");
+        suffix.append(" from ").append(dialect.table(type.getSimpleName())).append(" C ");
 
         int[] i = { 1 };
         for(Class<?> clazz = type.getSuperclass(); clazz != Object.class && DomainObject.class.isAssignableFrom(clazz); clazz = clazz.getSuperclass(), i[0]++){
-            suffix.append("inner join [").append(clazz.getSimpleName()).append(String.format("] P%d ", i[0])).append("on ");
+            suffix.append("inner join ").append(dialect.table(clazz.getSimpleName())).append(String.format(" P%d ", i[0])).append("on ");
 
             //Set the comparisions
             for (int j = 0; j < idName.size(); j++) {
@@ -124,6 +133,16 @@ public class MapperSettings {
                 .stream()
                 .collect(Collectors.joining(", ", "select ", suffix));
 
+        selectVersionsQuery = Stream.concat(ids.stream(), getVersions().stream())
+                .map(sqlField -> sqlField.selectQueryValue)
+                .collect(Collectors.joining(", ", "select ", suffix));
+
+        selectChangedQuery = getVersions()
+                .stream()
+                .map(version -> version.name.substring(0, version.name.length() - "version".length()) + ".version")
+                .map(column -> "(" + column + " > ? and " + column + " <= ?)")
+                .collect(Collectors.joining(" or ", selectQuery + " where ", ""));
+
         selectByIdQuery = selectQuery +
                 idName.stream()
                         .map(id -> id+" = ?")
@@ -142,38 +161,18 @@ public class MapperSettings {
         columnsNames.remove("Cversion");
         columns.removeIf(f-> f.name.equals("Cversion"));
 
-        boolean identity = ids
-                .stream()
-                .anyMatch(f -> f.identity && !f.isFromParent);
-
-        //TODO clean
-        String collect = ids
+        List<String> generatedKeys = ids
                 .stream()
                 .filter(f -> f.identity && !f.isFromParent)
-                .map(f -> "INSERTED." + f.name)
-                .collect(Collectors.joining(", ", "", ", "));
-        String idsNames = "";
-        if(!collect.equals(", ")) idsNames = collect;
-
-        insertQuery = (identity ? columnsNames.stream() : Stream.concat(idName.stream(), columnsNames.stream()))
-                .collect(Collectors.joining(", ","insert into [" + type.getSimpleName() + "] ( ", " ) ")) +
-                "output " + idsNames + "CAST(INSERTED.version as bigint) version " +
-                (identity ? columnsNames.stream() : Stream.concat(idName.stream(), columnsNames.stream()))
-                        .map(c -> "?")
-                        .collect(Collectors.joining(", ", "values ( ", " )"));
-
-        updateQuery = columnsNames
-                .stream()
-                .map(c -> c + " = ?")
-                .collect(Collectors.joining(", ","update [" + type.getSimpleName() + "] set "," output CAST(INSERTED.version as bigint) version where "))
-                + idName.stream()
-                .map(id -> id + " = ?")
-                .collect(Collectors.joining(" and "))
-                + " and version = ?";
-
-        deleteQuery = idName.stream()
-                .map(id -> id + " = ?")
-                .collect(Collectors.joining(" and ", "delete from [" + type.getSimpleName() + "] where ",""));
+                .map(f -> f.name)
+                .collect(Collectors.toList());
+
+        List<String> insertColumns = (generatedKeys.isEmpty() ? Stream.concat(idName.stream(), columnsNames.stream()) : columnsNames.stream())
+                .collect(Collectors.toList());
+
+        insertQuery = dialect.insert(type.getSimpleName(), insertColumns, generatedKeys);
+        updateQuery = dialect.update(type.getSimpleName(), columnsNames, idName);
+        deleteQuery = dialect.delete(type.getSimpleName(), idName);
     }
 
     class FieldOperations {
@@ -212,7 +211,7 @@ public class MapperSettings {
     }
 
     private String getQueryValue(Field f, String pref) {
-        if(f.getName().equals("version")) return String.format("CAST(%sversion as bigint) %sversion", pref, pref.substring(0, pref.length() - 1));
+        if(f.getName().equals("version")) return dialect.selectVersion(pref + f.getName(), pref.substring(0, pref.length() - 1) + f.getName());
         else return  pref + f.getName();
     }
 
@@ -228,6 +227,10 @@ public class MapperSettings {
         return type;
     }
 
+    public Dialect getDialect() {
+        return dialect;
+    }
+
     public String getSelectQuery() {
         return selectQuery;
     }
@@ -248,6 +251,38 @@ public class MapperSettings {
         return selectByIdQuery;
     }
 
+    /**
+     * @return the query that selects only the ids and the versions of each level of the hierarchy, without the where clause
+     */
+    public String getSelectVersionsQuery() {
+        return selectVersionsQuery;
+    }
+
+    /**
+     * @return the CachePolicy annotating the entity, if any
+     */
+    public Optional<CachePolicy> getCachePolicy() {
+        return Optional.ofNullable(type.getAnnotation(CachePolicy.class));
+    }
+
+    /**
+     * @return the query that selects the rows with a version, of any level of the hierarchy, in a range. Its parameters
+     * are the start (exclusive) and the end (inclusive) of the range, for each level
+     */
+    public String getSelectChangedQuery() {
+        return selectChangedQuery;
+    }
+
+    /**
+     * @return the version fields of the type and of its parents
+     */
+    public List<SqlField> getVersions() {
+        return allFields
+                .stream()
+                .filter(sqlField -> sqlField.field.getName().equals("version") && fieldPredicate.test(sqlField.field))
+                .collect(Collectors.toList());
+    }
+
     public List<SqlField.SqlFieldId> getIds() {
         return ids;
     }
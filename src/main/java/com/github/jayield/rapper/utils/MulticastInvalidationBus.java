@@ -0,0 +1,168 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.exceptions.DataMapperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * An InvalidationBus over UDP multicast, for the nodes of a LAN. Delivery isn't guaranteed, a lost datagram leaves the
+ * objects it invalidated stale until they expire or are revalidated, so it should be paired with an expiry or an
+ * {@link com.github.jayield.rapper.IdentityMapSynchronizer}.
+ * A batch is split in datagrams small enough not to be fragmented. Integer, Long and String keys are written compactly,
+ * other keys with Java serialization.
+ */
+public class MulticastInvalidationBus implements InvalidationBus {
+
+    private static final int MAX_DATAGRAM = 1400;
+    private static final byte INTEGER_KEY = 0, LONG_KEY = 1, STRING_KEY = 2, SERIALIZED_KEY = 3;
+
+    private final Logger logger = LoggerFactory.getLogger(MulticastInvalidationBus.class);
+    private final long nodeId = new Random().nextLong();
+    private final InetAddress group;
+    private final int port;
+    private final MulticastSocket socket;
+    private final List<Consumer<List<Invalidation>>> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+
+    public MulticastInvalidationBus(InetAddress group, int port) {
+        this.group = group;
+        this.port = port;
+        try {
+            socket = new MulticastSocket(port);
+            socket.joinGroup(group);
+        } catch (IOException e) {
+            throw new DataMapperException(e);
+        }
+        Thread receiver = new Thread(this::receive, "rapper-invalidation-bus");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    @Override
+    public void publish(List<Invalidation> invalidations) {
+        try {
+            List<byte[]> encoded = new ArrayList<>();
+            int size = 0;
+            for (Invalidation invalidation : invalidations) {
+                byte[] bytes = encode(invalidation);
+                if (!encoded.isEmpty() && size + bytes.length > MAX_DATAGRAM) {
+                    send(encoded);
+                    encoded.clear();
+                    size = 0;
+                }
+                encoded.add(bytes);
+                size += bytes.length;
+            }
+            if (!encoded.isEmpty()) send(encoded);
+        } catch (IOException e) {
+            logger.info("Couldn't publish invalidations\nReason: {}", e.getMessage());
+        }
+    }
+
+    private void send(List<byte[]> encoded) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_DATAGRAM);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(nodeId);
+        out.writeInt(encoded.size());
+        for (byte[] invalidation : encoded) out.write(invalidation);
+        byte[] datagram = bytes.toByteArray();
+        socket.send(new DatagramPacket(datagram, datagram.length, group, port));
+    }
+
+    private static byte[] encode(Invalidation invalidation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(invalidation.type);
+        out.writeLong(invalidation.version);
+        Object key = invalidation.key;
+        if (key instanceof Integer) {
+            out.writeByte(INTEGER_KEY);
+            out.writeInt((Integer) key);
+        } else if (key instanceof Long) {
+            out.writeByte(LONG_KEY);
+            out.writeLong((Long) key);
+        } else if (key instanceof String) {
+            out.writeByte(STRING_KEY);
+            out.writeUTF((String) key);
+        } else {
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOut = new ObjectOutputStream(serialized)) {
+                objectOut.writeObject(key);
+            }
+            out.writeByte(SERIALIZED_KEY);
+            out.writeInt(serialized.size());
+            serialized.writeTo(out);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Invalidation decode(DataInputStream in) throws IOException, ClassNotFoundException {
+        String type = in.readUTF();
+        long version = in.readLong();
+        Object key;
+        switch (in.readByte()) {
+            case INTEGER_KEY:
+                key = in.readInt();
+                break;
+            case LONG_KEY:
+                key = in.readLong();
+                break;
+            case STRING_KEY:
+                key = in.readUTF();
+                break;
+            default:
+                byte[] serialized = new byte[in.readInt()];
+                in.readFully(serialized);
+                try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+                    key = objectIn.readObject();
+                }
+        }
+        return new Invalidation(type, key, version);
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[65_536];
+        while (!closed) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength()));
+                if (in.readLong() == nodeId) continue;
+
+                int count = in.readInt();
+                List<Invalidation> invalidations = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) invalidations.add(decode(in));
+                listeners.forEach(listener -> listener.accept(invalidations));
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                if (!closed) logger.info("Couldn't receive invalidations\nReason: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<List<Invalidation>> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.leaveGroup(group);
+        } catch (IOException e) {
+            logger.info("Couldn't leave the multicast group\nReason: {}", e.getMessage());
+        }
+        socket.close();
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.jayield.rapper.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Byte arrays kept outside of the Java heap, in a direct buffer of fixed capacity allocated up front.
+ * The buffer is used as a log: values are appended after the last one and, when the end is reached, writing goes on
+ * from the start, overwriting the oldest values (FIFO eviction). So the memory taken is bounded by the capacity and
+ * the GC only sees the small index that maps each key to the position of its value.
+ * Each value has a version, a value isn't replaced by an older one.
+ * Reads don't block, they are validated against concurrent writes and retried under the lock when one happened.
+ */
+public class OffHeapStore<K> {
+
+    private static class Slot<K> {
+        private final K key;
+        private final long position;    //Position since the buffer was created, not wrapped around
+        private final int length;
+        private final long version;
+
+        private Slot(K key, long position, int length, long version) {
+            this.key = key;
+            this.position = position;
+            this.length = length;
+            this.version = version;
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final Map<K, Slot<K>> index = new ConcurrentHashMap<>();
+    private final ArrayDeque<Slot<K>> log = new ArrayDeque<>();  //Slots by position, guarded by lock
+    private final StampedLock lock = new StampedLock();
+
+    private long writePosition = 0;     //Guarded by lock
+    private long usedBytes = 0;         //Guarded by lock
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param capacity the number of bytes allocated outside of the heap
+     */
+    public OffHeapStore(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * @return a copy of the value of {@code key}, or null if there isn't one
+     */
+    public byte[] get(K key) {
+        Slot<K> slot = index.get(key);
+        if (slot == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        long stamp = lock.tryOptimisticRead();
+        byte[] value = read(slot);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = read(slot);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        if (value == null) missCount.incrementAndGet();
+        else hitCount.incrementAndGet();
+        return value;
+    }
+
+    private byte[] read(Slot<K> slot) {
+        //The slot may have been overwritten since it was taken from the index
+        if (slot.position < writePosition - capacity) return null;
+        byte[] value = new byte[slot.length];
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) (slot.position % capacity));
+        view.get(value);
+        return value;
+    }
+
+    /**
+     * Stores {@code value} as the value of {@code key}, unless the one present has a greater version
+     *
+     * @return false if the value wasn't stored, because it's older than the present one or bigger than the capacity
+     */
+    public boolean put(K key, byte[] value, long version) {
+        if (value.length > capacity) return false;
+        long stamp = lock.writeLock();
+        try {
+            Slot<K> present = index.get(key);
+            if (present != null && present.version > version) return false;
+
+            long offset = writePosition % capacity;
+            if (offset + value.length > capacity) writePosition += capacity - offset;   //Doesn't fit before the end, starts over
+            evictUpTo(writePosition + value.length - capacity);
+
+            Slot<K> slot = new Slot<>(key, writePosition, value.length, version);
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) (writePosition % capacity));
+            view.put(value);
+            writePosition += value.length;
+
+            log.addLast(slot);
+            Slot<K> replaced = index.put(key, slot);
+            if (replaced != null) usedBytes -= replaced.length;
+            usedBytes += slot.length;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Drops the slots that start before {@code position}, as their bytes are about to be overwritten
+     */
+    private void evictUpTo(long position) {
+        while (!log.isEmpty() && log.peekFirst().position < position) {
+            Slot<K> slot = log.pollFirst();
+            if (index.remove(slot.key, slot)) {
+                usedBytes -= slot.length;
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    public void remove(K key) {
+        long stamp = lock.writeLock();
+        try {
+            Slot<K> removed = index.remove(key);
+            if (removed != null) usedBytes -= removed.length;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            index.clear();
+            log.clear();
+            usedBytes = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public boolean containsKey(K key) {
+        return index.containsKey(key);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes taken by the values present, the rest of the capacity is free or taken by
+     * values that were removed or replaced
+     */
+    public long getUsedBytes() {
+        long stamp = lock.readLock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of values overwritten to make room for new ones
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.jayield.rapper.utils;
+
+/**
+ * Sizes and timeouts of a {@link ConnectionPool}
+ */
+public class PoolSettings {
+    public static final PoolSettings DEFAULT = new PoolSettings(2, 10, 30_000, 600_000, 1_800_000, 0);
+
+    public final int minSize;
+    public final int maxSize;
+    /**
+     * How long a request for a connection waits in the queue before failing
+     */
+    public final long connectionTimeoutMillis;
+    /**
+     * Connections idle for longer than this are closed, as long as there are more than minSize
+     */
+    public final long idleTimeoutMillis;
+    /**
+     * Connections older than this are closed when they are returned to the pool or found idle
+     */
+    public final long maxLifetimeMillis;
+    /**
+     * A warning with the stack trace of the borrower is logged when a connection isn't returned after this time, 0 disables it
+     */
+    public final long leakDetectionThresholdMillis;
+
+    public PoolSettings(int minSize, int maxSize, long connectionTimeoutMillis, long idleTimeoutMillis, long maxLifetimeMillis, long leakDetectionThresholdMillis) {
+        if (maxSize <= 0 || minSize < 0 || minSize > maxSize)
+            throw new IllegalArgumentException("The pool sizes must satisfy 0 <= minSize <= maxSize and maxSize > 0");
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        this.leakDetectionThresholdMillis = leakDetectionThresholdMillis;
+    }
+}
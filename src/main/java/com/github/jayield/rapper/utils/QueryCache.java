@@ -0,0 +1,133 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.DomainObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the results of the queries of one entity, by the query's columns and values.
+ * Only the identity keys of the results are kept, the objects themselves are taken from the IdentityMap.
+ * Every table has a version, incremented by {@link #invalidateTables(Class)} when a UnitOfWork commits changes to it. A result
+ * is kept with the sum of the versions of the entity's table and its parents' tables when the query started, and it's
+ * discarded as soon as that sum changes. So a result read while a change was being committed is never served.
+ * Bounded by the number of identity keys held, evicting the results used less often.
+ */
+public class QueryCache<K> {
+
+    private static final Map<Class<?>, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+
+    private static class Entry<K> {
+        private final long stamp;
+        private final List<K> keys;
+
+        private Entry(long stamp, List<K> keys) {
+            this.stamp = stamp;
+            this.keys = keys;
+        }
+    }
+
+    private final List<AtomicLong> versions = new ArrayList<>();
+    private final IdentityMap<List<Object>, Entry<K>> results;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param type the entity whose queries are cached
+     * @param maximumKeys how many identity keys can be held, adding up the results of all queries
+     */
+    public QueryCache(Class<? extends DomainObject> type, long maximumKeys) {
+        for (Class<?> table : getTables(type)) versions.add(getVersion(table));
+        results = new IdentityMap<>(maximumKeys, entry -> entry.keys.size() + 1);
+    }
+
+    private static AtomicLong getVersion(Class<?> table) {
+        return tableVersions.computeIfAbsent(table, c -> new AtomicLong());
+    }
+
+    /**
+     * @return {@code type} followed by its parents that are DomainObjects, the tables read by its queries
+     */
+    private static List<Class<?>> getTables(Class<?> type) {
+        List<Class<?>> tables = new ArrayList<>();
+        for (Class<?> clazz = type; clazz != Object.class && DomainObject.class.isAssignableFrom(clazz); clazz = clazz.getSuperclass())
+            tables.add(clazz);
+        return tables;
+    }
+
+    /**
+     * Called after a UnitOfWork commits a change to an object of {@code type}, which is written to its table and its parents' tables.
+     * Every cached result read from one of those tables is discarded
+     */
+    public static void invalidateTables(Class<?> type) {
+        getTables(type).forEach(table -> getVersion(table).incrementAndGet());
+    }
+
+    /**
+     * @return the sum of the versions of the tables of {@code type}, which changes whenever a change to them is committed
+     */
+    public static long getTablesStamp(Class<?> type) {
+        long stamp = 0;
+        for (Class<?> table : getTables(type)) stamp += getVersion(table).get();
+        return stamp;
+    }
+
+    /**
+     * Must be taken before running the query whose result is passed to {@link #put(List, long, List)}
+     */
+    public long getStamp() {
+        long stamp = 0;
+        for (AtomicLong version : versions) stamp += version.get();
+        return stamp;
+    }
+
+    /**
+     * @param query the columns and values of the query
+     * @return the identity keys of the result of {@code query}, or null if it isn't cached or it's outdated
+     */
+    public List<K> get(List<Object> query) {
+        Entry<K> entry = results.get(query);
+        if (entry == null || entry.stamp != getStamp()) {
+            if (entry != null) results.remove(query);
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return entry.keys;
+    }
+
+    /**
+     * @param stamp the value of {@link #getStamp()} before running the query
+     */
+    public void put(List<Object> query, long stamp, List<K> keys) {
+        if (stamp == getStamp()) results.put(query, new Entry<>(stamp, Collections.unmodifiableList(new ArrayList<>(keys))));
+    }
+
+    public void remove(List<Object> query) {
+        results.remove(query);
+    }
+
+    public void clear() {
+        results.clear();
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return results.getEvictionCount();
+    }
+}
@@ -0,0 +1,19 @@
+package com.github.jayield.rapper.utils;
+
+/**
+ * How an {@link IdentityMap} holds its values
+ */
+public enum ReferenceType {
+    /**
+     * The values stay in the map until they're removed, evicted or expired
+     */
+    STRONG,
+    /**
+     * The values are held through SoftReferences, the GC reclaims them when memory runs low, the least recently used first
+     */
+    SOFT,
+    /**
+     * The values are held through WeakReferences, the GC reclaims them as soon as nothing else uses them
+     */
+    WEAK
+}
@@ -0,0 +1,12 @@
+package com.github.jayield.rapper.utils;
+
+/**
+ * How the read-only connections are distributed among the healthy replicas
+ */
+public enum ReplicaRouting {
+    ROUND_ROBIN,
+    /**
+     * The replica with less connections borrowed and requests waiting for one
+     */
+    LEAST_OUTSTANDING
+}
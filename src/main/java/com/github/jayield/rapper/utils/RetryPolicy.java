@@ -0,0 +1,232 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.DomainObject;
+import com.github.jayield.rapper.exceptions.ConcurrencyException;
+import com.github.jayield.rapper.exceptions.DataMapperException;
+import javafx.util.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Re-executes a transaction when it fails because of a version conflict, a deadlock or a lock timeout.
+ * Each attempt runs on a new current UnitOfWork, the objects involved in a version conflict are removed from the IdentityMap
+ * so the next attempt reads them again from the DB. Between attempts it waits a random time up to an exponentially growing delay.
+ * The scheduler only counts the delays, the retries themselves run on the common pool.
+ */
+public class RetryPolicy {
+
+    public enum Reason {
+        VERSION_CONFLICT,
+        DEADLOCK,
+        LOCK_TIMEOUT
+    }
+
+    //SQL Server error numbers
+    private static final int DEADLOCK_VICTIM = 1205;
+    private static final int LOCK_REQUEST_TIMEOUT = 1222;
+    private static final String SERIALIZATION_FAILURE_STATE = "40001";
+
+    private static final ScheduledExecutorService delayScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rapper-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Logger logger = LoggerFactory.getLogger(RetryPolicy.class);
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final Supplier<CompletableFuture<Connection>> connectionSupplier;
+
+    private final AtomicLong exhausted = new AtomicLong();
+    private final Map<Reason, AtomicLong> retries = new EnumMap<>(Reason.class);
+
+    /**
+     * @param maxRetries how many times a transaction may be re-executed
+     * @param baseDelayMillis the maximum delay before the first retry, it doubles on each retry
+     * @param maxDelayMillis the upper bound of the delay between retries
+     */
+    public RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+        this(maxRetries, baseDelayMillis, maxDelayMillis, getDefaultConnectionSupplier());
+    }
+
+    /**
+     * @param connectionSupplier gives the connection of each attempt's UnitOfWork without blocking, see {@link UnitOfWork#newCurrentAsync(Supplier)}
+     */
+    public RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis, Supplier<CompletableFuture<Connection>> connectionSupplier) {
+        this.maxRetries = maxRetries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.connectionSupplier = connectionSupplier;
+        for (Reason reason : Reason.values()) retries.put(reason, new AtomicLong());
+    }
+
+    /**
+     * The attempts run on the common pool, so their connections are acquired without blocking while the pool is exhausted
+     */
+    private static Supplier<CompletableFuture<Connection>> getDefaultConnectionSupplier() {
+        return () -> ConnectionManager.getConnectionManager(DBsPath.DEFAULTDB).getConnectionAsync();
+    }
+
+    /**
+     * Executes {@code transaction} on a new current UnitOfWork, re-executing it while it fails for a retryable reason.
+     * The transaction must read what it needs, register its changes and commit, e.g. through a DataRepository,
+     * so each attempt works with fresh data. Once an attempt was started the UnitOfWork that was current before is current again.
+     *
+     * @param transaction the transaction, returning whether it committed successfully
+     * @return the result of the last attempt
+     */
+    public CompletableFuture<Boolean> execute(Supplier<CompletableFuture<Boolean>> transaction) {
+        return attempt(transaction, 0);
+    }
+
+    private CompletableFuture<Boolean> attempt(Supplier<CompletableFuture<Boolean>> transaction, int attempt) {
+        UnitOfWork previous = UnitOfWork.getCurrent();
+        UnitOfWork.newCurrentAsync(connectionSupplier);
+        UnitOfWork unit = UnitOfWork.getCurrent();
+
+        CompletableFuture<Boolean> result;
+        try {
+            result = transaction.get();
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        } finally {
+            UnitOfWork.setCurrent(previous);
+        }
+
+        return result
+                .handle((success, throwable) -> new Pair<>(success, throwable))
+                .thenCompose(pair -> {
+                    Boolean success = pair.getKey();
+                    Throwable throwable = pair.getValue();
+                    if (throwable == null && success) return CompletableFuture.completedFuture(true);
+
+                    discard(unit);
+                    Optional<Reason> reason = getReason(unit, throwable);
+                    if (!reason.isPresent()) return complete(success, throwable);
+
+                    if (attempt >= maxRetries) {
+                        exhausted.incrementAndGet();
+                        logger.info("Transaction failed after {} retries. Reason: {}", attempt, reason.get());
+                        return complete(success, throwable);
+                    }
+
+                    retries.get(reason.get()).incrementAndGet();
+                    invalidateConflicts(unit);
+                    return retryAfter(getDelay(attempt), () -> attempt(transaction, attempt + 1));
+                });
+    }
+
+    private static CompletableFuture<Boolean> complete(Boolean success, Throwable throwable) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if (throwable != null) future.completeExceptionally(throwable);
+        else future.complete(success);
+        return future;
+    }
+
+    /**
+     * Waits {@code delayMillis} on the scheduler and then runs {@code retry} asynchronously, so a slow attempt doesn't delay
+     * the retries of other transactions
+     */
+    private static CompletableFuture<Boolean> retryAfter(long delayMillis, Supplier<CompletableFuture<Boolean>> retry) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        delayScheduler.schedule(() -> CompletableFuture.supplyAsync(retry)
+                .thenCompose(Function.identity())
+                .whenComplete((success, throwable) -> {
+                    if (throwable != null) future.completeExceptionally(throwable);
+                    else future.complete(success);
+                }), delayMillis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * Full jitter: a random delay between 0 and min(maxDelay, baseDelay * 2^attempt)
+     */
+    private long getDelay(int attempt) {
+        long bound = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 30));
+        return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * Rolls back and releases what the failed attempt may have left open, in case it didn't reach the commit
+     */
+    private void discard(UnitOfWork unit) {
+        try {
+            unit.rollback();
+        } catch (DataMapperException e) {
+            logger.info("Couldn't rollback the failed attempt.\nReason: {}", e.getMessage());
+        }
+        unit.closeConnection();
+    }
+
+    /**
+     * The objects whose version didn't match are removed from the IdentityMap so they're read again on the next attempt
+     */
+    private static void invalidateConflicts(UnitOfWork unit) {
+        unit.getFailures()
+                .stream()
+                .filter(failure -> failure.getKey() != null && getReason(failure.getValue()) == Reason.VERSION_CONFLICT)
+                .map(Pair::getKey)
+                .forEach(RetryPolicy::invalidate);
+    }
+
+    private static <K> void invalidate(DomainObject<K> domainObject) {
+        MapperRegistry.getRepository(domainObject.getClass()).invalidate(domainObject.getIdentityKey());
+    }
+
+    private static Optional<Reason> getReason(UnitOfWork unit, Throwable throwable) {
+        if (throwable != null) return Optional.ofNullable(getReason(throwable));
+        return unit.getFailures()
+                .stream()
+                .map(failure -> getReason(failure.getValue()))
+                .filter(reason -> reason != null)
+                .findFirst();
+    }
+
+    /**
+     * Walks the causes of {@code throwable} looking for a retryable one
+     * @return the reason or null if {@code throwable} isn't retryable
+     */
+    static Reason getReason(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConcurrencyException) return Reason.VERSION_CONFLICT;
+            if (cause instanceof SQLException) {
+                SQLException sqlException = (SQLException) cause;
+                if (sqlException.getErrorCode() == DEADLOCK_VICTIM || SERIALIZATION_FAILURE_STATE.equals(sqlException.getSQLState()))
+                    return Reason.DEADLOCK;
+                if (sqlException.getErrorCode() == LOCK_REQUEST_TIMEOUT) return Reason.LOCK_TIMEOUT;
+            }
+            if (cause.getCause() == cause) break;
+        }
+        return null;
+    }
+
+    /**
+     * @return how many times transactions were re-executed
+     */
+    public long getRetryCount() {
+        return retries.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    public long getRetryCount(Reason reason) {
+        return retries.get(reason).get();
+    }
+
+    /**
+     * @return how many transactions failed for a retryable reason after all the retries
+     */
+    public long getExhaustedCount() {
+        return exhausted.get();
+    }
+}
@@ -0,0 +1,21 @@
+package com.github.jayield.rapper.utils;
+
+/**
+ * How the objects cached for an entity are kept up to date with the changes made by other nodes, see
+ * {@link com.github.jayield.rapper.CachePolicy#revalidation()}
+ */
+public enum Revalidation {
+    /**
+     * The objects are only dropped when they expire, are evicted or invalidated by an {@link InvalidationBus}
+     */
+    NONE,
+    /**
+     * The versions of the objects used most often are checked periodically,
+     * see {@link com.github.jayield.rapper.DataRepository#startRevalidation(long, int)}
+     */
+    HOTTEST,
+    /**
+     * The rows changed since the last poll are read periodically, see {@link com.github.jayield.rapper.IdentityMapSynchronizer}
+     */
+    SYNCHRONIZE
+}
@@ -0,0 +1,174 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.exceptions.DataMapperException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Writes the values of a row in a compact binary form and reads them back.
+ * The type of each value is known from the row's columns, so only a bitmap of the null values and the values themselves
+ * are written. The supported types are the ones of the columns mapped by {@link MapperSettings}: primitives, their wrappers,
+ * String, Date and Timestamp.
+ * When compression is on, rows are deflated, unless that doesn't make them smaller.
+ */
+public class RowCodec {
+    private static final byte PLAIN = 0;
+    private static final byte DEFLATED = 1;
+
+    private final Class<?>[] types;
+    private final boolean compress;
+
+    /**
+     * @param types the type of each column of the row, in order
+     */
+    public RowCodec(List<Class<?>> types, boolean compress) {
+        this.types = types.toArray(new Class<?>[0]);
+        this.compress = compress;
+        for (Class<?> type : this.types) {
+            if (!isSupported(type)) throw new DataMapperException("Unsupported column type " + type.getName());
+        }
+    }
+
+    public boolean isCompressed() {
+        return compress;
+    }
+
+    public byte[] encode(Object[] values) {
+        if (values.length != types.length)
+            throw new DataMapperException("Expected " + types.length + " values but got " + values.length);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            byte[] nulls = new byte[(types.length + 7) / 8];
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null) nulls[i / 8] |= 1 << (i % 8);
+            }
+            out.write(nulls);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) write(out, types[i], values[i]);
+            }
+            out.flush();
+            byte[] row = bytes.toByteArray();
+            return compress ? deflate(row) : frame(PLAIN, row, row.length);
+        } catch (IOException e) {
+            throw new DataMapperException(e);
+        }
+    }
+
+    public Object[] decode(byte[] encoded) {
+        try {
+            byte[] row = encoded[0] == DEFLATED ? inflate(encoded) : Arrays.copyOfRange(encoded, 1, encoded.length);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(row));
+            byte[] nulls = new byte[(types.length + 7) / 8];
+            in.readFully(nulls);
+            Object[] values = new Object[types.length];
+            for (int i = 0; i < types.length; i++) {
+                if ((nulls[i / 8] & (1 << (i % 8))) == 0) values[i] = read(in, types[i]);
+            }
+            return values;
+        } catch (IOException | DataFormatException e) {
+            throw new DataMapperException(e);
+        }
+    }
+
+    private static byte[] frame(byte format, byte[] row, int length) {
+        byte[] framed = new byte[length + 1];
+        framed[0] = format;
+        System.arraycopy(row, 0, framed, 1, length);
+        return framed;
+    }
+
+    private static byte[] deflate(byte[] row) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(row);
+            deflater.finish();
+            byte[] buffer = new byte[row.length];
+            int length = deflater.deflate(buffer);
+            //Small rows often grow when deflated, in that case they're kept as they are
+            if (!deflater.finished() || length + 4 >= row.length) return frame(PLAIN, row, row.length);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + 5);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(DEFLATED);
+            out.writeInt(row.length);
+            out.write(buffer, 0, length);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new DataMapperException(e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] encoded) throws DataFormatException {
+        int length = ((encoded[1] & 0xff) << 24) | ((encoded[2] & 0xff) << 16) | ((encoded[3] & 0xff) << 8) | (encoded[4] & 0xff);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded, 5, encoded.length - 5);
+            byte[] row = new byte[length];
+            if (inflater.inflate(row) != length) throw new DataMapperException("Corrupted row");
+            return row;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static boolean isSupported(Class<?> type) {
+        return type.isPrimitive() || type == Integer.class || type == Long.class || type == Short.class || type == Byte.class ||
+                type == Boolean.class || type == Double.class || type == Float.class || type == Character.class ||
+                type == String.class || type == Date.class || type == java.util.Date.class || type == Timestamp.class;
+    }
+
+    private static void write(DataOutputStream out, Class<?> type, Object value) throws IOException {
+        if (type == int.class || type == Integer.class) out.writeInt(((Number) value).intValue());
+        else if (type == long.class || type == Long.class) out.writeLong(((Number) value).longValue());
+        else if (type == short.class || type == Short.class) out.writeShort(((Number) value).shortValue());
+        else if (type == byte.class || type == Byte.class) out.writeByte(((Number) value).byteValue());
+        else if (type == double.class || type == Double.class) out.writeDouble(((Number) value).doubleValue());
+        else if (type == float.class || type == Float.class) out.writeFloat(((Number) value).floatValue());
+        else if (type == boolean.class || type == Boolean.class) out.writeBoolean((Boolean) value);
+        else if (type == char.class || type == Character.class) out.writeChar((Character) value);
+        else if (type == String.class) {
+            byte[] chars = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(chars.length);
+            out.write(chars);
+        }
+        else if (type == Timestamp.class) {
+            Timestamp timestamp = (Timestamp) value;
+            out.writeLong(timestamp.getTime());
+            out.writeInt(timestamp.getNanos());
+        }
+        else out.writeLong(((java.util.Date) value).getTime());
+    }
+
+    private static Object read(DataInputStream in, Class<?> type) throws IOException {
+        if (type == int.class || type == Integer.class) return in.readInt();
+        if (type == long.class || type == Long.class) return in.readLong();
+        if (type == short.class || type == Short.class) return in.readShort();
+        if (type == byte.class || type == Byte.class) return in.readByte();
+        if (type == double.class || type == Double.class) return in.readDouble();
+        if (type == float.class || type == Float.class) return in.readFloat();
+        if (type == boolean.class || type == Boolean.class) return in.readBoolean();
+        if (type == char.class || type == Character.class) return in.readChar();
+        if (type == String.class) {
+            byte[] chars = new byte[in.readInt()];
+            in.readFully(chars);
+            return new String(chars, StandardCharsets.UTF_8);
+        }
+        if (type == Timestamp.class) {
+            Timestamp timestamp = new Timestamp(in.readLong());
+            timestamp.setNanos(in.readInt());
+            return timestamp;
+        }
+        return new Date(in.readLong());
+    }
+}
@@ -7,27 +7,57 @@ import org.slf4j.LoggerFactory;
 import java.sql.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 public class SQLUtils {
     private static final Logger logger = LoggerFactory.getLogger(SQLUtils.class);
 
+    /**
+     * Executes the statement once the current UnitOfWork has its connection, which is acquired without blocking the caller
+     */
     public static CompletableFuture<PreparedStatement> execute(String sqlQuery, Consumer<PreparedStatement> handleStatement){
-        Connection con = UnitOfWork.getCurrent().getConnection();
-        try{
-            PreparedStatement preparedStatement = con.prepareStatement(sqlQuery, Statement.RETURN_GENERATED_KEYS);
-            handleStatement.accept(preparedStatement);
-            return CompletableFuture.supplyAsync(()-> {
-                try {
-                    preparedStatement.execute();
-                    return preparedStatement;
-                } catch (SQLException e) {
-                    throw new DataMapperException(e);
-                }
-            });
-        } catch (SQLException e) {
-            throw new DataMapperException(e);
+        return UnitOfWork.getCurrent().getConnectionAsync().thenApplyAsync(con -> {
+            try {
+                PreparedStatement preparedStatement = con.prepareStatement(sqlQuery, Statement.RETURN_GENERATED_KEYS);
+                handleStatement.accept(preparedStatement);
+                preparedStatement.execute();
+                return preparedStatement;
+            } catch (SQLException e) {
+                throw new DataMapperException(e);
+            }
+        });
+    }
+
+    /**
+     * Executes the query and reads its results with {@code handleResult}, closing the statement afterwards.
+     * While the results are being read the connection is held by the UnitOfWork, after that a read-only UnitOfWork may release it.
+     * {@code handleResult} runs with the UnitOfWork of the caller as the current one
+     */
+    public static <R> CompletableFuture<R> query(String sqlQuery, Consumer<PreparedStatement> handleStatement, Function<PreparedStatement, R> handleResult){
+        UnitOfWork unit = UnitOfWork.getCurrent();
+        unit.beginQuery();
+        CompletableFuture<PreparedStatement> future;
+        try {
+            future = execute(sqlQuery, handleStatement);
+        } catch (RuntimeException e) {
+            unit.endQuery();
+            throw e;
         }
+        return future
+                .thenApply(preparedStatement -> {
+                    UnitOfWork.setCurrent(unit);
+                    try {
+                        return handleResult.apply(preparedStatement);
+                    } finally {
+                        try {
+                            preparedStatement.close();
+                        } catch (SQLException e) {
+                            logger.info("Couldn't close statement.\nReason: {}", e.getMessage());
+                        }
+                    }
+                })
+                .whenComplete((r, throwable) -> unit.endQuery());
     }
 
     public static void setValuesInStatement(Stream<? extends SqlField> fields, PreparedStatement stmt, Object obj){
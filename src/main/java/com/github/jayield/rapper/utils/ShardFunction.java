@@ -0,0 +1,23 @@
+package com.github.jayield.rapper.utils;
+
+/**
+ * Chooses the shard holding the object with a given identity key
+ * @param <K> the type of the identity key
+ */
+@FunctionalInterface
+public interface ShardFunction<K> {
+
+    /**
+     * @param key the identity key of the object
+     * @param shardCount how many shards there are
+     * @return the index of the shard, between 0 and {@code shardCount} - 1
+     */
+    int getShard(K key, int shardCount);
+
+    /**
+     * Spreads the keys by their hash code, so the key class must override hashCode and equals
+     */
+    static <K> ShardFunction<K> hash() {
+        return (key, shardCount) -> Math.floorMod(key.hashCode(), shardCount);
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.exceptions.DataMapperException;
+
+import java.sql.SQLException;
+import java.util.function.Function;
+
+public interface SqlFunction<T, R> {
+
+    R apply(T t) throws SQLException;
+
+    default Function<T, R> wrap(){
+        return t -> {
+            try{
+                return apply(t);
+            }
+            catch (Exception e){
+                throw new DataMapperException(e);
+            }
+        };
+    }
+}
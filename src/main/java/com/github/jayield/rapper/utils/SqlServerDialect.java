@@ -0,0 +1,78 @@
+package com.github.jayield.rapper.utils;
+
+import com.microsoft.sqlserver.jdbc.SQLServerConnectionPoolDataSource;
+
+import javax.sql.ConnectionPoolDataSource;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * T-SQL, with the version columns being of type rowversion and the writes returning the generated values through their OUTPUT clause
+ */
+public class SqlServerDialect implements Dialect {
+
+    /**
+     * @param connectionString SERVERNAME;DATABASE;USER;PASSWORD
+     */
+    @Override
+    public ConnectionPoolDataSource getDataSource(String connectionString) {
+        String[] connectionStringParts = connectionString.split(";");
+
+        SQLServerConnectionPoolDataSource dataSource = new SQLServerConnectionPoolDataSource();
+
+        dataSource.setServerName(connectionStringParts[0]);
+        dataSource.setDatabaseName(connectionStringParts[1]);
+        dataSource.setUser(connectionStringParts[2]);
+        dataSource.setPassword(connectionStringParts[3]);
+
+        return dataSource;
+    }
+
+    @Override
+    public String table(String table) {
+        return "[" + table + "]";
+    }
+
+    @Override
+    public String selectVersion(String column, String alias) {
+        return String.format("CAST(%s as bigint) %s", column, alias);
+    }
+
+    @Override
+    public String insert(String table, List<String> columns, List<String> generatedKeys) {
+        return columns.stream().collect(Collectors.joining(", ", "insert into " + table(table) + " ( ", " ) ")) +
+                "output " + generatedKeys.stream().map(key -> "INSERTED." + key + ", ").collect(Collectors.joining()) +
+                "CAST(INSERTED.version as bigint) version " +
+                columns.stream().map(c -> "?").collect(Collectors.joining(", ", "values ( ", " )"));
+    }
+
+    @Override
+    public String update(String table, List<String> columns, List<String> ids) {
+        return columns
+                .stream()
+                .map(c -> c + " = ?")
+                .collect(Collectors.joining(", ", "update " + table(table) + " set ", " output CAST(INSERTED.version as bigint) version where "))
+                + ids.stream().map(id -> id + " = ?").collect(Collectors.joining(" and "))
+                + " and version = ?";
+    }
+
+    @Override
+    public String delete(String table, List<String> ids) {
+        return ids.stream()
+                .map(id -> id + " = ?")
+                .collect(Collectors.joining(" and ", "delete from " + table(table) + " where ", ""));
+    }
+
+    @Override
+    public String getHighWaterMarkQuery() {
+        return "select CAST(@@DBTS as bigint)";
+    }
+
+    /**
+     * A rowversion is given when the row is written, so rows of transactions still running may have versions below @@DBTS
+     */
+    @Override
+    public String getStableVersionQuery() {
+        return "select CAST(MIN_ACTIVE_ROWVERSION() as bigint) - 1";
+    }
+}
@@ -5,51 +5,259 @@ import com.github.jayield.rapper.DataRepository;
 import com.github.jayield.rapper.DomainObject;
 import com.github.jayield.rapper.exceptions.ConcurrencyException;
 import com.github.jayield.rapper.exceptions.DataMapperException;
-import javafx.util.Pair;
 import com.github.jayield.rapper.Mapper;
+import javafx.util.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.BiConsumer;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class UnitOfWork {
     /**
      * Private for each transaction
      */
     private Connection connection = null;
+    /**
+     * The connection being acquired, while there's one. Cleared if the connection is released meanwhile, the connection
+     * is then closed as soon as it arrives
+     */
+    private CompletableFuture<Connection> acquiring = null;
     private final Logger logger = LoggerFactory.getLogger(UnitOfWork.class);
-    private final Supplier<Connection> connectionSupplier;
+    private Supplier<CompletableFuture<Connection>> connectionSupplier;
     private final List<DomainObject> newObjects = new ArrayList<>();
     private final List<DomainObject> clonedObjects = new ArrayList<>();
     private final List<DomainObject> dirtyObjects = new ArrayList<>();
     private final List<DomainObject> removedObjects = new ArrayList<>();
+    /**
+     * A read-only UnitOfWork doesn't track changes and releases its connection as soon as no query is using it
+     */
+    private volatile boolean readOnly;
+    private int openQueries = 0;
+    /**
+     * Set when this UnitOfWork was opened implicitly by a read, they give the connections used while it is read-only and once
+     * it's upgraded to a writable UnitOfWork, see {@link #newCurrentReadOnlyAsync(Function, Supplier)}
+     */
+    private Supplier<CompletableFuture<Connection>> readOnlyConnectionSupplier;
+    private Supplier<CompletableFuture<Connection>> writableConnectionSupplier;
+    /**
+     * The read-only connection still used by a query when this UnitOfWork was upgraded, closed when that query ends
+     */
+    private Connection readOnlyConnection = null;
+    private CompletableFuture<Connection> readOnlyAcquiring = null;
+    /**
+     * Set when this is a nested UnitOfWork, which uses the connection of its parent and a savepoint to be able to rollback only its changes
+     */
+    private final UnitOfWork parent;
+    private Savepoint savepoint = null;
+    /**
+     * Set on a nested UnitOfWork once its commit or rollback finished, from then on its parent is the current UnitOfWork
+     */
+    private volatile boolean ended = false;
+    /**
+     * Nested UnitOfWorks that committed successfully, their changes are published to the IdentityMap when this one commits
+     */
+    private final List<UnitOfWork> nestedUnits = new ArrayList<>();
+    /**
+     * The reasons why the operations of the last commit failed, with the object whose operation failed, if known
+     */
+    private final List<Pair<DomainObject, Throwable>> failures = new ArrayList<>();
+    /**
+     * How many queries failed, they complete with an empty result so this is how a failure is told apart from no results
+     */
+    private final AtomicLong queryFailures = new AtomicLong();
+    /**
+     * The highest version written by the last successful commit
+     */
+    private volatile long committedVersion = 0;
+    /**
+     * The objects read or registered by this transaction, by type and identity key, so each one is read once and the transaction
+     * sees its own changes. Empty if the object doesn't exist or was removed. Cleared when the transaction ends
+     */
+    private final Map<Pair<Class<?>, Object>, CompletableFuture<Optional<DomainObject>>> objects = new ConcurrentHashMap<>();
 
-    private UnitOfWork(Supplier<Connection> connectionSupplier){
+    private UnitOfWork(Supplier<CompletableFuture<Connection>> connectionSupplier, boolean readOnly, UnitOfWork parent){
         this.connectionSupplier = connectionSupplier;
+        this.readOnly = readOnly;
+        this.parent = parent;
     }
 
+    private UnitOfWork(Function<Long, CompletableFuture<Connection>> readOnlyConnectionSupplier, Supplier<CompletableFuture<Connection>> writableConnectionSupplier){
+        this(null, true, null);
+        //The reads after a commit must see its writes, so the connection is to a DB that has reached the version committed
+        this.readOnlyConnectionSupplier = () -> readOnlyConnectionSupplier.apply(committedVersion);
+        this.writableConnectionSupplier = writableConnectionSupplier;
+        this.connectionSupplier = this.readOnlyConnectionSupplier;
+    }
+
+    /**
+     * Adapts a supplier that blocks until it has a connection
+     */
+    private static Supplier<CompletableFuture<Connection>> blocking(Supplier<Connection> supplier) {
+        return () -> {
+            try {
+                return CompletableFuture.completedFuture(supplier.get());
+            } catch (RuntimeException e) {
+                CompletableFuture<Connection> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        };
+    }
+
+    /**
+     * Blocks until the connection is acquired, see {@link #getConnectionAsync()}
+     */
     public Connection getConnection() {
-        if(connection == null)
-            connection = connectionSupplier.get();
-        return connection;
+        try {
+            return getConnectionAsync().join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof DataMapperException) throw (DataMapperException) e.getCause();
+            throw new DataMapperException(e.getCause());
+        }
+    }
+
+    /**
+     * Gives the connection of this UnitOfWork, acquiring it the first time without blocking while the pool has none available.
+     * A nested UnitOfWork gives the connection of its parent, after setting its savepoint
+     */
+    public CompletableFuture<Connection> getConnectionAsync() {
+        if(parent != null) return parent.getConnectionAsync().thenApply(this::setSavepoint);
+        synchronized (this) {
+            if(connection != null) return CompletableFuture.completedFuture(connection);
+            if(acquiring != null) return acquiring;
+            CompletableFuture<Connection>[] future = new CompletableFuture[1];
+            future[0] = connectionSupplier.get().whenComplete((c, throwable) -> acquired(future[0], c));
+            //A connection already available was acquired on the spot
+            if(connection == null && !future[0].isDone()) acquiring = future[0];
+            return future[0];
+        }
+    }
+
+    /**
+     * Keeps the connection acquired, unless it was released or the UnitOfWork upgraded meanwhile
+     */
+    private synchronized void acquired(CompletableFuture<Connection> future, Connection acquired) {
+        if(future == null || future == acquiring) {
+            acquiring = null;
+            connection = acquired;
+            return;
+        }
+        if(acquired == null) return;
+        if(future == readOnlyAcquiring) {
+            readOnlyAcquiring = null;
+            if(openQueries > 0) readOnlyConnection = acquired;
+            else close(acquired);
+        }
+        else close(acquired);
+    }
+
+    private synchronized Connection setSavepoint(Connection parentConnection) {
+        if(savepoint == null) {
+            try {
+                savepoint = parentConnection.setSavepoint();
+            } catch (SQLException e) {
+                throw new DataMapperException(e);
+            }
+        }
+        return parentConnection;
+    }
+
+    /**
+     * Closes the connection, which returns it to the connection pool.
+     * A nested UnitOfWork doesn't own its connection so it leaves it open
+     */
+    public synchronized void closeConnection(){
+        if(parent != null) return;
+        acquiring = null;
+        if(connection == null) return;
+        close(connection);
+        connection = null;
     }
 
-    public void closeConnection(){
+    private void close(Connection connection) {
         try {
             connection.close();
         } catch (SQLException e) {
             logger.info("Error closing connection\nError Message: " + e.getMessage());
         }
-        connection = null;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @return whether this UnitOfWork was opened implicitly by a read, so it becomes writable when a change is registered in it
+     */
+    public boolean isImplicit() {
+        return writableConnectionSupplier != null;
+    }
+
+    /**
+     * Must be called before executing a query, so the connection isn't released while it is being used
+     */
+    public synchronized void beginQuery() {
+        openQueries++;
+    }
+
+    /**
+     * Must be called after the results of a query were read.
+     * If this is a read-only UnitOfWork and no other query is running, the connection is released
+     */
+    public synchronized void endQuery() {
+        if(--openQueries > 0) return;
+        if(readOnly) closeConnection();
+        if(readOnlyConnection != null) {
+            close(readOnlyConnection);
+            readOnlyConnection = null;
+        }
+    }
+
+    /**
+     * A read-only UnitOfWork opened implicitly by a read becomes a writable one, so the objects it read can be changed in it
+     */
+    private synchronized void checkWritable() {
+        if(!readOnly) return;
+        if(writableConnectionSupplier == null) throw new DataMapperException("Changes can't be registered in a read-only UnitOfWork");
+
+        if(connection != null) {
+            if(openQueries == 0) close(connection);
+            else readOnlyConnection = connection;
+            connection = null;
+        }
+        readOnlyAcquiring = acquiring;
+        acquiring = null;
+        connectionSupplier = writableConnectionSupplier;
+        readOnly = false;
+    }
+
+    /**
+     * A UnitOfWork opened implicitly by a read goes back to be read-only once its changes were committed or rolled back.
+     * Must be called after its connection was closed
+     */
+    private synchronized void endImplicitTransaction() {
+        if(writableConnectionSupplier == null) return;
+        connectionSupplier = readOnlyConnectionSupplier;
+        readOnly = true;
     }
 
     /**
@@ -57,11 +265,13 @@ public class UnitOfWork {
      * @param obj
      */
     public void registerNew(DomainObject obj) {
+        checkWritable();
         assert obj.getIdentityKey() != null;
         assert !dirtyObjects.contains(obj);
         assert !removedObjects.contains(obj);
         assert !newObjects.contains(obj);
         newObjects.add(obj);
+        keep(obj, Optional.of(obj));
     }
 
     /**
@@ -69,6 +279,7 @@ public class UnitOfWork {
      * @param obj DomainObject to be cloned
      */
     public void registerClone(DomainObject obj) {
+        checkWritable();
         assert obj.getIdentityKey()!= null;
         assert !removedObjects.contains(obj);
         if(!clonedObjects.contains(obj) && !newObjects.contains(obj))
@@ -80,10 +291,12 @@ public class UnitOfWork {
      * @param obj
      */
     public void registerDirty(DomainObject obj){
+        checkWritable();
         assert obj.getIdentityKey()!= null;
         assert !removedObjects.contains(obj);
         if(!dirtyObjects.contains(obj) && !newObjects.contains(obj))
             dirtyObjects.add(obj);
+        keep(obj, Optional.of(obj));
     }
 
     /**
@@ -91,123 +304,415 @@ public class UnitOfWork {
      * @param obj
      */
     public void registerRemoved(DomainObject obj){
+        checkWritable();
         assert obj.getIdentityKey()!= null;
+        keep(obj, Optional.empty());
         if(newObjects.remove(obj)) return;
         dirtyObjects.remove(obj);
         if(!removedObjects.contains(obj))
             removedObjects.add(obj);
     }
 
+    private void keep(DomainObject obj, Optional<DomainObject> seen) {
+        objects.put(new Pair<>(obj.getClass(), obj.getIdentityKey()), CompletableFuture.completedFuture(seen));
+    }
+
+    /**
+     * @return the object of {@code key} known by this transaction or, for a nested UnitOfWork, by its parents, null if it isn't known
+     */
+    private CompletableFuture<Optional<DomainObject>> getKnown(Pair<Class<?>, Object> key) {
+        for (UnitOfWork unit = this; unit != null; unit = unit.parent) {
+            CompletableFuture<Optional<DomainObject>> known = unit.objects.get(key);
+            if (known != null) return known;
+        }
+        return null;
+    }
+
+    /**
+     * Gives the object of {@code key} as seen by this transaction: the one it registered as new or dirty, none if it registered
+     * it as removed, or else the one it read before. It's read with {@code loader} only the first time, so it's read once
+     * and it's always the same instance. A failed read isn't kept.
+     * A read-only UnitOfWork isn't a transaction, so it reads the object every time
+     */
+    public <T extends DomainObject<K>, K> CompletableFuture<Optional<T>> find(Class<T> type, K key, Function<K, CompletableFuture<Optional<T>>> loader) {
+        if(readOnly) return loader.apply(key);
+
+        Pair<Class<?>, Object> objectKey = new Pair<>(type, key);
+        CompletableFuture<Optional<DomainObject>> known = getKnown(objectKey);
+        if(known == null) {
+            CompletableFuture<Optional<DomainObject>> reading = new CompletableFuture<>();
+            known = objects.putIfAbsent(objectKey, reading);
+            if(known == null) {
+                known = reading;
+                loader.apply(key).whenComplete((t, throwable) -> {
+                    if(throwable == null) {
+                        reading.complete(t.map(DomainObject.class::cast));
+                        return;
+                    }
+                    objects.remove(objectKey, reading);
+                    reading.completeExceptionally(throwable);
+                });
+            }
+        }
+        return known.thenApply(t -> t.map(type::cast));
+    }
+
+    /**
+     * Makes the objects given by a query the ones seen by this transaction: the ones it already has are given in their place,
+     * the ones it removed are left out and the others are kept as read. The objects of {@code type} it registered as new
+     * or dirty, not written until it commits, are given if they match the query and left out if they no longer do.
+     * A read-only UnitOfWork has nothing registered, so it gives the objects as read
+     * @param matches tells if an object has the values the query looks for, null if that can't be told, then only the
+     *                objects read are given
+     */
+    public <T extends DomainObject<K>, K> List<T> track(Class<T> type, List<T> read, Predicate<T> matches) {
+        if(readOnly) return read;
+
+        Map<Object, T> pending = getPending(type);
+        List<T> seen = new ArrayList<>(read.size());
+        Set<Object> seenKeys = new HashSet<>();
+        for (T t : read) {
+            Pair<Class<?>, Object> objectKey = new Pair<>(type, t.getIdentityKey());
+            CompletableFuture<Optional<DomainObject>> known = getKnown(objectKey);
+            if(known == null) known = objects.putIfAbsent(objectKey, CompletableFuture.completedFuture(Optional.of(t)));
+            //An object still being read is given as the query read it
+            if(known == null || !known.isDone() || known.isCompletedExceptionally()) seen.add(t);
+            else known.join().ifPresent(obj -> {
+                if(matches != null && pending.containsKey(obj.getIdentityKey()) && !matches.test((T) obj)) return;
+                seen.add((T) obj);
+            });
+            seenKeys.add(t.getIdentityKey());
+        }
+        if(matches != null) {
+            pending.forEach((key, t) -> {
+                if(!seenKeys.contains(key) && matches.test(t)) seen.add(t);
+            });
+        }
+        return seen;
+    }
+
+    /**
+     * @return the objects of {@code type} registered as new or dirty by this UnitOfWork and its parents, and not written yet,
+     * by identity key. A nested UnitOfWork's object is given instead of its parents'
+     */
+    private <T extends DomainObject<K>, K> Map<Object, T> getPending(Class<T> type) {
+        Map<Object, T> pending = new LinkedHashMap<>();
+        for (UnitOfWork unit = this; unit != null; unit = unit.parent) {
+            List<DomainObject> registered = new ArrayList<>(unit.newObjects);
+            registered.addAll(unit.dirtyObjects);
+            for (DomainObject obj : registered) {
+                if(type.isInstance(obj)) pending.putIfAbsent(obj.getIdentityKey(), type.cast(obj));
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Called by the mappers when the operation on {@code obj} failed
+     * @param obj the object whose operation failed, or null if the failure isn't related to a single object
+     * @param cause the reason of the failure
+     */
+    public void registerFailure(DomainObject obj, Throwable cause) {
+        synchronized (failures) {
+            failures.add(new Pair<>(obj, cause));
+        }
+    }
+
+    /**
+     * @return the failures of the last commit
+     */
+    public List<Pair<DomainObject, Throwable>> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+
+    /**
+     * Called by the mappers when a query fails
+     */
+    public void registerQueryFailure() {
+        queryFailures.incrementAndGet();
+    }
+
+    /**
+     * @return how many queries made through this UnitOfWork failed
+     */
+    public long getQueryFailureCount() {
+        return queryFailures.get();
+    }
+
     private static ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
 
     /**
      * Each Thread will have its own UnitOfWork
      */
     public static void newCurrent(Supplier<Connection> supplier) {
-        setCurrent(new UnitOfWork(supplier));
+        setCurrent(new UnitOfWork(blocking(supplier), false, null));
+    }
+
+    /**
+     * Same as {@link #newCurrent(Supplier)} but the connection is acquired without blocking, e.g. with
+     * {@link ConnectionManager#getConnectionAsync()}
+     */
+    public static void newCurrentAsync(Supplier<CompletableFuture<Connection>> supplier) {
+        setCurrent(new UnitOfWork(supplier, false, null));
+    }
+
+    /**
+     * Creates a read-only UnitOfWork for the current Thread.
+     * The connections given by {@code supplier} should be in auto-commit mode, since this UnitOfWork never commits
+     */
+    public static void newCurrentReadOnly(Supplier<Connection> supplier) {
+        setCurrent(new UnitOfWork(blocking(supplier), true, null));
+    }
+
+    /**
+     * Creates a read-only UnitOfWork for the current Thread that is upgraded to a writable one the first time a change is
+     * registered in it, from then on it uses the connections given by {@code writableSupplier}. Once those changes are committed
+     * or rolled back it is read-only again. The connections are acquired without blocking.
+     * Used for the UnitOfWork opened implicitly by a read, so the objects read can then be changed and committed
+     * @param supplier gives the read-only connections, receiving the version of the last commit, see {@link #getCommittedVersion()}
+     */
+    public static void newCurrentReadOnlyAsync(Function<Long, CompletableFuture<Connection>> supplier, Supplier<CompletableFuture<Connection>> writableSupplier) {
+        setCurrent(new UnitOfWork(supplier, writableSupplier));
+    }
+
+    /**
+     * Creates a UnitOfWork nested in the current one and makes it the current UnitOfWork.
+     * Its changes are executed in the transaction of the current UnitOfWork after a savepoint. Once its commit or rollback finishes,
+     * its scope ends and the current UnitOfWork goes back to be its parent. If any of its operations fails, only its changes are
+     * rolled back, the parent's transaction goes on.
+     *
+     * <pre>{@code
+     * for (Line line : lines) {
+     *     UnitOfWork.newNested();
+     *     repository.create(line).join();  //a failure rolls back only this line
+     * }
+     * UnitOfWork.getCurrent().commit();
+     * }</pre>
+     * @return the nested UnitOfWork
+     */
+    public static UnitOfWork newNested() {
+        UnitOfWork parent = getCurrent();
+        if(parent == null || parent.readOnly)
+            throw new DataMapperException("A nested UnitOfWork needs a current UnitOfWork able to register changes");
+        UnitOfWork nested = new UnitOfWork(null, false, parent);
+        setCurrent(nested);
+        return nested;
     }
 
     public static void setCurrent(UnitOfWork uow) {
         current.set(uow);
     }
 
+    /**
+     * @return the UnitOfWork of the current Thread. A nested UnitOfWork that already ended gives way to its parent
+     */
     public static UnitOfWork getCurrent() {
-        return current.get();
+        UnitOfWork unit = current.get();
+        if(unit == null || !unit.ended) return unit;
+        while (unit.ended) unit = unit.parent;
+        current.set(unit);
+        return unit;
     }
 
     public CompletableFuture<Boolean> commit() {
-        Pair<List<DataRepository<? extends DomainObject<?>, ?>>,
-                List<CompletableFuture<Boolean>>> insertPair = executeFilteredBiFunctionInList(Mapper::create, newObjects, domainObject -> true);
-
-        Pair<List<DataRepository<? extends DomainObject<?>, ?>>,
-                List<CompletableFuture<Boolean>>> updatePair = executeFilteredBiFunctionInList(Mapper::update, dirtyObjects, domainObject -> !removedObjects.contains(domainObject));
-
-        Pair<List<DataRepository<? extends DomainObject<?>, ?>>,
-                List<CompletableFuture<Boolean>>> deletePair = executeFilteredBiFunctionInList(Mapper::delete, removedObjects, domainObject -> true);
+        if(readOnly) return CompletableFuture.completedFuture(true);
+        synchronized (failures) {
+            failures.clear();
+        }
 
-        List<CompletableFuture<Boolean>> completableFutures = insertPair.getValue();
-        completableFutures.addAll(updatePair.getValue());
-        completableFutures.addAll(deletePair.getValue());
+        List<CompletableFuture<Boolean>> completableFutures = new ArrayList<>();
+        try {
+            //The savepoint is set before any of the operations of a nested UnitOfWork runs, see getConnectionAsync
+            completableFutures.addAll(executeFilteredBiFunctionInList(Mapper::create, newObjects, domainObject -> true));
+            completableFutures.addAll(executeFilteredBiFunctionInList(Mapper::update, dirtyObjects, domainObject -> !removedObjects.contains(domainObject)));
+            completableFutures.addAll(executeFilteredBiFunctionInList(Mapper::delete, removedObjects, domainObject -> true));
+        } catch (DataMapperException e) {
+            //The operations already started are waited for, so the rollback comes after them
+            registerFailure(null, e);
+            completableFutures.add(CompletableFuture.completedFuture(false));
+        }
 
         return completableFutures
                 .stream()
                 .reduce(CompletableFuture.completedFuture(true), (a, b) -> a.thenCombine(b, (a2, b2) -> a2 && b2))
-                .thenApply(success -> updateIdentityMap(success, insertPair.getKey(), updatePair.getKey(), deletePair.getKey()));
+                .thenApply(success -> parent != null ? endNested(success) : updateIdentityMap(success));
     }
 
-    private Boolean updateIdentityMap(Boolean success, List<DataRepository<? extends DomainObject<?>, ?>> insertMappers, List<DataRepository<? extends DomainObject<?>, ?>> updateMappers,
-                                      List<DataRepository<? extends DomainObject<?>, ?>> deleteMappers) {
+    private Boolean updateIdentityMap(Boolean success) {
         try {
             if(!success) {
                 rollback();
                 return false;
             }
 
-            //The different iterators will have the same size (eg. insertMapperIter.size() == insertObjIter.size()
-            Iterator<DataRepository<? extends DomainObject<?>, ?>> insertMapperIter = insertMappers.iterator(),
-                    updateMapperIter = updateMappers.iterator(),
-                    deleteMapperIter = deleteMappers.iterator();
-            Iterator<DomainObject> insertObjIter = newObjects.iterator(),
-                    updateObjIter = dirtyObjects.iterator(),
-                    deleteObjIter = removedObjects.iterator();
-
-            //Will iterate through insert, update and delete iterators at the same time
-            while (insertMapperIter.hasNext() || updateMapperIter.hasNext() || deleteMapperIter.hasNext()){
-                iterate(insertMapperIter, insertObjIter, (mapper, domainObject) -> {
-                    if (!mapper.tryReplace(domainObject)) {
-                        throw new ConcurrencyException("Couldn't update IdentityMap");
-                    }
-                });
-                iterate(updateMapperIter, updateObjIter, (mapper, domainObject) -> {
-                    if (!mapper.tryReplace(domainObject)) {
-                        throw new ConcurrencyException("Couldn't update IdentityMap");
-                    }
-                });
-                iterate(deleteMapperIter, deleteObjIter, (mapper, domainObject) -> mapper.invalidate(domainObject.getIdentityKey()));
-            }
+            publish();
 
-            connection.commit();
+            if(connection != null) connection.commit();
+            committedVersion = Math.max(committedVersion, getWrittenVersion());
+            invalidateQueryCaches();
+            invalidateHierarchies();
+            recordNewKeys();
+            publishInvalidations();
             return true;
         }
         catch (ConcurrencyException | SQLException e) {
             logger.info("Commit wasn't successful, here's the error message:\n" +  e.getMessage());
+            registerFailure(null, e);
             rollback();
             return false;
         } finally {
             closeConnection();
-            newObjects.clear();
-            clonedObjects.clear();
-            dirtyObjects.clear();
-            removedObjects.clear();
+            clear();
+            endImplicitTransaction();
         }
     }
 
-    private<V> void iterate(Iterator<DataRepository<? extends DomainObject<?>, ?>> mapperIterator, Iterator<DomainObject> domainObjectIterator,
-                            BiConsumer<DataRepository<DomainObject<V>, V>, DomainObject<V>> biConsumer) {
-        if(mapperIterator.hasNext()) {
-            DataRepository<DomainObject<V>, V> mapper = (DataRepository<DomainObject<V>, V>) mapperIterator.next();
-            DomainObject<V> domainObject = domainObjectIterator.next();
-            biConsumer.accept(mapper, domainObject);
+    /**
+     * Ends the scope of a nested UnitOfWork.
+     * If its operations were successful, the changes are kept to be published in the IdentityMap when the outermost UnitOfWork commits,
+     * otherwise only the operations made since its savepoint are rolled back
+     * @param success whether all operations of this UnitOfWork were successful
+     * @return success
+     */
+    private Boolean endNested(Boolean success) {
+        if(success) {
+            synchronized (parent.nestedUnits) {
+                parent.nestedUnits.add(this);
+            }
+            parent.objects.putAll(objects);
+            ended = true;
+            return true;
+        }
+        try {
+            rollback();
+        } catch (DataMapperException e) {
+            logger.info("Couldn't rollback to savepoint, here's the error message:\n" +  e.getMessage());
+        } finally {
+            clear();
+            ended = true;
+        }
+        return false;
+    }
+
+    /**
+     * Puts the new and updated objects in the IdentityMap and removes the deleted ones, including the ones of committed nested UnitOfWorks
+     */
+    private void publish() {
+        newObjects.forEach(this::replaceInIdentityMap);
+        dirtyObjects.forEach(this::replaceInIdentityMap);
+        removedObjects.forEach(domainObject -> MapperRegistry.getRepository(domainObject.getClass()).invalidate(domainObject.getIdentityKey()));
+        nestedUnits.forEach(UnitOfWork::publish);
+    }
+
+    /**
+     * The objects created are now seen by other UnitOfWorks, so the NegativeCaches must no longer take them as absent
+     */
+    private void recordNewKeys() {
+        newObjects.forEach(domainObject -> MapperRegistry.getRepository(domainObject.getClass()).recordPresent(domainObject.getIdentityKey()));
+        nestedUnits.forEach(UnitOfWork::recordNewKeys);
+    }
+
+    /**
+     * Discards the cached query results read from the tables changed by this UnitOfWork and its committed nested UnitOfWorks.
+     * Done after the DB commit, so a result read before it can't be cached afterwards
+     */
+    private void invalidateQueryCaches() {
+        newObjects.forEach(domainObject -> QueryCache.invalidateTables(domainObject.getClass()));
+        dirtyObjects.forEach(domainObject -> QueryCache.invalidateTables(domainObject.getClass()));
+        removedObjects.forEach(domainObject -> QueryCache.invalidateTables(domainObject.getClass()));
+        nestedUnits.forEach(UnitOfWork::invalidateQueryCaches);
+    }
+
+    /**
+     * Drops the objects written by this UnitOfWork and its committed nested UnitOfWorks from the repositories of the other classes
+     * of their inheritance chains, see {@link MapperRegistry#invalidateHierarchy(Class, Object)}
+     */
+    private void invalidateHierarchies() {
+        Stream.of(newObjects, dirtyObjects, removedObjects)
+                .flatMap(List::stream)
+                .forEach(domainObject -> MapperRegistry.invalidateHierarchy(domainObject.getClass(), domainObject.getIdentityKey()));
+        nestedUnits.forEach(UnitOfWork::invalidateHierarchies);
+    }
+
+    /**
+     * Sends the changes of this commit to the other nodes, in a single batch with one invalidation per object
+     */
+    private void publishInvalidations() {
+        InvalidationBus bus = MapperRegistry.getInvalidationBus();
+        if (bus == null) return;
+
+        Map<Pair<String, Object>, Long> versions = new LinkedHashMap<>();
+        addInvalidations(versions);
+        if (versions.isEmpty()) return;
+
+        List<Invalidation> invalidations = versions.entrySet()
+                .stream()
+                .map(entry -> new Invalidation(entry.getKey().getKey(), entry.getKey().getValue(), entry.getValue()))
+                .collect(Collectors.toList());
+        try {
+            bus.publish(invalidations);
+        } catch (RuntimeException e) {
+            logger.info("Couldn't publish the invalidations, here's the error message:\n" + e.getMessage());
         }
     }
 
+    /**
+     * Adds the changes of this UnitOfWork and its committed nested ones, keeping the highest version of each object
+     */
+    private void addInvalidations(Map<Pair<String, Object>, Long> versions) {
+        Stream.concat(newObjects.stream(), dirtyObjects.stream())
+                .forEach(domainObject -> versions.merge(new Pair<>(domainObject.getClass().getName(), domainObject.getIdentityKey()), domainObject.getVersion(), Math::max));
+        removedObjects
+                .forEach(domainObject -> versions.put(new Pair<>(domainObject.getClass().getName(), domainObject.getIdentityKey()), Invalidation.REMOVED));
+        nestedUnits.forEach(unit -> unit.addInvalidations(versions));
+    }
+
+    private long getWrittenVersion() {
+        long version = newObjects.stream().mapToLong(DomainObject::getVersion).max().orElse(0);
+        version = Math.max(version, dirtyObjects.stream().mapToLong(DomainObject::getVersion).max().orElse(0));
+        return Math.max(version, nestedUnits.stream().mapToLong(UnitOfWork::getWrittenVersion).max().orElse(0));
+    }
+
+    /**
+     * Gives the highest rowversion written by this UnitOfWork's commits, to be passed to
+     * {@link ConnectionManager#getReadOnlyConnection(IsolationLevel, long)} so later reads see these writes even when served by a replica
+     * @return the highest version written, 0 if nothing was written
+     */
+    public long getCommittedVersion() {
+        return committedVersion;
+    }
+
+    /**
+     * A newer version already in the IdentityMap, e.g. put by a later commit, is kept
+     */
+    private void replaceInIdentityMap(DomainObject domainObject) {
+        MapperRegistry.getRepository(domainObject.getClass()).tryReplace(domainObject);
+    }
+
+    private void clear() {
+        newObjects.clear();
+        clonedObjects.clear();
+        dirtyObjects.clear();
+        removedObjects.clear();
+        nestedUnits.clear();
+        objects.clear();
+    }
+
     /**
      * It will iterate over {@code list} and call {@code biFunction} passing the mapper and the domainObject
      *
      * @param biFunction the biFunction to be called for each iteration
      * @param list the list to iterate
      * @param predicate the predicate to filter the elements to iterate
-     * @return a Pair whose key contains an ordered List of the object's mappers inside {@code list}, meaning, for example,
-     * for object located at index 4 in {@code list}, its mapper is located at the same index in this List.
-     *
-     * The value of the Pair is a List containing the completableFutures of the calls of the mapper
+     * @return a List containing the completableFutures of the calls of the mapper
      */
-    private<V> Pair<List<DataRepository<? extends DomainObject<?>, ?>>, List<CompletableFuture<Boolean>>> executeFilteredBiFunctionInList(
+    private<V> List<CompletableFuture<Boolean>> executeFilteredBiFunctionInList(
             BiFunction<Mapper<DomainObject<V>, V>, DomainObject<V>, CompletableFuture<Boolean>> biFunction,
             List<DomainObject> list,
             Predicate<DomainObject> predicate
     ) {
-        List<DataRepository<? extends DomainObject<?>, ?>> mappers = new ArrayList<>();
         List<CompletableFuture<Boolean>> completableFutures = new ArrayList<>();
         list
                 .stream()
@@ -215,39 +720,53 @@ public class UnitOfWork {
                 .forEach(domainObject -> {
                     DataRepository repository = MapperRegistry.getRepository(domainObject.getClass());
                     completableFutures.add(biFunction.apply(repository.getMapper(), domainObject));
-                    mappers.add(repository);
                 });
 
-        return new Pair<>(mappers, completableFutures);
+        return completableFutures;
     }
 
     /**
+     * If this is a nested UnitOfWork, the connection is rolled back to its savepoint and its scope ends, otherwise the whole
+     * transaction is rolled back.
      * Removes the objects from the newObjects from the IdentityMap
      * Puts the objects in removedObjects into the IdentityMap
      * The objects in dirtyObjects need to go back as before
      */
     public void rollback() {
+        if(readOnly) return;
         try {
-            connection.rollback();
-
-            newObjects.forEach(domainObject -> MapperRegistry.getRepository(domainObject.getClass()).invalidate(domainObject.getIdentityKey()));
-
-            for (DomainObject obj : dirtyObjects) {
-                clonedObjects
-                        .stream()
-                        .filter(domainObject -> domainObject.getIdentityKey().equals(obj.getIdentityKey()))
-                        .findFirst()
-                        .ifPresent(
-                                clone -> MapperRegistry.getRepository(obj.getClass()).validate(clone.getIdentityKey(), clone)
-                        );
+            if(parent == null) {
+                if (connection != null) connection.rollback();
             }
+            else if(savepoint != null) parent.getConnection().rollback(savepoint);
 
-            removedObjects
-                    .stream()
-                    .filter(obj -> !dirtyObjects.contains(obj))
-                    .forEach(obj -> MapperRegistry.getRepository(obj.getClass()).validate(obj.getIdentityKey(), obj));
+            restoreIdentityMap();
+            objects.clear();
         } catch (SQLException e) {
             throw new DataMapperException(e);
+        } finally {
+            if(parent != null) ended = true;
         }
     }
+
+    private void restoreIdentityMap() {
+        newObjects.forEach(domainObject -> MapperRegistry.getRepository(domainObject.getClass()).invalidate(domainObject.getIdentityKey()));
+
+        for (DomainObject obj : dirtyObjects) {
+            clonedObjects
+                    .stream()
+                    .filter(domainObject -> domainObject.getIdentityKey().equals(obj.getIdentityKey()))
+                    .findFirst()
+                    .ifPresent(
+                            clone -> MapperRegistry.getRepository(obj.getClass()).validate(clone.getIdentityKey(), clone)
+                    );
+        }
+
+        removedObjects
+                .stream()
+                .filter(obj -> !dirtyObjects.contains(obj))
+                .forEach(obj -> MapperRegistry.getRepository(obj.getClass()).validate(obj.getIdentityKey(), obj));
+
+        nestedUnits.forEach(UnitOfWork::restoreIdentityMap);
+    }
 }
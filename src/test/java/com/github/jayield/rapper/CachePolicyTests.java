@@ -0,0 +1,306 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.domainModel.Country;
+import com.github.jayield.rapper.utils.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.function.BooleanSupplier;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * The entities with a CachePolicy are declared here, each with a table of its own, so the repositories that the
+ * MapperRegistry creates for the other tests' entities keep the defaults
+ */
+public class CachePolicyTests {
+
+    @CachePolicy(maximumSize = 100, offHeapBytes = 16 * 1024, queryCacheKeys = 1_000)
+    public static class Sized implements DomainObject<String> {
+        @Id
+        private final String code;
+        private final String name;
+        private final long version;
+
+        public Sized(String code, String name) {
+            this.code = code;
+            this.name = name;
+            this.version = 0;
+        }
+
+        public Sized() {
+            this(null, null);
+        }
+
+        @Override
+        public String getIdentityKey() {
+            return code;
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    @CachePolicy(expireAfterWriteMillis = 200)
+    public static class Expiring implements DomainObject<String> {
+        @Id
+        private final String code;
+        private final String name;
+        private final long version;
+
+        public Expiring(String code, String name) {
+            this.code = code;
+            this.name = name;
+            this.version = 0;
+        }
+
+        public Expiring() {
+            this(null, null);
+        }
+
+        @Override
+        public String getIdentityKey() {
+            return code;
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    @CachePolicy(references = ReferenceType.WEAK)
+    public static class Weak implements DomainObject<String> {
+        @Id
+        private final String code;
+        private final String name;
+        private final long version;
+
+        public Weak(String code, String name) {
+            this.code = code;
+            this.name = name;
+            this.version = 0;
+        }
+
+        public Weak() {
+            this(null, null);
+        }
+
+        @Override
+        public String getIdentityKey() {
+            return code;
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    @CachePolicy(maximumSize = 0)
+    public static class Uncached implements DomainObject<String> {
+        @Id
+        private final String code;
+        private final String name;
+        private final long version;
+
+        public Uncached(String code, String name) {
+            this.code = code;
+            this.name = name;
+            this.version = 0;
+        }
+
+        public Uncached() {
+            this(null, null);
+        }
+
+        @Override
+        public String getIdentityKey() {
+            return code;
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    @CachePolicy(revalidation = Revalidation.SYNCHRONIZE, revalidationMillis = 20, deleteCheckPolls = 1)
+    public static class Polled implements DomainObject<String> {
+        @Id
+        private final String code;
+        private final String name;
+        private final long version;
+
+        public Polled(String code, String name) {
+            this.code = code;
+            this.name = name;
+            this.version = 0;
+        }
+
+        public Polled() {
+            this(null, null);
+        }
+
+        @Override
+        public String getIdentityKey() {
+            return code;
+        }
+
+        @Override
+        public long getVersion() {
+            return version;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final String[] TABLES = { "Sized", "Expiring", "Weak", "Uncached", "Polled" };
+
+    private final ConnectionManager manager = getH2ConnectionManager("H2TEST");
+
+    @Before
+    public void before() throws SQLException {
+        createTables(manager);
+        for (String table : TABLES) {
+            execute(manager,
+                    "create table if not exists " + table + " (code varchar(3) primary key, name varchar(50), version bigint)",
+                    "delete from " + table);
+        }
+        //The mappers created by the MapperRegistry take the dialect of the default DB
+        getH2ConnectionManager(DBsPath.DEFAULTDB, "H2TEST");
+        newUnitOfWork();
+    }
+
+    @After
+    public void after() {
+        UnitOfWork.getCurrent().closeConnection();
+        UnitOfWork.setCurrent(null);
+        getRepositoryMap().values().forEach(DataRepository::stopRevalidation);
+        getRepositoryMap().clear();
+        ConnectionManager.removeConnectionManager(DBsPath.DEFAULTDB.toString());
+    }
+
+    private void newUnitOfWork() {
+        H2TestUtils.newUnitOfWork(manager);
+    }
+
+    @Test
+    public void shouldKeepTheDefaultsWithoutACachePolicy() {
+        assertSame(dialect, MapperRegistry.getDialect());
+        DataRepository<Country, String> countryRepository = MapperRegistry.getRepository(Country.class);
+        assertEquals(DataRepository.DEFAULT_IDENTITY_MAP_SIZE, countryRepository.getIdentityMap().getMaximum());
+        assertFalse(countryRepository.getSecondLevelCache().isPresent());
+        assertFalse(countryRepository.getQueryCache().isPresent());
+    }
+
+    @Test
+    public void shouldBuildTheCachesOfTheCachePolicy() {
+        DataRepository<Sized, String> repository = MapperRegistry.getRepository(Sized.class);
+        assertEquals(100, repository.getIdentityMap().getMaximum());
+        assertTrue(repository.getSecondLevelCache().isPresent());
+        assertTrue(repository.getQueryCache().isPresent());
+
+        assertTrue(repository.create(new Sized("PT", "Portugal")).join());
+        repository.getIdentityMap().clear();
+        newUnitOfWork();
+        assertEquals("Portugal", repository.findById("PT").join().get().getName());
+        assertEquals(1, repository.getSecondLevelCache().get().getHitCount());
+    }
+
+    @Test
+    public void shouldExpireTheObjectsAfterTheirTimeToLive() throws SQLException {
+        DataRepository<Expiring, String> repository = MapperRegistry.getRepository(Expiring.class);
+        assertTrue(repository.create(new Expiring("PT", "Portugal")).join());
+
+        //Changed without a new version, so only a read that reaches the DB sees it
+        execute(manager, "update Expiring set name = 'Changed' where code = 'PT'");
+        newUnitOfWork();
+        assertEquals("Portugal", repository.findById("PT").join().get().getName());
+
+        await(() -> repository.getIdentityMap().get("PT") == null);
+        newUnitOfWork();
+        assertEquals("Changed", repository.findById("PT").join().get().getName());
+    }
+
+    @Test
+    public void shouldHoldTheObjectsWithTheReferencesOfTheCachePolicy() {
+        DataRepository<Weak, String> repository = MapperRegistry.getRepository(Weak.class);
+        assertEquals(ReferenceType.WEAK, repository.getIdentityMap().getReferenceType());
+        assertTrue(repository.create(new Weak("PT", "Portugal")).join());
+        newUnitOfWork();
+
+        //Nothing else references the object, so the GC reclaims it
+        await(() -> {
+            System.gc();
+            return repository.getIdentityMap().get("PT") == null;
+        });
+        assertEquals("Portugal", repository.findById("PT").join().get().getName());
+    }
+
+    @Test
+    public void shouldCacheNothingWithMaximumSizeZero() throws SQLException {
+        DataRepository<Uncached, String> repository = MapperRegistry.getRepository(Uncached.class);
+        assertTrue(repository.create(new Uncached("PT", "Portugal")).join());
+        assertEquals(0, repository.getIdentityMap().size());
+
+        execute(manager, "update Uncached set name = 'Changed' where code = 'PT'");
+        newUnitOfWork();
+        assertEquals("Changed", repository.findById("PT").join().get().getName());
+        assertEquals(0, repository.getIdentityMap().size());
+    }
+
+    @Test
+    public void shouldSynchronizeAsSetByTheCachePolicy() throws SQLException {
+        DataRepository<Polled, String> repository = MapperRegistry.getRepository(Polled.class);
+        assertTrue(repository.create(new Polled("PT", "Portugal")).join());
+
+        //Depending on whether the first poll was before, it's replaced by the change or dropped as stale
+        execute(manager, "update Polled set name = 'Changed', version = next value for rowversion where code = 'PT'");
+        await(() -> {
+            Polled cached = repository.getIdentityMap().get("PT");
+            return cached == null || cached.getName().equals("Changed");
+        });
+        newUnitOfWork();
+        assertEquals("Changed", repository.findById("PT").join().get().getName());
+
+        //A removed row is only found by the delete detection, checked on every poll
+        execute(manager, "delete from Polled where code = 'PT'");
+        await(() -> !repository.getIdentityMap().containsKey("PT"));
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
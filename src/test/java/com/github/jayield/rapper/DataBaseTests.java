@@ -20,8 +20,9 @@ public class DataBaseTests {
     @Before
     public void before() throws SQLException {
         connectionManager = ConnectionManager.getConnectionManager(DBsPath.TESTDB);
-        Connection con = connectionManager.getConnection();
-        //DBStatements.createTables(con);
+        try (Connection con = connectionManager.getConnection()) {
+            //DBStatements.createTables(con);
+        }
     }
 
     @Test
@@ -46,11 +46,12 @@ public class DataRepositoryTests {
     @Before
     public void before() throws SQLException {
         ConnectionManager manager = ConnectionManager.getConnectionManager(DBsPath.TESTDB);
-        Connection con = manager.getConnection();
-        con.prepareCall("{call deleteDB}").execute();
-        con.prepareCall("{call populateDB}").execute();
-        con.prepareStatement("delete from EmployeeJunior").executeUpdate();
-        con.commit();
+        try (Connection con = manager.getConnection()) {
+            con.prepareCall("{call deleteDB}").execute();
+            con.prepareCall("{call populateDB}").execute();
+            con.prepareStatement("delete from EmployeeJunior").executeUpdate();
+            con.commit();
+        }
         /*createTables(con);
         deleteDB(con);
         populateDB(con);*/
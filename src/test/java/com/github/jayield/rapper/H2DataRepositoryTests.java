@@ -0,0 +1,205 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.domainModel.Person;
+import com.github.jayield.rapper.domainModel.Student;
+import com.github.jayield.rapper.utils.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javafx.util.Pair;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the caches of DataRepository against an in-memory H2 DB
+ */
+public class H2DataRepositoryTests {
+
+    private final ConnectionManager manager = getH2ConnectionManager("H2TEST");
+    private DataRepository<Person, Integer> personRepository;
+
+    @Before
+    public void before() throws SQLException {
+        createTables(manager);
+        personRepository = new DataRepository<>(new DataMapper<>(Person.class, dialect));
+        MapperRegistry.register(Person.class, personRepository);
+        newUnitOfWork();
+    }
+
+    @After
+    public void after() {
+        UnitOfWork.getCurrent().closeConnection();
+        UnitOfWork.setCurrent(null);
+        getRepositoryMap().clear();
+    }
+
+    private void newUnitOfWork() {
+        H2TestUtils.newUnitOfWork(manager);
+    }
+
+    @Test
+    public void shouldRevalidateByVersion() throws SQLException {
+        List<Person> people = IntStream.rangeClosed(1, 3)
+                .mapToObj(nif -> new Person(nif, "Person " + nif, null, 0))
+                .collect(Collectors.toList());
+        assertTrue(personRepository.createAll(people).join());
+
+        try (Connection con = manager.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("update Person set name = 'Changed', version = next value for rowversion where nif = 2");
+            stmt.execute("delete from Person where nif = 3");
+            con.commit();
+        }
+
+        newUnitOfWork();
+        Person unchanged = personRepository.findById(1).join().get();
+        assertEquals(2, personRepository.revalidate().join().intValue());
+        assertSame(unchanged, personRepository.getIdentityMap().get(1));
+        assertEquals("Changed", personRepository.getIdentityMap().get(2).getName());
+        assertFalse(personRepository.getIdentityMap().containsKey(3));
+        assertEquals(0, personRepository.revalidate().join().intValue());
+    }
+
+    @Test
+    public void shouldServeReferenceDataFromMemory() throws SQLException {
+        assertTrue(personRepository.createAll(Arrays.asList(new Person(1, "Ana", null, 0), new Person(2, "Rui", null, 0))).join());
+        DataRepository<Person, Integer> repository = new DataRepository<>(new DataMapper<>(Person.class, dialect), new IdentityMap<>());
+        repository.setReferenceData(true);
+        MapperRegistry.register(Person.class, repository);
+
+        newUnitOfWork();
+        assertEquals(2, repository.findAll().join().size());
+        assertTrue(repository.isComplete());
+
+        //Changed behind the repository's back, so it's not seen while the table is held in memory
+        try (Connection con = manager.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("update Person set name = 'Changed', version = next value for rowversion where nif = 1");
+            stmt.execute("insert into Person (nif, name, version) values (3, 'New', next value for rowversion)");
+            con.commit();
+        }
+        newUnitOfWork();
+        assertEquals(2, repository.findAll().join().size());
+        assertFalse(repository.findById(3).join().isPresent());
+        List<Person> found = repository.findWhere(new Pair<>("name", "Ana")).join();
+        assertEquals(1, found.size());
+        assertEquals(1, found.get(0).getNif());
+
+        //A change committed through a UnitOfWork makes the whole table be loaded again
+        assertTrue(repository.create(new Person(4, "Eva", null, 0)).join());
+        assertFalse(repository.isComplete());
+        newUnitOfWork();
+        assertEquals(4, repository.findAll().join().size());
+        assertEquals("Changed", repository.findById(1).join().get().getName());
+        assertTrue(repository.isComplete());
+    }
+
+    @Test
+    public void shouldShareObjectsAndInvalidationsAlongTheHierarchy() {
+        DataRepository<Student, Integer> studentRepository = new DataRepository<>(new DataMapper<>(Student.class, dialect));
+        MapperRegistry.register(Student.class, studentRepository);
+
+        Student student = new Student(454, "Nuno", null, 0, 3, 0);
+        assertTrue(studentRepository.create(student).join());
+
+        //Read through the parent without going to the DB
+        newUnitOfWork();
+        assertSame(student, personRepository.findById(454).join().get());
+
+        //Changed at the top of the chain, the other levels read it again
+        newUnitOfWork();
+        Person person = new DataMapper<>(Person.class, dialect).findById(454).join().get();
+        assertTrue(personRepository.update(new Person(454, "Nuno Miguel", null, person.getVersion())).join());
+        assertNull(studentRepository.getIdentityMap().get(454));
+
+        newUnitOfWork();
+        Student read = studentRepository.findById(454).join().get();
+        assertNotSame(student, read);
+        assertEquals("Nuno Miguel", read.getName());
+        assertEquals(3, read.getStudentNumber());
+
+        //Removed at the bottom, the parent doesn't keep it
+        assertNotNull(personRepository.getIdentityMap().get(454));
+        assertTrue(studentRepository.delete(read).join());
+        assertNull(personRepository.getIdentityMap().get(454));
+    }
+
+    @Test
+    public void shouldCompareTheVersionsOfItsOwnLevelForObjectsOfSubclasses() {
+        DataRepository<Student, Integer> studentRepository = new DataRepository<>(new DataMapper<>(Student.class, dialect));
+        MapperRegistry.register(Student.class, studentRepository);
+        Student student = new Student(454, "Nuno", null, 0, 3, 0);
+        assertTrue(studentRepository.create(student).join());
+
+        newUnitOfWork();
+        assertSame(student, personRepository.findById(454).join().get());
+        //The Student's row is written after its Person's, so its own version is higher
+        long personVersion = new DataMapper<>(Person.class, dialect).findById(454).join().get().getVersion();
+        assertTrue(personVersion < student.getVersion());
+
+        assertFalse(personRepository.tryReplace(new Person(454, "Old", null, personVersion - 1)));
+        Person newer = new Person(454, "Nuno Miguel", null, personVersion + 1);
+        assertTrue(personRepository.tryReplace(newer));
+        assertSame(newer, personRepository.getIdentityMap().get(454));
+
+        personRepository.getIdentityMap().put(454, student);
+        personRepository.invalidate(454, personVersion);
+        assertSame(student, personRepository.getIdentityMap().get(454));
+        personRepository.invalidate(454, personVersion + 1);
+        assertNull(personRepository.getIdentityMap().get(454));
+    }
+
+    @Test
+    public void shouldKeepTheNewestVersionOnConcurrentReplaces() {
+        List<Integer> versions = IntStream.rangeClosed(1, 10_000).boxed().collect(Collectors.toList());
+        Collections.shuffle(versions);
+        long replaced = versions.parallelStream()
+                .filter(version -> personRepository.tryReplace(new Person(1, "Ana", null, version)))
+                .count();
+
+        assertEquals(10_000, personRepository.getIdentityMap().get(1).getVersion());
+        assertEquals(10_000, replaced + personRepository.getSkippedStaleCount());
+        //Every version is put once, so each one skipped met a newer one
+        assertEquals(personRepository.getSkippedStaleCount(), personRepository.getContentionCount());
+        assertFalse(personRepository.tryReplace(new Person(1, "Old", null, 5)));
+        assertEquals("Ana", personRepository.getIdentityMap().get(1).getName());
+
+        long contention = personRepository.getContentionCount();
+        assertFalse(personRepository.tryReplace(new Person(1, "Ana", null, 10_000)));
+        assertEquals(contention, personRepository.getContentionCount());
+    }
+
+    @Test
+    public void shouldReadWholeOnlyTheRowsNotUpToDate() throws SQLException {
+        List<Person> people = Arrays.asList(new Person(1, "Ana", null, 0), new Person(2, "Ana", null, 0), new Person(3, "Ana", null, 0));
+        assertTrue(personRepository.createAll(people).join());
+        personRepository.setKeysFirst(true);
+        personRepository.getIdentityMap().remove(1);
+        List<Integer> rowOrder = new ArrayList<>();
+        try (Connection con = manager.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("update Person set birthday = '2000-01-01', version = next value for rowversion where nif = 2");
+            con.commit();
+            ResultSet rs = stmt.executeQuery("select nif from Person where name = 'Ana'");
+            while (rs.next()) rowOrder.add(rs.getInt(1));
+        }
+
+        //The objects are given in the order of the rows, the ones read whole aren't put after the one cached
+        newUnitOfWork();
+        List<Person> found = personRepository.findWhere(new Pair<>("name", "Ana")).join();
+        assertEquals(rowOrder, found.stream().map(Person::getNif).collect(Collectors.toList()));
+        Map<Integer, Person> byNif = found.stream().collect(Collectors.toMap(Person::getNif, person -> person));
+        assertSame(people.get(2), byNif.get(3));
+        assertNotSame(people.get(1), byNif.get(2));
+        assertEquals(Date.valueOf("2000-01-01"), byNif.get(2).getBirthday());
+        assertSame(byNif.get(1), personRepository.getIdentityMap().get(1));
+        assertSame(byNif.get(2), personRepository.getIdentityMap().get(2));
+    }
+}
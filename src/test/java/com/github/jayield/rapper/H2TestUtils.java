@@ -0,0 +1,85 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.utils.*;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+/**
+ * In-memory H2 DBs for the tests that don't need SQL Server
+ */
+public class H2TestUtils {
+    public static final Dialect dialect = new H2Dialect();
+    private static final PoolSettings poolSettings = new PoolSettings(0, 4, 5_000, 60_000, 600_000, 0);
+
+    public static ConnectionManager getH2ConnectionManager(String name) {
+        return ConnectionManager.getConnectionManager(name, dialect.getDataSource(getUrl(name)), dialect, poolSettings);
+    }
+
+    /**
+     * Sets the ConnectionManager of {@code envVar} to the H2 DB called {@code name}, to be removed with
+     * {@link ConnectionManager#removeConnectionManager(String)} when the test ends
+     */
+    public static ConnectionManager getH2ConnectionManager(DBsPath envVar, String name) {
+        return ConnectionManager.getConnectionManager(envVar, dialect.getDataSource(getUrl(name)), dialect, poolSettings);
+    }
+
+    private static String getUrl(String name) {
+        return "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+    }
+
+    /**
+     * Creates the tables of the test domain model, if they don't exist, and deletes their rows
+     */
+    public static void createTables(ConnectionManager connectionManager) throws SQLException {
+        try (Connection con = connectionManager.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute(H2Dialect.CREATE_VERSION_SEQUENCE);
+            stmt.execute("create table if not exists Person (nif int primary key, name varchar(50), birthday date, version bigint)");
+            stmt.execute("create table if not exists Employee (id int auto_increment primary key, name varchar(50), companyId int, companyCid int, version bigint)");
+            stmt.execute("create table if not exists Country (code varchar(3) primary key, name varchar(50), version bigint)");
+            stmt.execute("create table if not exists Student (nif int primary key references Person, studentNumber int, version bigint)");
+            stmt.execute("create table if not exists Company (id int, cid int, motto varchar(50), version bigint, primary key (id, cid))");
+            stmt.execute("create table if not exists CompanyEmployee (companyId int, companyCid int, employeeId int)");
+            stmt.execute("delete from CompanyEmployee");
+            stmt.execute("delete from Company");
+            stmt.execute("delete from Student");
+            stmt.execute("delete from Person");
+            stmt.execute("delete from Employee");
+            stmt.execute("delete from Country");
+            con.commit();
+        }
+    }
+
+    /**
+     * Executes {@code statements} on a connection of its own, behind the mappers' back
+     */
+    public static void execute(ConnectionManager connectionManager, String... statements) throws SQLException {
+        try (Connection con = connectionManager.getConnection(); Statement stmt = con.createStatement()) {
+            for (String statement : statements) stmt.execute(statement);
+            con.commit();
+        }
+    }
+
+    /**
+     * Closes the connection of the current UnitOfWork, if there's one, and starts a new one
+     */
+    public static void newUnitOfWork(ConnectionManager connectionManager) {
+        UnitOfWork current = UnitOfWork.getCurrent();
+        if (current != null) current.closeConnection();
+        SqlSupplier<Connection> connectionSupplier = connectionManager::getConnection;
+        UnitOfWork.newCurrent(connectionSupplier.wrap());
+    }
+
+    public static Map<Class, DataRepository> getRepositoryMap() {
+        try {
+            Field repositoryMapField = MapperRegistry.class.getDeclaredField("repositoryMap");
+            repositoryMapField.setAccessible(true);
+            return (Map<Class, DataRepository>) repositoryMapField.get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
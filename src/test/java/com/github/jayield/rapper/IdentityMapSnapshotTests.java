@@ -0,0 +1,111 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.domainModel.Person;
+import com.github.jayield.rapper.utils.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+public class IdentityMapSnapshotTests {
+
+    private final ConnectionManager manager = getH2ConnectionManager("H2TEST");
+    private DataRepository<Person, Integer> personRepository;
+
+    @Before
+    public void before() throws SQLException {
+        createTables(manager);
+        personRepository = new DataRepository<>(new DataMapper<>(Person.class, dialect));
+        MapperRegistry.register(Person.class, personRepository);
+        newUnitOfWork();
+    }
+
+    @After
+    public void after() {
+        UnitOfWork.getCurrent().closeConnection();
+        UnitOfWork.setCurrent(null);
+        getRepositoryMap().clear();
+    }
+
+    private void newUnitOfWork() {
+        H2TestUtils.newUnitOfWork(manager);
+    }
+
+    @Test
+    public void shouldRestoreSnapshotKeepingOnlyUpToDateRows() throws SQLException, IOException {
+        List<Person> people = IntStream.rangeClosed(1, 3)
+                .mapToObj(nif -> new Person(nif, "Person " + nif, Date.valueOf("1990-01-0" + nif), 0))
+                .collect(Collectors.toList());
+        assertTrue(personRepository.createAll(people).join());
+
+        Path file = Files.createTempFile("Person", ".snapshot");
+        DataMapper<Person, Integer> personMapper = new DataMapper<>(Person.class, dialect);
+        assertEquals(3, new IdentityMapSnapshot<>(personRepository, personMapper, file).save());
+
+        try (Connection con = manager.getConnection(); Statement stmt = con.createStatement()) {
+            //Changed without a new version, so only a read that reaches the DB would see it
+            stmt.execute("update Person set name = 'Unseen' where nif = 1");
+            stmt.execute("update Person set name = 'Changed', version = next value for rowversion where nif = 2");
+            stmt.execute("delete from Person where nif = 3");
+            con.commit();
+        }
+
+        DataRepository<Person, Integer> restarted = new DataRepository<>(personMapper);
+        MapperRegistry.register(Person.class, restarted);
+        IdentityMapSnapshot<Person, Integer> snapshot = new IdentityMapSnapshot<>(restarted, personMapper, file);
+        newUnitOfWork();
+        assertEquals(1, snapshot.restore().join().intValue());
+        assertEquals(0, restarted.getIdentityMap().size());
+
+        newUnitOfWork();
+        Person restored = restarted.findById(1).join().get();
+        assertEquals("Person 1", restored.getName());
+        assertEquals(people.get(0).getBirthday(), restored.getBirthday());
+        assertEquals(people.get(0).getVersion(), restored.getVersion());
+        assertEquals(0, snapshot.size());
+        assertEquals("Changed", restarted.findById(2).join().get().getName());
+        assertFalse(restarted.findById(3).join().isPresent());
+
+        assertEquals(2, snapshot.save());
+        Files.delete(file);
+    }
+
+    @Test
+    public void shouldKeepTheRowsNotReadYetWhenReplacingTheSnapshotRestored() throws IOException {
+        List<Person> people = IntStream.rangeClosed(1, 3)
+                .mapToObj(nif -> new Person(nif, "Person " + nif, null, 0))
+                .collect(Collectors.toList());
+        assertTrue(personRepository.createAll(people).join());
+
+        Path file = Files.createTempFile("Person", ".snapshot");
+        DataMapper<Person, Integer> personMapper = new DataMapper<>(Person.class, dialect);
+        assertEquals(3, new IdentityMapSnapshot<>(personRepository, personMapper, file).save());
+
+        DataRepository<Person, Integer> restarted = new DataRepository<>(personMapper);
+        MapperRegistry.register(Person.class, restarted);
+        IdentityMapSnapshot<Person, Integer> snapshot = new IdentityMapSnapshot<>(restarted, personMapper, file);
+        newUnitOfWork();
+        assertEquals(3, snapshot.restore().join().intValue());
+        assertEquals("Person 1", restarted.findById(1).join().get().getName());
+
+        //The file restored is still mapped when it's replaced
+        assertEquals(3, snapshot.save());
+        assertEquals(2, snapshot.size());
+        assertEquals("Person 2", restarted.findById(2).join().get().getName());
+        assertEquals("Person 3", restarted.findById(3).join().get().getName());
+        assertEquals(0, snapshot.size());
+
+        assertEquals(3, snapshot.save());
+        Files.delete(file);
+    }
+}
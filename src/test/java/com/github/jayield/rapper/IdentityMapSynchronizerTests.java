@@ -0,0 +1,90 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.domainModel.Person;
+import com.github.jayield.rapper.domainModel.Student;
+import com.github.jayield.rapper.utils.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+public class IdentityMapSynchronizerTests {
+
+    private final ConnectionManager manager = getH2ConnectionManager("H2TEST");
+    private DataRepository<Person, Integer> personRepository;
+
+    @Before
+    public void before() throws SQLException {
+        createTables(manager);
+        personRepository = new DataRepository<>(new DataMapper<>(Person.class, dialect));
+        MapperRegistry.register(Person.class, personRepository);
+        newUnitOfWork();
+    }
+
+    @After
+    public void after() {
+        UnitOfWork.getCurrent().closeConnection();
+        UnitOfWork.setCurrent(null);
+        getRepositoryMap().clear();
+    }
+
+    private void newUnitOfWork() {
+        H2TestUtils.newUnitOfWork(manager);
+    }
+
+    @Test
+    public void shouldSynchronizeChangesOfOtherNodes() throws SQLException {
+        List<Person> people = IntStream.rangeClosed(1, 3)
+                .mapToObj(nif -> new Person(nif, "Person " + nif, null, 0))
+                .collect(Collectors.toList());
+        assertTrue(personRepository.createAll(people).join());
+
+        IdentityMapSynchronizer<Person, Integer> synchronizer = new IdentityMapSynchronizer<>(personRepository, new DataMapper<>(Person.class, dialect), Person.class, manager);
+        synchronizer.setDeleteDetection(DeleteDetection.REVALIDATE, 1);
+        assertEquals(0, synchronizer.poll().join().intValue());
+        long watermark = synchronizer.getWatermark();
+        assertTrue(watermark >= people.get(2).getVersion());
+
+        try (Connection con = manager.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("update Person set name = 'Changed', version = next value for rowversion where nif = 1");
+            stmt.execute("delete from Person where nif = 2");
+            stmt.execute("insert into Person (nif, name, version) values (4, 'New', next value for rowversion)");
+            con.commit();
+        }
+
+        assertEquals(2, synchronizer.poll().join().intValue());
+        assertTrue(synchronizer.getWatermark() > watermark);
+        assertEquals("Changed", personRepository.getIdentityMap().get(1).getName());
+        assertFalse(personRepository.getIdentityMap().containsKey(2));
+        assertSame(people.get(2), personRepository.getIdentityMap().get(3));
+        assertFalse(personRepository.getIdentityMap().containsKey(4));
+        assertEquals(0, synchronizer.poll().join().intValue());
+    }
+
+    @Test
+    public void shouldSynchronizeChangesToTheRowOfAParentOnly() throws SQLException {
+        DataRepository<Student, Integer> studentRepository = new DataRepository<>(new DataMapper<>(Student.class, dialect));
+        MapperRegistry.register(Student.class, studentRepository);
+        Student student = new Student(454, "Nuno", null, 0, 3, 0);
+        assertTrue(studentRepository.create(student).join());
+
+        IdentityMapSynchronizer<Student, Integer> synchronizer = new IdentityMapSynchronizer<>(studentRepository, new DataMapper<>(Student.class, dialect), Student.class, manager);
+        assertEquals(0, synchronizer.poll().join().intValue());
+
+        //Student's own version stays the same
+        execute(manager, "update Person set name = 'Changed', version = next value for rowversion where nif = 454");
+
+        assertEquals(1, synchronizer.poll().join().intValue());
+        Student read = studentRepository.getIdentityMap().get(454);
+        assertEquals("Changed", read.getName());
+        assertEquals(student.getVersion(), read.getVersion());
+        assertEquals(0, synchronizer.poll().join().intValue());
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.domainModel.Company;
+import com.github.jayield.rapper.domainModel.Employee;
+import com.github.jayield.rapper.domainModel.Person;
+import com.github.jayield.rapper.exceptions.DataMapperException;
+import com.github.jayield.rapper.utils.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+public class LazyTests {
+
+    private final ConnectionManager manager = getH2ConnectionManager("H2TEST");
+    private DataRepository<Person, Integer> personRepository;
+    private DataRepository<Employee, Integer> employeeRepository;
+
+    @Before
+    public void before() throws SQLException {
+        createTables(manager);
+        personRepository = new DataRepository<>(new DataMapper<>(Person.class, dialect));
+        MapperRegistry.register(Person.class, personRepository);
+        employeeRepository = new DataRepository<>(new DataMapper<>(Employee.class, dialect));
+        MapperRegistry.register(Employee.class, employeeRepository);
+        newUnitOfWork();
+    }
+
+    @After
+    public void after() {
+        UnitOfWork.getCurrent().closeConnection();
+        UnitOfWork.setCurrent(null);
+        getRepositoryMap().clear();
+    }
+
+    private void newUnitOfWork() {
+        H2TestUtils.newUnitOfWork(manager);
+    }
+
+    @Test
+    public void shouldLoadSupplierExternalsOnlyWhenAsked() throws SQLException {
+        try (Connection con = manager.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("insert into Company (id, cid, motto, version) values (1, 1, 'Motto', next value for rowversion)");
+            stmt.execute("insert into Employee (name, companyId, companyCid, version) values ('Ana', 1, 1, next value for rowversion)");
+            stmt.execute("insert into Employee (name, companyId, companyCid, version) values ('Rui', 1, 1, next value for rowversion)");
+            stmt.execute("insert into CompanyEmployee select companyId, companyCid, id from Employee");
+            con.commit();
+        }
+        DataRepository<Company, Company.PrimaryKey> companyRepository = new DataRepository<>(new DataMapper<>(Company.class, dialect));
+        MapperRegistry.register(Company.class, companyRepository);
+
+        newUnitOfWork();
+        Company company = companyRepository.findAll().join().get(0);
+        Lazy<List<Employee>> currentEmployees = (Lazy<List<Employee>>) company.getCurrentEmployees();
+        Lazy<List<Employee>> allEmployees = (Lazy<List<Employee>>) company.getAllEmployees();
+        assertFalse(currentEmployees.isLoaded());
+        assertFalse(allEmployees.isLoaded());
+
+        List<Employee> employees = currentEmployees.get();
+        assertEquals(2, employees.size());
+        assertTrue(currentEmployees.isLoaded());
+        assertSame(employees, currentEmployees.get());
+        assertSame(employees, currentEmployees.getAsync().join());
+        assertEquals(2, allEmployees.getAsync().join().size());
+    }
+
+    @Test
+    public void shouldLoadWithTheUnitOfWorkCurrentWhenFirstAsked() throws SQLException {
+        execute(manager,
+                "insert into Company (id, cid, motto, version) values (1, 1, 'Motto', next value for rowversion)",
+                "insert into Employee (name, companyId, companyCid, version) values ('Ana', 1, 1, next value for rowversion)");
+        DataRepository<Company, Company.PrimaryKey> companyRepository = new DataRepository<>(new DataMapper<>(Company.class, dialect));
+        MapperRegistry.register(Company.class, companyRepository);
+
+        newUnitOfWork();
+        UnitOfWork owner = UnitOfWork.getCurrent();
+        Lazy<List<Employee>> employees = (Lazy<List<Employee>>) companyRepository.findAll().join().get(0).getCurrentEmployees();
+        owner.closeConnection();
+        UnitOfWork.setCurrent(null);
+
+        //Not the UnitOfWork that read the company, there's none current so a read-only one of the default DB is opened
+        getH2ConnectionManager(DBsPath.DEFAULTDB, "H2TEST");
+        try {
+            assertEquals(1, employees.get().size());
+            assertNotSame(owner, UnitOfWork.getCurrent());
+            assertTrue(UnitOfWork.getCurrent().isImplicit());
+        } finally {
+            ConnectionManager.removeConnectionManager(DBsPath.DEFAULTDB.toString());
+        }
+    }
+
+    @Test
+    public void shouldLoadAgainAfterAFailure() {
+        int[] loads = {0};
+        Lazy<Integer> lazy = new Lazy<>(() -> {
+            if (loads[0]++ == 0) throw new DataMapperException("Unavailable");
+            return CompletableFuture.completedFuture(loads[0]);
+        });
+        assertTrue(lazy.getAsync().isCompletedExceptionally());
+        assertEquals(2, (int) lazy.get());
+        assertEquals(2, (int) lazy.get());
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.domainModel.Person;
+import com.github.jayield.rapper.utils.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.Arrays;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+public class NegativeCacheTests {
+
+    private final ConnectionManager manager = getH2ConnectionManager("H2TEST");
+    private DataRepository<Person, Integer> personRepository;
+
+    @Before
+    public void before() throws SQLException {
+        createTables(manager);
+        personRepository = new DataRepository<>(new DataMapper<>(Person.class, dialect));
+        MapperRegistry.register(Person.class, personRepository);
+        newUnitOfWork();
+    }
+
+    @After
+    public void after() {
+        UnitOfWork.getCurrent().closeConnection();
+        UnitOfWork.setCurrent(null);
+        getRepositoryMap().clear();
+    }
+
+    private void newUnitOfWork() {
+        H2TestUtils.newUnitOfWork(manager);
+    }
+
+    @Test
+    public void shouldAnswerAbsentObjectsFromTheNegativeCache() throws SQLException {
+        assertTrue(personRepository.createAll(Arrays.asList(new Person(1, "Ana", null, 0), new Person(2, "Rui", null, 0))).join());
+        NegativeCache<Person, Integer> negativeCache = new NegativeCache<>(new DataMapper<>(Person.class, dialect), 100, 60_000, 1_000, 0.001);
+        personRepository.setNegativeCache(negativeCache);
+
+        newUnitOfWork();
+        assertEquals(2, negativeCache.rebuild().join().intValue());
+        assertTrue(negativeCache.hasBloomFilter());
+        assertFalse(personRepository.findById(3).join().isPresent());
+        assertEquals(1, negativeCache.getHitCount());
+
+        //Created behind the repository's back, so it's only seen after the filter is rebuilt
+        try (Connection con = manager.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("insert into Person (nif, name, version) values (3, 'New', next value for rowversion)");
+            con.commit();
+        }
+        newUnitOfWork();
+        assertFalse(personRepository.findById(3).join().isPresent());
+        assertEquals(3, negativeCache.rebuild().join().intValue());
+        newUnitOfWork();
+        assertEquals("New", personRepository.findById(3).join().get().getName());
+
+        //Created through a UnitOfWork, so it's never taken as absent
+        assertTrue(personRepository.create(new Person(4, "Eva", null, 0)).join());
+        personRepository.getIdentityMap().clear();
+        newUnitOfWork();
+        assertEquals("Eva", personRepository.findById(4).join().get().getName());
+        assertEquals(2, negativeCache.getHitCount());
+    }
+
+    @Test
+    public void shouldKeepRecentMissesUntilTheObjectIsCreated() {
+        NegativeCache<Person, Integer> negativeCache = new NegativeCache<>(new DataMapper<>(Person.class, dialect), 100, 60_000);
+        personRepository.setNegativeCache(negativeCache);
+
+        assertFalse(personRepository.findById(1).join().isPresent());
+        assertEquals(0, negativeCache.getHitCount());
+        newUnitOfWork();
+        assertFalse(personRepository.findById(1).join().isPresent());
+        assertEquals(1, negativeCache.getHitCount());
+
+        assertTrue(personRepository.create(new Person(1, "Ana", null, 0)).join());
+        personRepository.getIdentityMap().clear();
+        newUnitOfWork();
+        assertEquals("Ana", personRepository.findById(1).join().get().getName());
+        assertEquals(1, negativeCache.getHitCount());
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.domainModel.Company;
+import com.github.jayield.rapper.domainModel.Employee;
+import com.github.jayield.rapper.utils.QueryCache;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RelationCacheTests {
+
+    private final String[] companyColumns = {"companyId", "companyCid"};
+    private final String[] employeeColumns = {"employeeId"};
+
+    @Test
+    public void shouldServeBothDirectionsOfTheRelation() {
+        RelationCache relationCache = new RelationCache("CompanyEmployee", Company.class, Employee.class);
+        List<Object> company = Arrays.asList(1, 1);
+
+        assertNull(relationCache.get(companyColumns, employeeColumns, company));
+        relationCache.put(companyColumns, employeeColumns, company, relationCache.getStamp(),
+                Arrays.asList(Collections.singletonList(10), Collections.singletonList(11)));
+        relationCache.put(employeeColumns, companyColumns, Collections.singletonList(10), relationCache.getStamp(),
+                Arrays.asList(Arrays.asList(1, 1), Arrays.asList(2, 1)));
+
+        assertEquals(Arrays.asList(Collections.singletonList(10), Collections.singletonList(11)),
+                relationCache.get(companyColumns, employeeColumns, Arrays.asList(1, 1)));
+        assertEquals(Arrays.asList(Arrays.asList(1, 1), Arrays.asList(2, 1)),
+                relationCache.get(employeeColumns, companyColumns, Collections.singletonList(10)));
+        assertNull(relationCache.get(employeeColumns, companyColumns, Collections.singletonList(11)));
+        assertEquals(2, relationCache.getHitCount());
+        assertEquals(2, relationCache.getMissCount());
+
+        //The key of the company is held once, for both directions
+        List<Object> key = relationCache.get(employeeColumns, companyColumns, Collections.singletonList(10)).get(0);
+        assertSame(key, relationCache.get(employeeColumns, companyColumns, Collections.singletonList(10)).get(0));
+    }
+
+    @Test
+    public void shouldBeClearedWhenTheRelationChanges() {
+        RelationCache relationCache = new RelationCache("CompanyEmployee", Company.class, Employee.class);
+        List<Object> employee = Collections.singletonList(10);
+
+        relationCache.put(employeeColumns, companyColumns, employee, relationCache.getStamp(), Collections.emptyList());
+        assertEquals(Collections.emptyList(), relationCache.get(employeeColumns, companyColumns, employee));
+
+        QueryCache.invalidateTables(Employee.class);
+        assertNull(relationCache.get(employeeColumns, companyColumns, employee));
+
+        //Rows read before the change aren't kept
+        long stamp = relationCache.getStamp();
+        relationCache.invalidate();
+        relationCache.put(employeeColumns, companyColumns, employee, stamp, Collections.emptyList());
+        assertEquals(0, relationCache.size());
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.jayield.rapper;
+
+import com.github.jayield.rapper.domainModel.Person;
+import com.github.jayield.rapper.utils.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+public class SecondLevelCacheTests {
+
+    private final ConnectionManager manager = getH2ConnectionManager("H2TEST");
+    private DataRepository<Person, Integer> personRepository;
+
+    @Before
+    public void before() throws SQLException {
+        createTables(manager);
+        personRepository = new DataRepository<>(new DataMapper<>(Person.class, dialect));
+        MapperRegistry.register(Person.class, personRepository);
+        newUnitOfWork();
+    }
+
+    @After
+    public void after() {
+        UnitOfWork.getCurrent().closeConnection();
+        UnitOfWork.setCurrent(null);
+        getRepositoryMap().clear();
+    }
+
+    private void newUnitOfWork() {
+        H2TestUtils.newUnitOfWork(manager);
+    }
+
+    @Test
+    public void shouldServeFromSecondLevelCache() throws SQLException {
+        DataMapper<Person, Integer> personMapper = new DataMapper<>(Person.class, dialect);
+        SecondLevelCache<Person, Integer> secondLevelCache = new SecondLevelCache<>(personMapper, 64 * 1024, true);
+        DataRepository<Person, Integer> cachedRepository = new DataRepository<>(personMapper, new IdentityMap<>(), secondLevelCache);
+        MapperRegistry.register(Person.class, cachedRepository);
+
+        Person person = new Person(1, "Ana", Date.valueOf("1990-01-01"), 0);
+        assertTrue(cachedRepository.create(person).join());
+        assertTrue(secondLevelCache.contains(1));
+
+        //Changed behind the mapper's back, so a read that reaches the DB would see it
+        try (Connection con = manager.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("update Person set name = 'Changed' where nif = 1");
+            con.commit();
+        }
+
+        newUnitOfWork();
+        cachedRepository.getIdentityMap().clear();
+        Person read = cachedRepository.findById(1).join().get();
+        assertNotSame(person, read);
+        assertEquals("Ana", read.getName());
+        assertEquals(person.getBirthday(), read.getBirthday());
+        assertEquals(person.getVersion(), read.getVersion());
+        assertEquals(1, secondLevelCache.getHitCount());
+        assertTrue(secondLevelCache.getUsedBytes() > 0);
+
+        newUnitOfWork();
+        cachedRepository.invalidate(1);
+        assertEquals("Changed", cachedRepository.findById(1).join().get().getName());
+        assertTrue(secondLevelCache.contains(1));
+    }
+}
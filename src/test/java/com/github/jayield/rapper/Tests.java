@@ -48,7 +48,9 @@ public class Tests {
         UnitOfWork.newCurrent(connectionSupplier.wrap());
         Connection connection = UnitOfWork.getCurrent().getConnection();
 
-        logger.info(manager.getConnection().toString());
+        try (Connection other = manager.getConnection()) {
+            logger.info(other.toString());
+        }
 
         PreparedStatement preparedStatement = connection.prepareStatement("delete from TopStudent where dbo.TopStudent.nif = 321");
         logger.info("" + preparedStatement.executeUpdate());
@@ -61,7 +63,10 @@ public class Tests {
 
         assertFalse(rs.next());
 
-        logger.info(manager.getConnection().toString());
+        try (Connection other = manager.getConnection()) {
+            logger.info(other.toString());
+        }
+        UnitOfWork.getCurrent().closeConnection();
     }
 
     @Test
@@ -0,0 +1,41 @@
+package com.github.jayield.rapper.domainModel;
+
+import com.github.jayield.rapper.DomainObject;
+import com.github.jayield.rapper.Id;
+
+public class Country implements DomainObject<String> {
+    @Id
+    private final String code;
+    private final String name;
+    private final long version;
+
+    public Country(String code, String name, long version) {
+        this.code = code;
+        this.name = name;
+        this.version = version;
+    }
+
+    public Country() {
+        this.code = null;
+        this.name = null;
+        this.version = 0;
+    }
+
+    @Override
+    public String getIdentityKey() {
+        return code;
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.jayield.rapper.utils;
+
+import org.junit.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class BloomFilterTests {
+
+    @Test
+    public void shouldNeverAnswerAbsentForAddedKeys() {
+        BloomFilter filter = new BloomFilter(10_000, 0.01);
+        IntStream.range(0, 10_000).forEach(i -> filter.add("key" + i));
+
+        assertTrue(IntStream.range(0, 10_000).allMatch(i -> filter.mightContain("key" + i)));
+        long falsePositives = IntStream.range(10_000, 110_000).filter(i -> filter.mightContain("key" + i)).count();
+        assertTrue("False positives: " + falsePositives, falsePositives < 2_000);
+    }
+
+    @Test
+    public void shouldTakeKeysAddedConcurrently() {
+        BloomFilter filter = new BloomFilter(100_000, 0.01);
+        IntStream.range(0, 100_000).parallel().forEach(filter::add);
+
+        assertTrue(IntStream.range(0, 100_000).allMatch(filter::mightContain));
+    }
+}
@@ -0,0 +1,210 @@
+package com.github.jayield.rapper.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.PooledConnection;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLTimeoutException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Uses a fake ConnectionPoolDataSource, so no DB is needed
+ */
+public class ConnectionPoolTests {
+
+    private final AtomicInteger physicalConnections = new AtomicInteger();
+    private final List<String> openedOn = new CopyOnWriteArrayList<>();
+    private final List<ConnectionPool> pools = new CopyOnWriteArrayList<>();
+
+    @After
+    public void after() {
+        pools.forEach(ConnectionPool::close);
+    }
+
+    @Test
+    public void shouldReuseConnections() throws Exception {
+        ConnectionPool pool = newPool(new PoolSettings(0, 2, 1_000, 60_000, 60_000, 0));
+
+        for (int i = 0; i < 10; i++) {
+            pool.getConnection().close();
+        }
+
+        assertEquals(1, physicalConnections.get());
+        assertEquals(1, pool.getIdleConnections());
+    }
+
+    @Test
+    public void shouldServeWaitingRequestsInOrder() throws Exception {
+        ConnectionPool pool = newPool(new PoolSettings(0, 1, 5_000, 60_000, 60_000, 0));
+        Connection first = pool.getConnection();
+
+        CompletableFuture<Connection> second = pool.acquire();
+        CompletableFuture<Connection> third = pool.acquire();
+        assertFalse(second.isDone());
+        assertEquals(2, pool.getWaitingRequests());
+
+        first.close();
+        second.get(1, TimeUnit.SECONDS).close();
+        third.get(1, TimeUnit.SECONDS).close();
+
+        assertEquals(1, physicalConnections.get());
+    }
+
+    @Test
+    public void shouldTimeoutWhenPoolIsExhausted() throws Exception {
+        ConnectionPool pool = newPool(new PoolSettings(0, 1, 50, 60_000, 60_000, 0));
+        Connection connection = pool.getConnection();
+
+        try {
+            pool.acquire().join();
+            fail("The request should time out");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof SQLTimeoutException);
+        }
+
+        connection.close();
+        pool.getConnection().close();
+        assertEquals(0, pool.getWaitingRequests());
+    }
+
+    @Test
+    public void shouldDiscardConnectionsOlderThanMaxLifetime() throws Exception {
+        ConnectionPool pool = newPool(new PoolSettings(0, 1, 1_000, 60_000, 1, 0));
+
+        Connection connection = pool.getConnection();
+        Thread.sleep(5);
+        connection.close();
+        pool.getConnection().close();
+
+        assertEquals(2, physicalConnections.get());
+    }
+
+    @Test
+    public void shouldGiveAReleasedConnectionToOnlyOneRequest() throws Exception {
+        ConnectionPool pool = newPool(new PoolSettings(0, 1, 100, 60_000, 60_000, 0));
+        Connection first = pool.getConnection();
+        CompletableFuture<Connection> second = pool.acquire();
+
+        first.close();
+        second.get(1, TimeUnit.SECONDS);
+        assertEquals(0, pool.getIdleConnections());
+        assertEquals(1, pool.getBorrowedConnections());
+        try {
+            pool.acquire().join();
+            fail("The only connection is borrowed, the request should time out");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof SQLTimeoutException);
+        }
+    }
+
+    @Test
+    public void shouldCancelTheTimeoutOfServedRequests() throws Exception {
+        ConnectionPool pool = newPool(new PoolSettings(0, 1, 5_000, 60_000, 60_000, 0));
+        Connection first = pool.getConnection();
+        CompletableFuture<Connection> second = pool.acquire();
+
+        Field timeoutsField = ConnectionPool.class.getDeclaredField("timeouts");
+        timeoutsField.setAccessible(true);
+        Map<?, ?> timeouts = (Map<?, ?>) timeoutsField.get(pool);
+        assertEquals(1, timeouts.size());
+
+        first.close();
+        second.get(1, TimeUnit.SECONDS).close();
+        assertTrue(timeouts.isEmpty());
+    }
+
+    @Test
+    public void shouldGiveTheUnitOfWorkItsConnectionWithoutBlocking() throws Exception {
+        ConnectionPool pool = newPool(new PoolSettings(0, 1, 5_000, 60_000, 60_000, 0));
+        Connection first = pool.getConnection();
+        UnitOfWork.newCurrentAsync(pool::acquire);
+        UnitOfWork unit = UnitOfWork.getCurrent();
+        try {
+            CompletableFuture<Connection> connection = unit.getConnectionAsync();
+            assertFalse(connection.isDone());
+            assertSame(connection, unit.getConnectionAsync());
+
+            first.close();
+            assertSame(connection.get(1, TimeUnit.SECONDS), unit.getConnection());
+            unit.closeConnection();
+            assertEquals(1, pool.getIdleConnections());
+        } finally {
+            UnitOfWork.setCurrent(null);
+        }
+    }
+
+    @Test
+    public void shouldOpenConnectionsOffTheCommonPool() throws Exception {
+        ConnectionPool pool = newPool(new PoolSettings(0, 2, 1_000, 60_000, 60_000, 0));
+        Connection first = pool.getConnection();
+        pool.getConnection().close();
+        first.close();
+
+        assertEquals(2, openedOn.size());
+        openedOn.forEach(thread -> assertEquals("rapper-connection-opener", thread));
+    }
+
+    private ConnectionPool newPool(PoolSettings settings) {
+        ConnectionPool pool = new ConnectionPool("test", fakeDataSource(), settings);
+        pools.add(pool);
+        return pool;
+    }
+
+    private ConnectionPoolDataSource fakeDataSource() {
+        return (ConnectionPoolDataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{ConnectionPoolDataSource.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getPooledConnection")) {
+                physicalConnections.incrementAndGet();
+                openedOn.add(Thread.currentThread().getName());
+                return fakePooledConnection();
+            }
+            return null;
+        });
+    }
+
+    private PooledConnection fakePooledConnection() {
+        List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<>();
+        PooledConnection[] pooledConnection = new PooledConnection[1];
+        Connection[] handle = new Connection[1];
+        pooledConnection[0] = (PooledConnection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{PooledConnection.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "addConnectionEventListener": listeners.add((ConnectionEventListener) args[0]); return null;
+                case "removeConnectionEventListener": listeners.remove(args[0]); return null;
+                case "getConnection":
+                    //As H2 does, the handle given before is closed, notifying the listeners again if it's still being closed
+                    if (handle[0] != null) handle[0].close();
+                    handle[0] = fakeConnection(() -> listeners.forEach(l -> l.connectionClosed(new ConnectionEvent(pooledConnection[0]))));
+                    return handle[0];
+                default: return null;
+            }
+        });
+        return pooledConnection[0];
+    }
+
+    private Connection fakeConnection(Runnable onClose) {
+        boolean[] closed = {false};
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed[0]) onClose.run();
+                    closed[0] = true;
+                    return null;
+                case "isValid": return true;
+                default: return null;
+            }
+        });
+    }
+}
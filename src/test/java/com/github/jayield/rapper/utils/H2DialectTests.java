@@ -0,0 +1,91 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.*;
+import com.github.jayield.rapper.domainModel.Employee;
+import com.github.jayield.rapper.domainModel.Person;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.Optional;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the mappers against an in-memory H2 DB with the H2Dialect
+ */
+public class H2DialectTests {
+
+    private final ConnectionManager manager = getH2ConnectionManager("H2TEST");
+    private DataRepository<Person, Integer> personRepository;
+    private DataRepository<Employee, Integer> employeeRepository;
+
+    @Before
+    public void before() throws SQLException {
+        createTables(manager);
+        personRepository = new DataRepository<>(new DataMapper<>(Person.class, dialect));
+        MapperRegistry.register(Person.class, personRepository);
+        employeeRepository = new DataRepository<>(new DataMapper<>(Employee.class, dialect));
+        MapperRegistry.register(Employee.class, employeeRepository);
+        newUnitOfWork();
+    }
+
+    @After
+    public void after() {
+        UnitOfWork.getCurrent().closeConnection();
+        UnitOfWork.setCurrent(null);
+        getRepositoryMap().clear();
+    }
+
+    private void newUnitOfWork() {
+        H2TestUtils.newUnitOfWork(manager);
+    }
+
+    @Test
+    public void shouldBuildH2Queries() {
+        DataMapper<Person, Integer> personMapper = new DataMapper<>(Person.class, dialect);
+        DataMapper<Employee, Integer> employeeMapper = new DataMapper<>(Employee.class, dialect);
+
+        assertEquals("select C.nif, C.name, C.birthday, C.version Cversion from Person C ", personMapper.getSelectQuery());
+        assertEquals("select version from final table (insert into Person ( nif, name, birthday, version ) values ( ?, ?, ?, next value for rowversion ))", personMapper.getInsertQuery());
+        assertEquals("select version from final table (update Person set name = ?, birthday = ?, version = next value for rowversion where nif = ? and version = ?)", personMapper.getUpdateQuery());
+        assertEquals("delete from Person where nif = ?", personMapper.getDeleteQuery());
+        assertEquals("select id, version from final table (insert into Employee ( name, companyId, companyCid, version ) values ( ?, ?, ?, next value for rowversion ))", employeeMapper.getInsertQuery());
+    }
+
+    @Test
+    public void shouldCreateUpdateAndDelete() {
+        Person person = new Person(1, "Ana", Date.valueOf("1990-01-01"), 0);
+        assertTrue(personRepository.create(person).join());
+        assertTrue(person.getVersion() > 0);
+
+        newUnitOfWork();
+        Person updated = new Person(1, "Ana Maria", person.getBirthday(), person.getVersion());
+        assertTrue(personRepository.update(updated).join());
+        assertTrue(updated.getVersion() > person.getVersion());
+
+        newUnitOfWork();
+        Person stale = new Person(1, "Stale", person.getBirthday(), person.getVersion());
+        assertFalse(personRepository.update(stale).join());
+
+        newUnitOfWork();
+        Optional<Person> read = new DataMapper<>(Person.class, dialect).findById(1).join();
+        assertEquals("Ana Maria", read.get().getName());
+        assertEquals(updated.getVersion(), read.get().getVersion());
+
+        newUnitOfWork();
+        assertTrue(personRepository.delete(updated).join());
+        newUnitOfWork();
+        assertFalse(new DataMapper<>(Person.class, dialect).findById(1).join().isPresent());
+    }
+
+    @Test
+    public void shouldSetGeneratedKeys() {
+        Employee employee = new Employee(0, "Bob", 1, 1, 0, null);
+        assertTrue(employeeRepository.create(employee).join());
+        assertTrue(employee.getId() > 0);
+        assertTrue(employee.getVersion() > 0);
+    }
+}
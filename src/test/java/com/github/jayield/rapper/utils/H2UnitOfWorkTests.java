@@ -0,0 +1,148 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.*;
+import com.github.jayield.rapper.domainModel.Person;
+import javafx.util.Pair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Runs UnitOfWorks against an in-memory H2 DB
+ */
+public class H2UnitOfWorkTests {
+
+    private final ConnectionManager manager = getH2ConnectionManager("H2TEST");
+    private DataRepository<Person, Integer> personRepository;
+
+    @Before
+    public void before() throws SQLException {
+        createTables(manager);
+        personRepository = new DataRepository<>(new DataMapper<>(Person.class, dialect));
+        MapperRegistry.register(Person.class, personRepository);
+        newUnitOfWork();
+    }
+
+    @After
+    public void after() {
+        UnitOfWork.getCurrent().closeConnection();
+        UnitOfWork.setCurrent(null);
+        getRepositoryMap().clear();
+    }
+
+    private void newUnitOfWork() {
+        H2TestUtils.newUnitOfWork(manager);
+    }
+
+    @Test
+    public void shouldReadEachObjectOncePerTransactionAndSeeItsChanges() throws SQLException {
+        assertTrue(personRepository.createAll(Arrays.asList(new Person(1, "Ana", null, 0), new Person(2, "Rui", null, 0))).join());
+        personRepository.getIdentityMap().clear();
+
+        newUnitOfWork();
+        Person first = personRepository.findById(1).join().get();
+        try (Connection con = manager.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("update Person set name = 'Changed', version = next value for rowversion where nif = 1");
+            con.commit();
+        }
+        personRepository.getIdentityMap().clear();
+        assertSame(first, personRepository.findById(1).join().get());
+        assertTrue(personRepository.findAll().join().stream().anyMatch(person -> person == first));
+
+        Person changed = new Person(1, "Mine", null, first.getVersion());
+        changed.markDirty();
+        assertSame(changed, personRepository.findById(1).join().get());
+        Person removed = personRepository.findById(2).join().get();
+        removed.markRemoved();
+        assertFalse(personRepository.findById(2).join().isPresent());
+        assertEquals(Collections.singletonList(changed), personRepository.findAll().join());
+
+        //Once the transaction ends, the objects are read again
+        UnitOfWork.getCurrent().rollback();
+        assertEquals("Changed", personRepository.findById(1).join().get().getName());
+    }
+
+    @Test
+    public void shouldGiveTheObjectsChangedAndNotCommittedInTheQueries() {
+        assertTrue(personRepository.createAll(Arrays.asList(new Person(1, "Ana", null, 0), new Person(2, "Rui", null, 0))).join());
+
+        newUnitOfWork();
+        Person ana = personRepository.findById(1).join().get();
+        Person rui = personRepository.findById(2).join().get();
+        Person created = new Person(3, "Ana", null, 0);
+        created.markNew();
+        Person renamedAna = new Person(2, "Ana", null, rui.getVersion());
+        renamedAna.markDirty();
+        Person renamedEva = new Person(1, "Eva", null, ana.getVersion());
+        renamedEva.markDirty();
+
+        //Nothing was written, the DB still has Ana and Rui
+        assertEquals(Arrays.asList(created, renamedAna), personRepository.findWhere(new Pair<>("name", "Ana")).join());
+        assertEquals(Collections.singletonList(renamedEva), personRepository.findWhere(new Pair<>("name", "Eva")).join());
+        assertEquals(new HashSet<>(Arrays.asList(renamedEva, renamedAna, created)), new HashSet<>(personRepository.findAll().join()));
+
+        UnitOfWork.getCurrent().rollback();
+        newUnitOfWork();
+        List<Person> found = personRepository.findWhere(new Pair<>("name", "Ana")).join();
+        assertEquals(1, found.size());
+        assertEquals(1, found.get(0).getNif());
+    }
+
+    @Test
+    public void shouldRollbackOnlyTheNestedUnitOfWork() throws SQLException {
+        assertTrue(personRepository.create(new Person(1, "Ana", null, 0)).join());
+        UnitOfWork outer = UnitOfWork.getCurrent();
+        new Person(2, "Outer", null, 0).markNew();
+
+        //Person 1 already exists, so its insert fails after the other rows were written in the nested UnitOfWork
+        UnitOfWork nested = UnitOfWork.newNested();
+        new Person(3, "Nested", null, 0).markNew();
+        new Person(4, "Nested", null, 0).markNew();
+        new Person(1, "Duplicate", null, 0).markNew();
+        assertFalse(nested.commit().join());
+        assertSame(outer, UnitOfWork.getCurrent());
+
+        assertTrue(outer.commit().join());
+        try (Connection con = manager.getConnection(); Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("select nif from Person order by nif")) {
+            List<Integer> nifs = new ArrayList<>();
+            while (rs.next()) nifs.add(rs.getInt("nif"));
+            assertEquals(Arrays.asList(1, 2), nifs);
+        }
+    }
+
+    @Test
+    public void shouldChangeObjectsReadWithoutAUnitOfWork() {
+        assertTrue(personRepository.create(new Person(1, "Ana", null, 0)).join());
+        personRepository.getIdentityMap().clear();
+        UnitOfWork.getCurrent().closeConnection();
+        getH2ConnectionManager(DBsPath.DEFAULTDB, "H2TEST");
+        try {
+            //The read opens a read-only UnitOfWork, which becomes writable when the object read is changed
+            UnitOfWork.setCurrent(null);
+            Person read = personRepository.findById(1).join().get();
+            assertTrue(UnitOfWork.getCurrent().isReadOnly());
+
+            Person changed = new Person(1, "Changed", null, read.getVersion());
+            changed.markDirty();
+            assertFalse(UnitOfWork.getCurrent().isReadOnly());
+            assertTrue(UnitOfWork.getCurrent().commit().join());
+
+            personRepository.getIdentityMap().clear();
+            newUnitOfWork();
+            assertEquals("Changed", personRepository.findById(1).join().get().getName());
+        } finally {
+            ConnectionManager.removeConnectionManager(DBsPath.DEFAULTDB.toString());
+        }
+    }
+}
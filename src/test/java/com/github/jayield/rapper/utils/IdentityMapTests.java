@@ -0,0 +1,261 @@
+package com.github.jayield.rapper.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class IdentityMapTests {
+
+    @Test
+    public void shouldStayWithinMaximumSize() {
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>(100);
+        IntStream.range(0, 1_000).forEach(i -> identityMap.put(i, "value" + i));
+
+        assertEquals(100, identityMap.size());
+        assertEquals(100, identityMap.getWeightedSize());
+        assertEquals(900, identityMap.getEvictionCount());
+    }
+
+    @Test
+    public void shouldKeepHotEntriesDuringScan() {
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>(100);
+        IntStream.range(0, 50).forEach(i -> identityMap.put(i, "hot" + i));
+        for (int round = 0; round < 5; round++)
+            IntStream.range(0, 50).forEach(identityMap::get);
+
+        //A findAll reading many entries only once, while the hot entries keep being used
+        IntStream.range(1_000, 11_000).forEach(i -> {
+            identityMap.put(i, "scan" + i);
+            if (i % 500 == 0) IntStream.range(0, 50).forEach(identityMap::get);
+        });
+
+        long hotEntries = IntStream.range(0, 50).filter(identityMap::containsKey).count();
+        assertEquals(50, hotEntries);
+        assertTrue(identityMap.size() <= 100);
+    }
+
+    @Test
+    public void shouldBoundByWeight() {
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>(1_000, String::length);
+        IntStream.range(0, 100).forEach(i -> identityMap.put(i, new String(new char[50])));
+
+        assertTrue(identityMap.getWeightedSize() <= 1_000);
+        assertEquals(identityMap.size() * 50, identityMap.getWeightedSize());
+        assertEquals(identityMap.getEvictionCount() * 50, identityMap.getEvictionWeight());
+    }
+
+    @Test
+    public void shouldKeepWeightConsistentWithRemovalsAndReplacements() {
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>(10_000, String::length);
+        identityMap.put(1, "aa");
+        identityMap.put(2, "bbb");
+        assertTrue(identityMap.replace(1, "aa", "aaaa"));
+        assertFalse(identityMap.replace(2, "xxx", "b"));
+        assertEquals("bbb", identityMap.putIfAbsent(2, "c"));
+        identityMap.remove(2);
+
+        assertEquals(4, identityMap.getWeightedSize());
+        assertEquals("aaaa", identityMap.get(1));
+        assertNull(identityMap.get(2));
+        assertEquals(1, identityMap.getMissCount());
+    }
+
+    @Test
+    public void shouldNotLoseWritesUnderConcurrentEviction() {
+        IdentityMap<Integer, Integer> identityMap = new IdentityMap<>(64);
+        CompletableFuture<?>[] writers = IntStream.range(0, 4)
+                .mapToObj(t -> CompletableFuture.runAsync(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        int key = (i * 31 + t) % 500;
+                        identityMap.compute(key, (k, v) -> v == null ? 1 : v + 1);
+                        if (i % 7 == 0) identityMap.remove(key);
+                    }
+                }))
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(writers).join();
+
+        assertTrue(identityMap.size() <= 64);
+        assertEquals(identityMap.size(), identityMap.getWeightedSize());
+    }
+
+    @Test
+    public void shouldExpireAfterWrite() {
+        AtomicLong time = new AtomicLong();
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>();
+        identityMap.setTicker(time::get);
+        identityMap.setExpireAfterWrite(100);
+        identityMap.put(1, "old");
+
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals("old", identityMap.get(1));
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        assertNull(identityMap.get(1));
+
+        Optional<String> loaded = identityMap.get(1, key -> CompletableFuture.completedFuture(Optional.of("new"))).join();
+        assertEquals("new", loaded.get());
+        assertEquals("new", identityMap.get(1));
+    }
+
+    @Test
+    public void shouldExpireAfterAccess() {
+        AtomicLong time = new AtomicLong();
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>();
+        identityMap.setTicker(time::get);
+        identityMap.setExpireAfterAccess(100);
+        identityMap.put(1, "value");
+
+        for (int i = 0; i < 5; i++) {
+            time.addAndGet(TimeUnit.MILLISECONDS.toNanos(60));
+            assertEquals("value", identityMap.get(1));
+        }
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        assertNull(identityMap.get(1));
+    }
+
+    @Test
+    public void shouldRefreshAheadWithASingleLoad() {
+        AtomicLong time = new AtomicLong();
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>();
+        identityMap.setTicker(time::get);
+        identityMap.setExpireAfterWrite(100);
+        identityMap.setRefreshAfterWrite(10);
+        identityMap.put(1, "old");
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(20));
+
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<Optional<String>> reload = new CompletableFuture<>();
+        for (int i = 0; i < 3; i++) {
+            Optional<String> value = identityMap.get(1, key -> {
+                loads.incrementAndGet();
+                return reload;
+            }).join();
+            assertEquals("old", value.get());
+        }
+        assertEquals(1, loads.get());
+
+        reload.complete(Optional.of("new"));
+        assertEquals("new", identityMap.get(1));
+        assertEquals(1, identityMap.getRefreshCount());
+    }
+
+    @Test
+    public void shouldNotLetARefreshUndoAChangeMadeMeanwhile() {
+        AtomicLong time = new AtomicLong();
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>();
+        identityMap.setTicker(time::get);
+        identityMap.setExpireAfterWrite(100);
+        identityMap.setRefreshAfterWrite(10);
+        identityMap.put(1, "old");
+        identityMap.put(2, "old");
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(20));
+
+        CompletableFuture<Optional<String>> reload = new CompletableFuture<>();
+        identityMap.get(1, key -> reload).join();
+        identityMap.get(2, key -> reload).join();
+        identityMap.remove(1);
+        identityMap.put(2, "newer");
+
+        reload.complete(Optional.of("reloaded"));
+        assertNull(identityMap.get(1));
+        assertEquals("newer", identityMap.get(2));
+    }
+
+    @Test
+    public void shouldServeStaleWhenLoadFails() {
+        AtomicLong time = new AtomicLong();
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>();
+        identityMap.setTicker(time::get);
+        identityMap.setExpireAfterWrite(10);
+        identityMap.setServeStale(1_000, 1_000);
+        identityMap.put(1, "stale");
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(20));
+
+        CompletableFuture<Optional<String>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new RuntimeException("DB down"));
+        assertEquals("stale", identityMap.get(1, key -> failed).join().get());
+        assertEquals(1, identityMap.getStaleServedCount());
+
+        //Too stale to be served
+        time.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        assertTrue(identityMap.get(1, key -> failed).handle((value, throwable) -> throwable != null).join());
+    }
+
+    @Test
+    public void shouldServeStaleWhenLoadIsSlow() {
+        AtomicLong time = new AtomicLong();
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>();
+        identityMap.setTicker(time::get);
+        identityMap.setExpireAfterWrite(10);
+        identityMap.setServeStale(20, 1_000);
+        identityMap.put(1, "stale");
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(20));
+
+        CompletableFuture<Optional<String>> slow = new CompletableFuture<>();
+        assertEquals("stale", identityMap.get(1, key -> slow).join().get());
+
+        //The slow load still updates the map when it completes
+        slow.complete(Optional.of("fresh"));
+        assertEquals("fresh", identityMap.get(1));
+    }
+
+    @Test
+    public void shouldGiveHottestKeysFirst() {
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>(100);
+        IntStream.range(0, 100).forEach(i -> identityMap.put(i, "value" + i));
+        IntStream.range(0, 3).forEach(round -> IntStream.of(7, 42, 99).forEach(identityMap::get));
+
+        List<Integer> hottest = identityMap.hottest(3);
+        assertEquals(3, hottest.size());
+        assertTrue(hottest.containsAll(Arrays.asList(7, 42, 99)));
+        assertEquals(100, identityMap.hottest(1_000).size());
+        assertEquals(100, identityMap.keys().size());
+    }
+
+    @Test
+    public void shouldRenewOnlyTheSameValue() {
+        AtomicLong time = new AtomicLong();
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>();
+        identityMap.setTicker(time::get);
+        identityMap.setExpireAfterWrite(10);
+        String value = "value";
+        identityMap.put(1, value);
+
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(8));
+        assertFalse(identityMap.renew(1, new String(value)));
+        assertTrue(identityMap.renew(1, value));
+        time.addAndGet(TimeUnit.MILLISECONDS.toNanos(8));
+        assertSame(value, identityMap.get(1));
+    }
+
+    @Test
+    public void shouldRemoveEntriesReclaimedByTheGC() throws InterruptedException {
+        IdentityMap<Integer, String> identityMap = new IdentityMap<>(ReferenceType.WEAK);
+        String kept = new String("kept");
+        identityMap.put(0, kept);
+        IntStream.range(1, 100).forEach(i -> identityMap.put(i, new String("value" + i)));
+
+        for (int i = 0; i < 50 && identityMap.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+
+        assertEquals(1, identityMap.size());
+        assertEquals(99, identityMap.getReclaimedCount());
+        assertSame(kept, identityMap.get(0));
+        assertNull(identityMap.get(1));
+        assertEquals(1, identityMap.getHitCount());
+        assertEquals(1, identityMap.getMissCount());
+
+        identityMap.put(1, "value1");
+        assertEquals("value1", identityMap.get(1));
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.*;
+import com.github.jayield.rapper.domainModel.Person;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+public class InvalidationBusTests {
+
+    private final ConnectionManager manager = getH2ConnectionManager("H2TEST");
+    private DataRepository<Person, Integer> personRepository;
+
+    @Before
+    public void before() throws SQLException {
+        createTables(manager);
+        personRepository = new DataRepository<>(new DataMapper<>(Person.class, dialect));
+        MapperRegistry.register(Person.class, personRepository);
+        newUnitOfWork();
+    }
+
+    @After
+    public void after() {
+        UnitOfWork.getCurrent().closeConnection();
+        UnitOfWork.setCurrent(null);
+        getRepositoryMap().clear();
+    }
+
+    private void newUnitOfWork() {
+        H2TestUtils.newUnitOfWork(manager);
+    }
+
+    @Test
+    public void shouldPublishInvalidationsPerCommit() throws InterruptedException {
+        BlockingQueue<List<Invalidation>> received = new LinkedBlockingQueue<>();
+        LoopbackInvalidationBus peer = new LoopbackInvalidationBus("H2TEST");
+        peer.subscribe(received::add);
+        MapperRegistry.setInvalidationBus(new LoopbackInvalidationBus("H2TEST"));
+        try {
+            Person person = new Person(1, "Ana", null, 0);
+            assertTrue(personRepository.createAll(Arrays.asList(person, new Person(2, "Bob", null, 0))).join());
+
+            List<Invalidation> batch = received.poll(5, TimeUnit.SECONDS);
+            assertEquals(2, batch.size());
+            assertTrue(batch.contains(new Invalidation(Person.class.getName(), 1, person.getVersion())));
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+
+            newUnitOfWork();
+            assertTrue(personRepository.delete(person).join());
+            assertEquals(Collections.singletonList(new Invalidation(Person.class.getName(), 1, Invalidation.REMOVED)), received.poll(5, TimeUnit.SECONDS));
+
+            //Applied on this node as if it came from another one, only the older objects are dropped
+            Person other = personRepository.getIdentityMap().get(2);
+            MapperRegistry.applyInvalidations(Collections.singletonList(new Invalidation(Person.class.getName(), 2, other.getVersion())));
+            assertSame(other, personRepository.getIdentityMap().get(2));
+            MapperRegistry.applyInvalidations(Collections.singletonList(new Invalidation(Person.class.getName(), 2, other.getVersion() + 1)));
+            assertFalse(personRepository.getIdentityMap().containsKey(2));
+        } finally {
+            MapperRegistry.setInvalidationBus(null);
+            peer.close();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.jayield.rapper.utils;
+
+import org.junit.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class OffHeapStoreTests {
+
+    @Test
+    public void shouldStayWithinCapacity() {
+        OffHeapStore<Integer> store = new OffHeapStore<>(1_000);
+        IntStream.range(0, 100).forEach(i -> assertTrue(store.put(i, new byte[30], 1)));
+
+        assertTrue(store.getUsedBytes() <= 1_000);
+        assertEquals(store.size() * 30, store.getUsedBytes());
+        assertEquals(100 - store.size(), store.getEvictionCount());
+        //The oldest values were overwritten, the newest are still there
+        assertNull(store.get(0));
+        assertNotNull(store.get(99));
+        assertFalse(store.put(100, new byte[1_001], 1));
+    }
+
+    @Test
+    public void shouldNotReplaceWithOlderVersion() {
+        OffHeapStore<Integer> store = new OffHeapStore<>(1_000);
+        store.put(1, new byte[]{ 2 }, 2);
+        assertFalse(store.put(1, new byte[]{ 1 }, 1));
+        assertArrayEquals(new byte[]{ 2 }, store.get(1));
+        assertTrue(store.put(1, new byte[]{ 3, 3 }, 3));
+        assertArrayEquals(new byte[]{ 3, 3 }, store.get(1));
+        assertEquals(2, store.getUsedBytes());
+
+        store.remove(1);
+        assertNull(store.get(1));
+        assertEquals(0, store.getUsedBytes());
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.*;
+import com.github.jayield.rapper.domainModel.Person;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javafx.util.Pair;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+public class QueryCacheTests {
+
+    private final ConnectionManager manager = getH2ConnectionManager("H2TEST");
+    private DataRepository<Person, Integer> personRepository;
+
+    @Before
+    public void before() throws SQLException {
+        createTables(manager);
+        personRepository = new DataRepository<>(new DataMapper<>(Person.class, dialect));
+        MapperRegistry.register(Person.class, personRepository);
+        newUnitOfWork();
+    }
+
+    @After
+    public void after() {
+        UnitOfWork.getCurrent().closeConnection();
+        UnitOfWork.setCurrent(null);
+        getRepositoryMap().clear();
+    }
+
+    private void newUnitOfWork() {
+        H2TestUtils.newUnitOfWork(manager);
+    }
+
+    @Test
+    public void shouldCacheQueriesUntilTheTableChanges() throws SQLException {
+        personRepository.setQueryCache(new QueryCache<>(Person.class, 1_000));
+        QueryCache<Integer> queryCache = personRepository.getQueryCache().get();
+        assertTrue(personRepository.createAll(Arrays.asList(new Person(1, "Ana", null, 0), new Person(2, "Ana", null, 0))).join());
+
+        newUnitOfWork();
+        List<Person> first = personRepository.findWhere(new Pair<>("name", "Ana")).join();
+        assertEquals(2, first.size());
+
+        //Changed behind the mapper's back, so only a query that reaches the DB would see it
+        try (Connection con = manager.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute("update Person set name = 'Other' where nif = 2");
+            con.commit();
+        }
+
+        List<Person> second = personRepository.findWhere(new Pair<>("name", "Ana")).join();
+        assertEquals(1, queryCache.getHitCount());
+        assertEquals(2, second.size());
+        assertSame(first.get(0), second.get(0));
+
+        //A commit to the table discards the cached results
+        newUnitOfWork();
+        assertTrue(personRepository.create(new Person(3, "Ana", null, 0)).join());
+        newUnitOfWork();
+        List<Person> third = personRepository.findWhere(new Pair<>("name", "Ana")).join();
+        assertEquals(Arrays.asList(1, 3), third.stream().map(Person::getNif).sorted().collect(Collectors.toList()));
+        assertEquals(1, queryCache.getHitCount());
+    }
+}
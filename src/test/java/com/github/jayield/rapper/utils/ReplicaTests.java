@@ -0,0 +1,149 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.DataMapper;
+import com.github.jayield.rapper.DataRepository;
+import com.github.jayield.rapper.domainModel.Person;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.ConnectionPoolDataSource;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * Uses one in-memory H2 DB as the primary and others as its replicas. The replicas aren't kept in sync, so where a read
+ * went is told by the DB it was served by
+ */
+public class ReplicaTests {
+
+    private static final String PRIMARY = "H2PRIMARY";
+    private static final String REPLICA0 = "H2REPLICA0";
+    private static final String REPLICA1 = "H2REPLICA1";
+    private static final PoolSettings poolSettings = new PoolSettings(0, 4, 5_000, 60_000, 600_000, 0);
+
+    @Before
+    public void before() throws SQLException {
+        for (String name : Arrays.asList(PRIMARY, REPLICA0, REPLICA1)) createTables(getH2ConnectionManager(name));
+    }
+
+    @After
+    public void after() {
+        UnitOfWork.setCurrent(null);
+        getRepositoryMap().clear();
+        ConnectionManager.removeConnectionManager(DBsPath.DEFAULTDB.toString());
+    }
+
+    @Test
+    public void shouldRouteReadsToTheReplicasInTurn() throws SQLException {
+        ConnectionManager manager = newManager(dataSource(REPLICA0), dataSource(REPLICA1));
+        manager.checkReplicas();
+
+        List<String> served = new ArrayList<>();
+        for (int i = 0; i < 4; i++) served.add(readFrom(manager, 0));
+
+        assertEquals(2, served.stream().filter(REPLICA0::equals).count());
+        assertEquals(2, served.stream().filter(REPLICA1::equals).count());
+        assertNotEquals(served.get(0), served.get(1));
+    }
+
+    @Test
+    public void shouldStopUsingAnUnhealthyReplica() throws SQLException {
+        ConnectionManager manager = newManager(dataSource(REPLICA0), unavailableDataSource());
+        manager.checkReplicas();
+
+        assertEquals(2, manager.getReplicaCount());
+        assertEquals(1, manager.getHealthyReplicaCount());
+        for (int i = 0; i < 4; i++) assertEquals(REPLICA0, readFrom(manager, 0));
+    }
+
+    @Test
+    public void shouldKeepUsingABusyReplica() throws SQLException {
+        //One connection per pool, waiting for it at most 200ms
+        ConnectionManager manager = ConnectionManager.getConnectionManager(DBsPath.DEFAULTDB.toString(), dataSource(PRIMARY),
+                Arrays.asList(dataSource(REPLICA0)), dialect, new PoolSettings(0, 1, 200, 60_000, 600_000, 0));
+        manager.checkReplicas();
+
+        try (Connection busy = manager.getReadOnlyConnectionAsync(IsolationLevel.READ_COMMITTED, 0).join()) {
+            assertEquals(REPLICA0, getName(busy));
+            //Neither the read that timed out waiting for the replica nor a health check mark it as unhealthy
+            assertEquals(PRIMARY, readFrom(manager, 0));
+            manager.checkReplicas();
+            assertEquals(1, manager.getHealthyReplicaCount());
+        }
+        assertEquals(REPLICA0, readFrom(manager, 0));
+    }
+
+    @Test
+    public void shouldUseThePrimaryWhenTheReplicasLag() throws SQLException {
+        ConnectionManager manager = newManager(dataSource(REPLICA0));
+        execute(getH2ConnectionManager(PRIMARY), "select next value for " + H2Dialect.VERSION_SEQUENCE, "select next value for " + H2Dialect.VERSION_SEQUENCE);
+        manager.checkReplicas();
+        assertEquals(REPLICA0, readFrom(manager, 0));
+
+        //A replica behind the version the reader needs isn't used
+        assertEquals(PRIMARY, readFrom(manager, Long.MAX_VALUE));
+
+        manager.setMaxReplicaLag(0);
+        assertEquals(PRIMARY, readFrom(manager, 0));
+    }
+
+    @Test
+    public void shouldReadItsOwnWrites() {
+        newManager(dataSource(REPLICA0)).checkReplicas();
+        DataRepository<Person, Integer> personRepository = new DataRepository<>(new DataMapper<>(Person.class, dialect));
+        MapperRegistry.register(Person.class, personRepository);
+
+        //The read before any write is served by the replica, which doesn't have the person
+        UnitOfWork.setCurrent(null);
+        assertFalse(personRepository.findById(1).join().isPresent());
+        assertTrue(personRepository.create(new Person(1, "Ana", null, 0)).join());
+        assertTrue(UnitOfWork.getCurrent().getCommittedVersion() > 0);
+
+        //After the commit, the UnitOfWork needs a DB that has its version, so it reads from the primary
+        personRepository.getIdentityMap().clear();
+        Optional<Person> person = personRepository.findById(1).join();
+        assertTrue(person.isPresent());
+        assertEquals("Ana", person.get().getName());
+    }
+
+    /**
+     * Sets the ConnectionManager of {@link DBsPath#DEFAULTDB}, used by the DataRepositories, to the primary and {@code replicas}
+     */
+    private static ConnectionManager newManager(ConnectionPoolDataSource... replicas) {
+        return ConnectionManager.getConnectionManager(DBsPath.DEFAULTDB.toString(), dataSource(PRIMARY), Arrays.asList(replicas), dialect, poolSettings);
+    }
+
+    private static ConnectionPoolDataSource dataSource(String name) {
+        return dialect.getDataSource("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+    }
+
+    private static ConnectionPoolDataSource unavailableDataSource() {
+        return (ConnectionPoolDataSource) Proxy.newProxyInstance(ReplicaTests.class.getClassLoader(), new Class[]{ConnectionPoolDataSource.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getPooledConnection")) throw new SQLException("The replica is down");
+            return null;
+        });
+    }
+
+    /**
+     * @return the name of the DB that served a read-only connection
+     */
+    private static String readFrom(ConnectionManager manager, long minVersion) throws SQLException {
+        try (Connection connection = manager.getReadOnlyConnectionAsync(IsolationLevel.READ_COMMITTED, minVersion).join()) {
+            return getName(connection);
+        }
+    }
+
+    private static String getName(Connection connection) throws SQLException {
+        String url = connection.getMetaData().getURL();
+        return url.substring("jdbc:h2:mem:".length(), url.indexOf(';') < 0 ? url.length() : url.indexOf(';'));
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.exceptions.ConcurrencyException;
+import com.github.jayield.rapper.exceptions.DataMapperException;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTests {
+
+    private final Supplier<CompletableFuture<Connection>> noConnection = () -> {
+        throw new DataMapperException("The transactions of these tests don't use the DB");
+    };
+
+    @Test
+    public void shouldRetryDeadlocks() {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 1, 5, noConnection);
+        AtomicInteger attempts = new AtomicInteger();
+
+        boolean success = retryPolicy.execute(() -> {
+            if (attempts.incrementAndGet() < 3)
+                return failed(new DataMapperException(new SQLException("deadlock", "40001", 1205)));
+            return CompletableFuture.completedFuture(true);
+        }).join();
+
+        assertTrue(success);
+        assertEquals(3, attempts.get());
+        assertEquals(2, retryPolicy.getRetryCount(RetryPolicy.Reason.DEADLOCK));
+        assertEquals(0, retryPolicy.getExhaustedCount());
+    }
+
+    @Test
+    public void shouldRetryVersionConflictsRegisteredInUnitOfWork() {
+        RetryPolicy retryPolicy = new RetryPolicy(2, 1, 5, noConnection);
+        AtomicInteger attempts = new AtomicInteger();
+
+        boolean success = retryPolicy.execute(() -> {
+            attempts.incrementAndGet();
+            UnitOfWork.getCurrent().registerFailure(null, new ConcurrencyException("Version conflict"));
+            return CompletableFuture.completedFuture(false);
+        }).join();
+
+        assertFalse(success);
+        assertEquals(3, attempts.get());
+        assertEquals(2, retryPolicy.getRetryCount(RetryPolicy.Reason.VERSION_CONFLICT));
+        assertEquals(1, retryPolicy.getExhaustedCount());
+    }
+
+    @Test
+    public void shouldNotRetryOtherFailures() {
+        RetryPolicy retryPolicy = new RetryPolicy(3, 1, 5, noConnection);
+        AtomicInteger attempts = new AtomicInteger();
+
+        try {
+            retryPolicy.execute(() -> {
+                attempts.incrementAndGet();
+                return failed(new DataMapperException(new SQLException("Invalid object name", "S0002", 208)));
+            }).join();
+            fail("The failure should be propagated");
+        } catch (CompletionException ignored) { }
+
+        assertEquals(1, attempts.get());
+        assertEquals(0, retryPolicy.getRetryCount());
+    }
+
+    @Test
+    public void shouldRestoreTheUnitOfWorkThatWasCurrent() {
+        RetryPolicy retryPolicy = new RetryPolicy(1, 1, 5, noConnection);
+        UnitOfWork.newCurrentAsync(noConnection);
+        UnitOfWork previous = UnitOfWork.getCurrent();
+        try {
+            UnitOfWork[] attemptUnit = new UnitOfWork[1];
+            assertTrue(retryPolicy.execute(() -> {
+                attemptUnit[0] = UnitOfWork.getCurrent();
+                return CompletableFuture.completedFuture(true);
+            }).join());
+
+            assertNotSame(previous, attemptUnit[0]);
+            assertSame(previous, UnitOfWork.getCurrent());
+        } finally {
+            UnitOfWork.setCurrent(null);
+        }
+    }
+
+    @Test
+    public void shouldClassifyLockTimeouts() {
+        assertEquals(RetryPolicy.Reason.LOCK_TIMEOUT, RetryPolicy.getReason(new CompletionException(new DataMapperException(new SQLException("timeout", "S0001", 1222)))));
+        assertNull(RetryPolicy.getReason(new DataMapperException("Couldn't get version.")));
+    }
+
+    private static CompletableFuture<Boolean> failed(Throwable throwable) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        future.completeExceptionally(throwable);
+        return future;
+    }
+}
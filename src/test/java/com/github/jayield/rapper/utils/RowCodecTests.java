@@ -0,0 +1,32 @@
+package com.github.jayield.rapper.utils;
+
+import org.junit.Test;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RowCodecTests {
+
+    @Test
+    public void shouldEncodeAndDecodeRows() {
+        Object[] row = { 1, "name", null, Date.valueOf("1990-01-01"), new Timestamp(123_456L), 7L, true, 1.5 };
+        for (boolean compress : new boolean[]{ false, true }) {
+            RowCodec codec = new RowCodec(Arrays.asList(int.class, String.class, String.class, Date.class, Timestamp.class, long.class, boolean.class, Double.class), compress);
+            assertArrayEquals(row, codec.decode(codec.encode(row)));
+        }
+    }
+
+    @Test
+    public void shouldCompressLargeRows() {
+        char[] chars = new char[1_000];
+        Arrays.fill(chars, 'a');
+        Object[] bigRow = { new String(chars) };
+        RowCodec plain = new RowCodec(Arrays.asList(String.class), false);
+        RowCodec compressed = new RowCodec(Arrays.asList(String.class), true);
+        assertTrue(compressed.encode(bigRow).length < plain.encode(bigRow).length / 10);
+        assertArrayEquals(bigRow, compressed.decode(compressed.encode(bigRow)));
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.jayield.rapper.utils;
+
+import com.github.jayield.rapper.DataMapper;
+import com.github.jayield.rapper.ShardedDataRepository;
+import com.github.jayield.rapper.domainModel.Person;
+import javafx.util.Pair;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static com.github.jayield.rapper.H2TestUtils.*;
+import static org.junit.Assert.*;
+
+public class ShardingTests {
+
+    @Test
+    public void hashShardFunctionShouldSpreadKeysOverAllShards() {
+        ShardFunction<Integer> shardFunction = ShardFunction.hash();
+        int[] counts = new int[4];
+        IntStream.range(-100, 100).forEach(key -> {
+            int shard = shardFunction.getShard(key, counts.length);
+            assertEquals(shard, shardFunction.getShard(key, counts.length));
+            counts[shard]++;
+        });
+        Arrays.stream(counts).forEach(count -> assertEquals(50, count));
+    }
+
+    @Test
+    public void mergeSortedShouldKeepTheOrder() {
+        List<List<Integer>> lists = Arrays.asList(
+                Arrays.asList(1, 4, 7, 10),
+                Collections.emptyList(),
+                Arrays.asList(2, 3, 8),
+                Arrays.asList(5, 6, 9, 11, 12)
+        );
+
+        List<Integer> merged = CollectionUtils.mergeSorted(lists, Comparator.naturalOrder()).collect(Collectors.toList());
+
+        assertEquals(IntStream.rangeClosed(1, 12).boxed().collect(Collectors.toList()), merged);
+    }
+
+    @Test
+    public void mergeSortedShouldUseTheComparator() {
+        List<List<String>> lists = Arrays.asList(Arrays.asList("c", "a"), Arrays.asList("d", "b"));
+
+        List<String> merged = CollectionUtils.mergeSorted(lists, Comparator.<String>reverseOrder()).collect(Collectors.toList());
+
+        assertEquals(Arrays.asList("d", "c", "b", "a"), merged);
+    }
+
+    @Test
+    public void shardedRepositoryShouldSpreadObjectsOverShards() throws SQLException {
+        List<ConnectionManager> shards = Arrays.asList(getH2ConnectionManager("H2SHARD0"), getH2ConnectionManager("H2SHARD1"));
+        for (ConnectionManager shard : shards) createTables(shard);
+        ShardedDataRepository<Person, Integer> shardedRepository = new ShardedDataRepository<>(new DataMapper<>(Person.class, dialect), shards, ShardFunction.hash());
+        MapperRegistry.register(Person.class, shardedRepository);
+        try {
+            List<Person> people = IntStream.rangeClosed(1, 10)
+                    .mapToObj(nif -> new Person(nif, "Person " + nif, null, 0))
+                    .collect(Collectors.toList());
+            assertTrue(shardedRepository.createAll(people).join());
+
+            for (int i = 0; i < shards.size(); i++) {
+                try (Connection con = shards.get(i).getConnection();
+                     ResultSet rs = con.createStatement().executeQuery("select count(*) from Person")) {
+                    rs.next();
+                    int shard = i;
+                    assertEquals(people.stream().filter(person -> shardedRepository.getShard(person.getNif()) == shard).count(), rs.getLong(1));
+                    con.commit();
+                }
+            }
+
+            UnitOfWork.setCurrent(null);
+            List<Person> all = shardedRepository.findAll(Comparator.comparing(Person::getNif)).join();
+            assertEquals(IntStream.rangeClosed(1, 10).boxed().collect(Collectors.toList()), all.stream().map(Person::getNif).collect(Collectors.toList()));
+            assertEquals("Person 7", shardedRepository.findById(7).join().get().getName());
+        } finally {
+            UnitOfWork.setCurrent(null);
+            getRepositoryMap().remove(Person.class);
+        }
+    }
+
+    @Test
+    public void shardedRepositoryShouldSortTheChangesOfTheUnitOfWorkIntoTheResults() throws SQLException {
+        List<ConnectionManager> shards = Arrays.asList(getH2ConnectionManager("H2SHARD0"), getH2ConnectionManager("H2SHARD1"));
+        for (ConnectionManager shard : shards) createTables(shard);
+        ShardedDataRepository<Person, Integer> shardedRepository = new ShardedDataRepository<>(new DataMapper<>(Person.class, dialect), shards, ShardFunction.hash());
+        MapperRegistry.register(Person.class, shardedRepository);
+        try {
+            List<Person> people = IntStream.rangeClosed(1, 6)
+                    .mapToObj(nif -> new Person(nif, "Person " + nif, null, 0))
+                    .collect(Collectors.toList());
+            assertTrue(shardedRepository.createAll(people).join());
+
+            //Neither is written, the UnitOfWork gives them in place of what the shards have
+            newUnitOfWork(shards.get(0));
+            new Person(7, "Person 0", null, 0).markNew();
+            new Person(4, "Person 9", null, 0).markDirty();
+
+            List<Person> all = shardedRepository.findAll(Comparator.comparing(Person::getName)).join();
+            assertEquals(Arrays.asList(7, 1, 2, 3, 5, 6, 4), all.stream().map(Person::getNif).collect(Collectors.toList()));
+            UnitOfWork.getCurrent().rollback();
+        } finally {
+            UnitOfWork.setCurrent(null);
+            getRepositoryMap().remove(Person.class);
+        }
+    }
+
+    @Test
+    public void shardedRepositoryShouldFailTheSortedReadsWhenAShardFails() throws SQLException {
+        //The second shard has no tables, so its queries fail
+        List<ConnectionManager> shards = Arrays.asList(getH2ConnectionManager("H2SHARD0"), getH2ConnectionManager("H2SHARDWITHOUTTABLES"));
+        createTables(shards.get(0));
+        ShardedDataRepository<Person, Integer> shardedRepository = new ShardedDataRepository<>(new DataMapper<>(Person.class, dialect), shards, ShardFunction.hash());
+        MapperRegistry.register(Person.class, shardedRepository);
+        try {
+            UnitOfWork.setCurrent(null);
+            try {
+                shardedRepository.findAll(Comparator.comparing(Person::getNif)).join();
+                fail("The read of the second shard should fail");
+            } catch (CompletionException e) {
+                assertNotNull(e.getCause());
+            }
+            try {
+                shardedRepository.findWhere(Comparator.comparing(Person::getNif), new Pair<>("name", "Ana")).join();
+                fail("The read of the second shard should fail");
+            } catch (CompletionException e) {
+                assertNotNull(e.getCause());
+            }
+        } finally {
+            UnitOfWork.setCurrent(null);
+            getRepositoryMap().remove(Person.class);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import com.github.jayield.rapper.DomainObject;
 import com.github.jayield.rapper.TestUtils;
 import com.github.jayield.rapper.domainModel.*;
 import com.github.jayield.rapper.AssertUtils;
+import com.github.jayield.rapper.exceptions.DataMapperException;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -15,15 +16,13 @@ import java.lang.reflect.Field;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Optional;
 import java.util.function.BiConsumer;
 
 import static com.github.jayield.rapper.AssertUtils.*;
 import static com.github.jayield.rapper.utils.DBsPath.TESTDB;
 import static com.github.jayield.rapper.utils.MapperRegistry.getRepository;
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class UnitOfWorkTests {
 
@@ -134,10 +133,55 @@ public class UnitOfWorkTests {
         assertRemovedObjects(false);
     }
 
-    private void assertIdentityMaps(Field identityMapField, List<DomainObject> dirtyObjects, BiConsumer<ConcurrentMap, DomainObject> assertion) throws IllegalAccessException {
+    @Test
+    public void readOnly() throws NoSuchFieldException, IllegalAccessException {
+        ConnectionManager manager = ConnectionManager.getConnectionManager(TESTDB);
+        SqlSupplier<Connection> connectionSupplier = manager::getReadOnlyConnection;
+        UnitOfWork.newCurrentReadOnly(connectionSupplier.wrap());
+        UnitOfWork unitOfWork = UnitOfWork.getCurrent();
+
+        Optional<Person> person = getRepository(Person.class).getMapper().findById(321).join();
+        assertTrue(person.isPresent());
+
+        //The connection must have been released once the query completed
+        Field connectionField = UnitOfWork.class.getDeclaredField("connection");
+        connectionField.setAccessible(true);
+        assertNull(connectionField.get(unitOfWork));
+
+        try {
+            person.get().markNew();
+            fail("A read-only UnitOfWork must not register changes");
+        } catch (DataMapperException ignored) { }
+
+        assertTrue(unitOfWork.commit().join());
+    }
+
+    @Test
+    public void nestedRollback() {
+        UnitOfWork outer = UnitOfWork.getCurrent();
+        Person outerPerson = new Person(989, "Outer", null, 0);
+        outerPerson.markNew();
+
+        //Person 321 already exists, so its insert fails after the other two rows were written in the nested UnitOfWork
+        UnitOfWork nested = UnitOfWork.newNested();
+        Person first = new Person(987, "Nested", null, 0);
+        Person second = new Person(988, "Nested", null, 0);
+        first.markNew();
+        second.markNew();
+        new Person(321, "Duplicate", null, 0).markNew();
+        assertFalse(nested.commit().join());
+        assertEquals(outer, UnitOfWork.getCurrent());
+
+        assertTrue(outer.commit().join());
+        assertSingleRow(outer, outerPerson, TestUtils.personSelectQuery, TestUtils.getPersonPSConsumer(outerPerson.getNif()), AssertUtils::assertPerson);
+        assertNotFound(TestUtils.personSelectQuery, TestUtils.getPersonPSConsumer(first.getNif()));
+        assertNotFound(TestUtils.personSelectQuery, TestUtils.getPersonPSConsumer(second.getNif()));
+    }
+
+    private void assertIdentityMaps(Field identityMapField, List<DomainObject> dirtyObjects, BiConsumer<IdentityMap, DomainObject> assertion) throws IllegalAccessException {
         for (DomainObject domainObject : dirtyObjects) {
             DataRepository repository = getRepository(domainObject.getClass());
-            ConcurrentMap identityMap = (ConcurrentMap) identityMapField.get(repository);
+            IdentityMap identityMap = (IdentityMap) identityMapField.get(repository);
             assertion.accept(identityMap, domainObject);
         }
     }
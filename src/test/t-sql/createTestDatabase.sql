@@ -108,3 +108,13 @@ create table CompanyEmployee (
   FOREIGN KEY (companyId, companyCid) REFERENCES Company (id, cid)
 )
 go
+
+if OBJECT_ID('Country') is not null
+  drop table Country
+go
+create table Country (
+  code nvarchar(3) primary key,
+  [name] nvarchar(50),
+  version rowversion
+)
+go